@@ -0,0 +1,15 @@
+package com.jstomp.benchmark;
+
+/**
+ * Shapes of the message bodies used by the benchmarks
+ */
+public enum MessageShape {
+    /*Only content and type*/
+    MINIMAL,
+    /*Every field, formatted createTime*/
+    FULL,
+    /*Every field, epoch millisecond createTime that has to be formatted*/
+    EPOCH_TIME,
+    /*Every field plus fields the client does not know and has to skip*/
+    UNKNOWN_FIELDS
+}
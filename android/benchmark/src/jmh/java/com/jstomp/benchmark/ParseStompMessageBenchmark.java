@@ -0,0 +1,66 @@
+package com.jstomp.benchmark;
+
+import com.google.gson.Gson;
+import com.jstomp.provider.UserMessageDecoder;
+import com.jstomp.provider.UserMessageEntry;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Decoding of inbound message bodies, StompProvider#parseStompMessage.
+ * <p>
+ * {@link #legacy} is the implementation before the streaming decoder and serves as the baseline.
+ **/
+@State(Scope.Benchmark)
+public class ParseStompMessageBenchmark {
+    private static final int BATCH = 64;
+
+    @Param({"MINIMAL", "FULL", "EPOCH_TIME", "UNKNOWN_FIELDS"})
+    public MessageShape shape;
+
+    @Param({"32", "1024", "16384"})
+    public int contentSize;
+
+    private String body;
+    private List<String> batch;
+
+    @Setup
+    public void setup() {
+        body = Payloads.message(shape, contentSize, 7);
+        batch = Payloads.batch(shape, contentSize, BATCH);
+    }
+
+    @Benchmark
+    public UserMessageEntry legacy() {
+        UserMessageEntry msg = new Gson().fromJson(body, UserMessageEntry.class);
+        String createTime = msg.getCreateTime();
+        if (createTime != null) {
+            boolean isNumber = createTime.matches("^\\d+$");
+            if (isNumber) {
+                SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+                msg.setCreateTime(sdf.format(new Date(Long.parseLong(createTime))));
+            }
+        }
+        return msg;
+    }
+
+    @Benchmark
+    public UserMessageEntry decode() {
+        return UserMessageDecoder.decode(body);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public List<UserMessageEntry> decodeAll() {
+        return UserMessageDecoder.decodeAll(batch);
+    }
+}
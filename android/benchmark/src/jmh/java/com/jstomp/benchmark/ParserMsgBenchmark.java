@@ -0,0 +1,44 @@
+package com.jstomp.benchmark;
+
+import com.jstomp.provider.UserMessageDecoder;
+import com.jstomp.provider.UserMessageEntry;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Map;
+
+/**
+ * Map building of JStompPlugin#parserMsg, the structured form handed to flutter
+ **/
+@State(Scope.Benchmark)
+public class ParserMsgBenchmark {
+
+    @Param({"MINIMAL", "FULL"})
+    public MessageShape shape;
+
+    @Param({"32", "1024"})
+    public int contentSize;
+
+    private String body;
+    private UserMessageEntry entry;
+
+    @Setup
+    public void setup() {
+        body = Payloads.message(shape, contentSize, 0);
+        entry = UserMessageDecoder.decode(body);
+    }
+
+    @Benchmark
+    public Map<String, Object> toMap() {
+        return UserMessageDecoder.toMap(entry);
+    }
+
+    @Benchmark
+    public Map<String, Object> decodeToMap() {
+        return UserMessageDecoder.toMap(UserMessageDecoder.decode(body));
+    }
+}
@@ -0,0 +1,97 @@
+package com.jstomp.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Message bodies of the benchmarks, in the shapes the server sends
+ */
+final class Payloads {
+
+    private Payloads() {
+    }
+
+    /**
+     * A message body
+     *
+     * @param shape
+     * @param contentSize Length of the content field
+     * @param seq         Makes the bodies of a batch differ
+     * @return
+     */
+    static String message(MessageShape shape, int contentSize, int seq) {
+        String content = content(contentSize, seq);
+        switch (shape) {
+            case MINIMAL:
+                return "{\"content\":\"" + content + "\",\"type\":0}";
+            case EPOCH_TIME:
+                return full(content, "1561366431" + pad3(seq));
+            case UNKNOWN_FIELDS:
+                return "{\"ext\":{\"tags\":[\"a\",\"b\"],\"score\":1.5,\"nested\":{\"ok\":true}},"
+                        + "\"readBy\":[1,2,3,4,5,6,7,8],"
+                        + full(content, "\"2019-06-24 17:03:51\"").substring(1);
+            case FULL:
+            default:
+                return full(content, "\"2019-06-24 17:03:51\"");
+        }
+    }
+
+    /**
+     * A batch of message bodies
+     *
+     * @param shape
+     * @param contentSize
+     * @param count
+     * @return
+     */
+    static List<String> batch(MessageShape shape, int contentSize, int count) {
+        List<String> list = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            list.add(message(shape, contentSize, i));
+        }
+        return list;
+    }
+
+    /**
+     * Addresses of subscription benchmarks
+     *
+     * @param count
+     * @return
+     */
+    static String[] topics(int count) {
+        String[] topics = new String[count];
+        for (int i = 0; i < count; i++) {
+            topics[i] = "/topic/group/" + (1143049991384731649L + i);
+        }
+        return topics;
+    }
+
+    private static String full(String content, String createTime) {
+        return "{\"content\":\"" + content + "\","
+                + "\"createId\":\"161691756546\","
+                + "\"createName\":\"陈晨\","
+                + "\"createTime\":" + createTime + ","
+                + "\"headUrl\":\"https://example.com/head/161691756546.png\","
+                + "\"id\":\"1046324312976343042\","
+                + "\"microGroupId\":\"1143049991384731649\","
+                + "\"microGroupName\":\"Flutter exclusive group\","
+                + "\"path\":\"\","
+                + "\"obj\":\"\","
+                + "\"type\":0,"
+                + "\"status\":0}";
+    }
+
+    private static String content(int size, int seq) {
+        char[] chars = new char[Math.max(1, size)];
+        String words = "Message sent by flutter 消息 " + seq + " ";
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = words.charAt(i % words.length());
+        }
+        return new String(chars);
+    }
+
+    private static String pad3(int seq) {
+        String s = Integer.toString(seq % 1000);
+        return "000".substring(s.length()) + s;
+    }
+}
@@ -0,0 +1,73 @@
+package com.jstomp.benchmark;
+
+import com.jstomp.provider.SendHeaders;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import ua.naiksoftware.stomp.dto.StompCommand;
+import ua.naiksoftware.stomp.dto.StompHeader;
+import ua.naiksoftware.stomp.dto.StompMessage;
+
+/**
+ * Header lists of StompProvider#sendMessageTo, built per frame or taken from the template cache
+ **/
+@State(Scope.Benchmark)
+public class SendHeadersBenchmark {
+    private static final String DESTINATION = "/app/sendMessage/android";
+
+    @Param({"0", "2", "8"})
+    public int headerCount;
+
+    @Param({"false", "true"})
+    public boolean receipt;
+
+    private Map<String, String> header;
+    private String body;
+    private SendHeaders templates;
+
+    @Setup
+    public void setup() {
+        header = headerCount == 0 ? null : new HashMap<String, String>();
+        for (int i = 0; i < headerCount; i++) {
+            header.put("x-header-" + i, "value-" + i);
+        }
+        body = Payloads.message(MessageShape.FULL, 32, 0);
+        templates = new SendHeaders();
+    }
+
+    @Benchmark
+    public List<StompHeader> build() {
+        List<StompHeader> headers = SendHeaders.build(DESTINATION, header, receipt ? 1 : 0);
+        if (receipt) {
+            headers.add(new StompHeader("receipt", "jstomp-1"));
+        }
+        return headers;
+    }
+
+    @Benchmark
+    public String buildAndCompile() {
+        return new StompMessage(StompCommand.SEND, build(), body).compile();
+    }
+
+    @Benchmark
+    public List<StompHeader> cached() {
+        List<StompHeader> headers = templates.get(DESTINATION, header);
+        if (receipt) {
+            headers = SendHeaders.with(headers, new StompHeader("receipt", "jstomp-1"));
+        }
+        return headers;
+    }
+
+    @Benchmark
+    public String cachedAndCompile() {
+        return new StompMessage(StompCommand.SEND, cached(), body).compile();
+    }
+}
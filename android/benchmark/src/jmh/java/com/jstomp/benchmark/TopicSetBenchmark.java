@@ -0,0 +1,58 @@
+package com.jstomp.benchmark;
+
+import com.jstomp.provider.StompConfig;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Subscription address bookkeeping of StompConfig, done on every subscribe and every reconnect
+ **/
+@State(Scope.Benchmark)
+public class TopicSetBenchmark {
+
+    @Param({"1", "8", "64"})
+    public int topicCount;
+
+    private String[] topics;
+    private StompConfig config;
+
+    @Setup
+    public void setup() {
+        topics = Payloads.topics(topicCount);
+        config = new StompConfig("ws://localhost:9000/stomp", "/app/send").topicUrl(topics).broadcastUrl(topics);
+    }
+
+    /**
+     * A fresh configuration subscribing every address
+     */
+    @Benchmark
+    public StompConfig subscribeAll() {
+        return new StompConfig("ws://localhost:9000/stomp", "/app/send").topicUrl(topics);
+    }
+
+    /**
+     * Subscribing addresses that are already known, the dedupe path
+     */
+    @Benchmark
+    public StompConfig resubscribe() {
+        return config.topicUrl(topics);
+    }
+
+    /**
+     * Reading the addresses back as done by subscriber() and the restore pass after reconnect
+     */
+    @Benchmark
+    public void restorePass(Blackhole bh) {
+        for (String url : config.getTopicUrl().toArray(new String[0])) {
+            bh.consume(url);
+        }
+        for (String url : config.getTopicBroadcastUrl().toArray(new String[0])) {
+            bh.consume(url);
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package android.os;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * JVM stand-in for android.os.Debug
+ */
+public final class Debug {
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    private Debug() {
+    }
+
+    public static long threadCpuTimeNanos() {
+        return THREADS.isCurrentThreadCpuTimeSupported() ? THREADS.getCurrentThreadCpuTime() : -1;
+    }
+}
@@ -0,0 +1,13 @@
+package android.os;
+
+/**
+ * JVM stand-in for android.os.SystemClock
+ */
+public final class SystemClock {
+    private SystemClock() {
+    }
+
+    public static long elapsedRealtime() {
+        return System.nanoTime() / 1000000L;
+    }
+}
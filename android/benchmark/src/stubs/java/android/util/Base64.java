@@ -0,0 +1,22 @@
+package android.util;
+
+import java.util.Arrays;
+
+/**
+ * JVM stand-in for android.util.Base64, only the calls made by the plugin
+ */
+public final class Base64 {
+    public static final int DEFAULT = 0;
+    public static final int NO_WRAP = 2;
+
+    private Base64() {
+    }
+
+    public static String encodeToString(byte[] input, int offset, int len, int flags) {
+        return java.util.Base64.getEncoder().encodeToString(Arrays.copyOfRange(input, offset, offset + len));
+    }
+
+    public static byte[] decode(String str, int flags) {
+        return java.util.Base64.getMimeDecoder().decode(str);
+    }
+}
@@ -0,0 +1,15 @@
+package ua.naiksoftware.stomp.dto;
+
+/**
+ * JVM stand-in for the stomp library commands
+ */
+public class StompCommand {
+    public static final String CONNECT = "CONNECT";
+    public static final String CONNECTED = "CONNECTED";
+    public static final String SEND = "SEND";
+    public static final String MESSAGE = "MESSAGE";
+    public static final String SUBSCRIBE = "SUBSCRIBE";
+    public static final String UNSUBSCRIBE = "UNSUBSCRIBE";
+    public static final String DISCONNECT = "DISCONNECT";
+    public static final String ERROR = "ERROR";
+}
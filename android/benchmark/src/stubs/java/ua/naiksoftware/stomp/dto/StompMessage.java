@@ -0,0 +1,60 @@
+package ua.naiksoftware.stomp.dto;
+
+import java.util.List;
+
+/**
+ * JVM stand-in for the stomp library message, same shape as StompProtocolAndroid 1.6.4
+ */
+public class StompMessage {
+    public static final String TERMINATE_MESSAGE_SYMBOL = "\u0000";
+
+    private final String mStompCommand;
+    private final List<StompHeader> mStompHeaders;
+    private final String mPayload;
+
+    public StompMessage(String stompCommand, List<StompHeader> stompHeaders, String payload) {
+        mStompCommand = stompCommand;
+        mStompHeaders = stompHeaders;
+        mPayload = payload;
+    }
+
+    public List<StompHeader> getStompHeaders() {
+        return mStompHeaders;
+    }
+
+    public String getPayload() {
+        return mPayload;
+    }
+
+    public String getStompCommand() {
+        return mStompCommand;
+    }
+
+    public String findHeader(String key) {
+        if (mStompHeaders == null) {
+            return null;
+        }
+        for (StompHeader header : mStompHeaders) {
+            if (header.getKey().equals(key)) {
+                return header.getValue();
+            }
+        }
+        return null;
+    }
+
+    public String compile() {
+        StringBuilder builder = new StringBuilder();
+        builder.append(mStompCommand).append('\n');
+        if (mStompHeaders != null) {
+            for (StompHeader header : mStompHeaders) {
+                builder.append(header.getKey()).append(':').append(header.getValue()).append('\n');
+            }
+        }
+        builder.append('\n');
+        if (mPayload != null) {
+            builder.append(mPayload);
+        }
+        builder.append(TERMINATE_MESSAGE_SYMBOL);
+        return builder.toString();
+    }
+}
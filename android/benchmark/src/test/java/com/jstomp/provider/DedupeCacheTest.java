@@ -0,0 +1,63 @@
+package com.jstomp.provider;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DedupeCacheTest {
+
+    @Test
+    public void idIsDuplicateWithinItsGeneration() {
+        DedupeCache cache = new DedupeCache(16, 60 * 1000);
+        assertFalse(cache.isDuplicate("a"));
+        assertTrue(cache.isDuplicate("a"));
+        assertFalse(cache.isDuplicate("b"));
+        assertFalse(cache.isDuplicate(null));
+        assertEquals(3, cache.getCheckedCount());
+        assertEquals(1, cache.getDroppedCount());
+    }
+
+    @Test
+    public void idIsRememberedForOneMoreGeneration() {
+        DedupeCache cache = new DedupeCache(4, 60 * 1000);
+        for (String id : new String[]{"a", "b", "c", "d"}) {
+            assertFalse(cache.isDuplicate(id));
+        }
+        //The full generation is retired, its ids are still known
+        assertFalse(cache.isDuplicate("e"));
+        assertTrue(cache.isDuplicate("a"));
+        assertTrue(cache.isDuplicate("d"));
+        for (String id : new String[]{"f", "g", "h"}) {
+            assertFalse(cache.isDuplicate(id));
+        }
+        //Two generations later they are forgotten
+        assertFalse(cache.isDuplicate("i"));
+        assertFalse(cache.isDuplicate("a"));
+        assertTrue(cache.isDuplicate("e"));
+    }
+
+    @Test
+    public void generationsExpireWithTheWindow() throws Exception {
+        DedupeCache cache = new DedupeCache(1024, 50);
+        assertFalse(cache.isDuplicate("a"));
+        Thread.sleep(70);
+        //Retired by age into the previous generation
+        assertTrue(cache.isDuplicate("a"));
+        Thread.sleep(120);
+        //Both generations are out of the window
+        assertFalse(cache.isDuplicate("a"));
+    }
+
+    @Test
+    public void clearForgetsEverything() {
+        DedupeCache cache = new DedupeCache(4, 60 * 1000);
+        for (String id : new String[]{"a", "b", "c", "d", "e"}) {
+            cache.isDuplicate(id);
+        }
+        cache.clear();
+        assertFalse(cache.isDuplicate("a"));
+        assertFalse(cache.isDuplicate("e"));
+    }
+}
@@ -0,0 +1,95 @@
+package com.jstomp.provider;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MessageStoreTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private MessageStore store;
+
+    @After
+    public void tearDown() {
+        store.close();
+    }
+
+    private static String json(String group, String id, String content) {
+        return "{\"id\":\"" + id + "\",\"microGroupId\":\"" + group + "\",\"content\":\"" + content + "\",\"type\":0}";
+    }
+
+    /**
+     * Wait for the writes queued before
+     */
+    private void flush() throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        store.execute(new Runnable() {
+            @Override
+            public void run() {
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+    }
+
+    private static int indexFiles(File dir) {
+        File[] files = dir.listFiles();
+        int count = 0;
+        for (File f : files) {
+            if (f.getName().endsWith(".idx")) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Test
+    public void deletedSegmentsTakeTheirIndexEntries() throws Exception {
+        File dir = folder.newFolder("store");
+        long maxBytes = 2L * MessageStore.SEGMENT_SIZE;
+        store = new MessageStore(dir, maxBytes);
+        char[] chars = new char[16 * 1024];
+        Arrays.fill(chars, 'x');
+        String content = new String(chars);
+        //"old" fills the first segment, "both" has messages in every segment
+        int perSegment = MessageStore.SEGMENT_SIZE / content.length();
+        for (int i = 0; i < perSegment; i++) {
+            store.append(MessageStore.DIRECTION_IN, 0, json("old", "old-" + i, content));
+        }
+        int total = 4 * perSegment;
+        for (int i = 0; i < total; i++) {
+            store.append(MessageStore.DIRECTION_IN, 0, json("both", "both-" + i, content));
+        }
+        flush();
+
+        //The segments of "old" are gone with its index file
+        assertEquals(0, store.count("old"));
+        assertEquals(1, indexFiles(dir));
+        assertTrue("size " + store.getSize(), store.getSize() <= maxBytes + MessageStore.SEGMENT_SIZE);
+
+        //Every indexed message of "both" is still there, so pages are full
+        int left = store.count("both");
+        assertTrue(left > 0 && left < total);
+        List<Map<String, Object>> latest = store.latest("both", 10);
+        assertEquals(10, latest.size());
+        assertEquals("both-" + (total - 1), latest.get(9).get("id"));
+        String oldest = "both-" + (total - left);
+        assertEquals(oldest, store.latest("both", left).get(0).get("id"));
+        List<Map<String, Object>> before = store.before("both", "both-" + (total - left + 5), 10);
+        assertEquals(5, before.size());
+        assertEquals(oldest, before.get(0).get("id"));
+    }
+}
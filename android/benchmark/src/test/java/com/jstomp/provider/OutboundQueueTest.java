@@ -0,0 +1,392 @@
+package com.jstomp.provider;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import io.reactivex.Completable;
+import io.reactivex.subjects.CompletableSubject;
+import ua.naiksoftware.stomp.dto.StompCommand;
+import ua.naiksoftware.stomp.dto.StompHeader;
+import ua.naiksoftware.stomp.dto.StompMessage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class OutboundQueueTest {
+
+    private OutboundQueue queue;
+
+    @After
+    public void tearDown() {
+        if (queue != null) {
+            queue.stop();
+        }
+    }
+
+    /**
+     * Transport recording the messages it writes, one frame at a time. Writes complete at once
+     * unless held, and nothing is taken while it is closed
+     */
+    private static final class Recorder implements OutboundQueue.Transport {
+        final List<StompMessage> written = Collections.synchronizedList(new ArrayList<StompMessage>());
+        final List<CompletableSubject> held = Collections.synchronizedList(new ArrayList<CompletableSubject>());
+        volatile boolean hold = false;
+        volatile boolean open = true;
+
+        @Override
+        public Completable send(StompMessage message) {
+            written.add(message);
+            if (!hold) {
+                return Completable.complete();
+            }
+            CompletableSubject subject = CompletableSubject.create();
+            held.add(subject);
+            return subject;
+        }
+
+        @Override
+        public boolean canSendFrames() {
+            return false;
+        }
+
+        @Override
+        public Completable sendFrames(String frames) {
+            return Completable.complete();
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        List<String> bodies() {
+            List<String> bodies = new ArrayList<>();
+            synchronized (written) {
+                for (StompMessage message : written) {
+                    bodies.add(message.getPayload());
+                }
+            }
+            return bodies;
+        }
+
+        void release() {
+            List<CompletableSubject> subjects;
+            synchronized (held) {
+                subjects = new ArrayList<>(held);
+                held.clear();
+            }
+            for (CompletableSubject subject : subjects) {
+                subject.onComplete();
+            }
+        }
+    }
+
+    /**
+     * Send results by status
+     */
+    private static final class Results implements OutboundQueue.OnSendResultListener {
+        final List<StompMessage> sent = Collections.synchronizedList(new ArrayList<StompMessage>());
+        final List<StompMessage> failed = Collections.synchronizedList(new ArrayList<StompMessage>());
+
+        @Override
+        public void onSendResult(int status, StompMessage message, Throwable error) {
+            (status == StompConfig.STOMP_SEND_SUCCESS ? sent : failed).add(message);
+        }
+    }
+
+    private static StompMessage message(String body) {
+        return message("/app/test", body);
+    }
+
+    private static StompMessage message(String destination, String body) {
+        List<StompHeader> headers = new ArrayList<>();
+        headers.add(new StompHeader(StompHeader.DESTINATION, destination));
+        return new StompMessage(StompCommand.SEND, headers, body);
+    }
+
+    private static String body(char c, int length) {
+        char[] chars = new char[length];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+
+    private static void awaitSize(List<?> list, int size, long millis) throws InterruptedException {
+        long end = System.currentTimeMillis() + millis;
+        while (list.size() < size && System.currentTimeMillis() < end) {
+            Thread.sleep(1);
+        }
+    }
+
+    @Test
+    public void messagesOfALaneKeepTheirOrder() throws Exception {
+        Recorder transport = new Recorder();
+        Results results = new Results();
+        queue = new OutboundQueue(0, 4, transport, results);
+        queue.start();
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            expected.add(String.valueOf(i));
+            assertTrue(queue.offer(message(String.valueOf(i))));
+        }
+
+        awaitSize(results.sent, 200, 5000);
+        assertEquals(expected, transport.bodies());
+        assertEquals(0, queue.getQueueDepth());
+    }
+
+    @Test
+    public void lanesAreTakenByWeight() throws Exception {
+        Recorder transport = new Recorder();
+        transport.open = false;
+        Results results = new Results();
+        queue = new OutboundQueue(0, 1, transport, results);
+        queue.start();
+        //Queued while closed, so the writer sees every lane full
+        for (int i = 0; i < 13; i++) {
+            assertTrue(queue.offer(message("bulk-" + i), OutboundQueue.LANE_BULK));
+            assertTrue(queue.offer(message("interactive-" + i), OutboundQueue.LANE_INTERACTIVE));
+            assertTrue(queue.offer(message("control-" + i), OutboundQueue.LANE_CONTROL));
+        }
+        transport.open = true;
+        queue.onTransportOpen();
+
+        awaitSize(results.sent, 39, 5000);
+        List<String> bodies = transport.bodies();
+        //One round of the weights 8, 4 and 1
+        int control = 0;
+        int interactive = 0;
+        int bulk = 0;
+        for (String body : bodies.subList(0, 13)) {
+            if (body.startsWith("control")) {
+                control++;
+            } else if (body.startsWith("interactive")) {
+                interactive++;
+            } else {
+                bulk++;
+            }
+        }
+        assertEquals(8, control);
+        assertEquals(4, interactive);
+        assertEquals(1, bulk);
+        assertEquals("control-0", bodies.get(0));
+        //Each lane stays in order
+        int next = 0;
+        for (String body : bodies) {
+            if (body.startsWith("bulk")) {
+                assertEquals("bulk-" + next++, body);
+            }
+        }
+        assertEquals(13, next);
+    }
+
+    @Test
+    public void nothingIsWrittenWhileClosed() throws Exception {
+        Recorder transport = new Recorder();
+        transport.open = false;
+        Results results = new Results();
+        queue = new OutboundQueue(0, 0, transport, results);
+        queue.start();
+        assertTrue(queue.offer(message("waiting")));
+        Thread.sleep(50);
+        assertTrue(transport.written.isEmpty());
+        assertEquals(1, queue.getQueueDepth());
+
+        transport.open = true;
+        queue.onTransportOpen();
+        awaitSize(results.sent, 1, 5000);
+        assertEquals(Collections.singletonList("waiting"), transport.bodies());
+    }
+
+    @Test
+    public void inFlightIsLimited() throws Exception {
+        Recorder transport = new Recorder();
+        transport.hold = true;
+        Results results = new Results();
+        queue = new OutboundQueue(0, 4, transport, results);
+        queue.start();
+        for (int i = 0; i < 10; i++) {
+            assertTrue(queue.offer(message(String.valueOf(i))));
+        }
+
+        awaitSize(transport.written, 4, 5000);
+        Thread.sleep(50);
+        assertEquals(4, transport.written.size());
+        assertEquals(4, queue.getInFlight());
+
+        transport.hold = false;
+        transport.release();
+        awaitSize(results.sent, 10, 5000);
+        assertEquals(10, results.sent.size());
+        assertEquals(0, queue.getInFlight());
+    }
+
+    @Test
+    public void stopFailsMessagesInFlight() throws Exception {
+        Recorder transport = new Recorder();
+        transport.hold = true;
+        Results results = new Results();
+        queue = new OutboundQueue(0, 0, transport, results);
+        queue.start();
+        StompMessage message = message("never confirmed");
+        assertTrue(queue.offer(message));
+        awaitSize(transport.written, 1, 5000);
+
+        queue.stop();
+        assertEquals(Collections.singletonList(message), results.failed);
+        assertEquals(0, queue.getInFlight());
+        //A late completion is not reported again
+        transport.release();
+        assertTrue(results.sent.isEmpty());
+    }
+
+    @Test
+    public void stopFailsQueuedAndChunkedMessages() throws Exception {
+        Recorder transport = new Recorder();
+        transport.hold = true;
+        Results results = new Results();
+        queue = new OutboundQueue(0, 1, transport, results);
+        queue.setChunkSize(256);
+        queue.start();
+        StompMessage large = message(body('x', 256 * 10));
+        assertTrue(queue.offer(large));
+        //The first fragment holds the only in-flight slot, the rest wait with the small ones
+        awaitSize(transport.written, 1, 5000);
+        StompMessage first = message("first");
+        StompMessage second = message("second");
+        assertTrue(queue.offer(first));
+        assertTrue(queue.offer(second));
+        Thread.sleep(50);
+
+        queue.stop();
+        assertEquals(3, results.failed.size());
+        assertTrue(results.failed.containsAll(Arrays.asList(large, first, second)));
+        assertEquals(0, queue.getQueueDepth());
+        transport.release();
+        assertTrue(results.sent.isEmpty());
+        assertEquals(1, transport.written.size());
+    }
+
+    @Test
+    public void chunkedMessageIsReassembled() throws Exception {
+        Recorder transport = new Recorder();
+        Results results = new Results();
+        queue = new OutboundQueue(0, 0, transport, results);
+        queue.setChunkSize(256);
+        queue.start();
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; text.length() < 256 * 10 + 17; i++) {
+            text.append(i).append(',');
+        }
+        List<StompHeader> headers = new ArrayList<>();
+        headers.add(new StompHeader(StompHeader.DESTINATION, "/app/test"));
+        headers.add(new StompHeader(ReceiptTracker.HEADER_RECEIPT, "r-1"));
+        StompMessage original = new StompMessage(StompCommand.SEND, headers, text.toString());
+        assertTrue(queue.offer(original));
+
+        awaitSize(results.sent, 1, 5000);
+        List<StompMessage> fragments = new ArrayList<>(transport.written);
+        assertEquals(11, fragments.size());
+        for (int i = 0; i < fragments.size() - 1; i++) {
+            //Only the last fragment asks for the receipt
+            assertNull(fragments.get(i).findHeader(ReceiptTracker.HEADER_RECEIPT));
+        }
+        //Fragments may arrive in any order
+        Collections.reverse(fragments);
+        ChunkAssembler assembler = new ChunkAssembler();
+        StompMessage joined = null;
+        for (StompMessage fragment : fragments) {
+            StompMessage result = assembler.add(fragment);
+            if (result != null) {
+                joined = result;
+            }
+        }
+        assertNotNull(joined);
+        assertEquals(original.getPayload(), joined.getPayload());
+        assertEquals("/app/test", joined.findHeader(StompHeader.DESTINATION));
+        assertEquals("r-1", joined.findHeader(ReceiptTracker.HEADER_RECEIPT));
+        assertNull(joined.findHeader(OutboundQueue.HEADER_CHUNK_ID));
+        assertEquals(Collections.singletonList(original), results.sent);
+    }
+
+    @Test
+    public void fragmentNextToFullBatchDoesNotDeadlock() throws Exception {
+        final CompletableSubject first = CompletableSubject.create();
+        final List<String> written = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch results = new CountDownLatch(3);
+        queue = new OutboundQueue(0, 1, new OutboundQueue.Transport() {
+            @Override
+            public Completable send(StompMessage message) {
+                written.add(message.getPayload());
+                //The first write holds the only in-flight slot until released
+                return written.size() == 1 ? first : Completable.complete();
+            }
+
+            @Override
+            public boolean canSendFrames() {
+                return false;
+            }
+
+            @Override
+            public Completable sendFrames(String frames) {
+                return Completable.complete();
+            }
+        }, new OutboundQueue.OnSendResultListener() {
+            @Override
+            public void onSendResult(int status, StompMessage message, Throwable error) {
+                assertEquals(StompConfig.STOMP_SEND_SUCCESS, status);
+                results.countDown();
+            }
+        });
+        queue.setChunkSize(256);
+        queue.start();
+        assertTrue(queue.offer(message("first")));
+        while (written.isEmpty()) {
+            Thread.sleep(1);
+        }
+        //Both are taken while fragments of the large one are pending
+        assertTrue(queue.offer(message(body('x', 256 * 10))));
+        assertTrue(queue.offer(message("small")));
+        Thread.sleep(50);
+        first.onComplete();
+
+        assertTrue("writer blocked", results.await(5, TimeUnit.SECONDS));
+        assertTrue(written.contains("small"));
+        assertEquals(0, queue.getInFlight());
+    }
+
+    @Test
+    public void throttledDestinationDoesNotHoldBackOthers() throws Exception {
+        Recorder transport = new Recorder();
+        Results results = new Results();
+        queue = new OutboundQueue(0, 0, transport, results);
+        //One message per second to a destination, no connection limit
+        queue.setRateLimiter(new RateLimiter(0, 0, 1, 1));
+        queue.start();
+        assertTrue(queue.offer(message("/app/slow", "slow-1")));
+        assertTrue(queue.offer(message("/app/slow", "slow-2")));
+        assertTrue(queue.offer(message("/app/slow", "slow-3")));
+        assertTrue(queue.offer(message("/app/fast", "fast")));
+        assertTrue(queue.offer(message("/app/control", "control"), OutboundQueue.LANE_CONTROL));
+
+        awaitSize(transport.written, 3, 500);
+        Thread.sleep(100);
+        List<String> bodies = transport.bodies();
+        assertEquals(3, bodies.size());
+        assertTrue(bodies.contains("slow-1"));
+        assertTrue(bodies.contains("fast"));
+        assertTrue(bodies.contains("control"));
+
+        //The held back ones follow at the destination rate, in order
+        awaitSize(transport.written, 5, 5000);
+        assertEquals(Arrays.asList("slow-2", "slow-3"), transport.bodies().subList(3, 5));
+    }
+}
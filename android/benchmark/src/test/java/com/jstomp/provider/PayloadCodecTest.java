@@ -0,0 +1,54 @@
+package com.jstomp.provider;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import ua.naiksoftware.stomp.dto.StompCommand;
+import ua.naiksoftware.stomp.dto.StompHeader;
+import ua.naiksoftware.stomp.dto.StompMessage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class PayloadCodecTest {
+
+    private static StompMessage message(String body) {
+        return new StompMessage(StompCommand.MESSAGE, new ArrayList<StompHeader>(), body);
+    }
+
+    private static String body(int length) {
+        char[] chars = new char[length];
+        Arrays.fill(chars, 'a');
+        return new String(chars);
+    }
+
+    @Test
+    public void compressedBodyIsInflated() {
+        PayloadCodec codec = new PayloadCodec();
+        codec.configure(true, 0);
+        String text = body(200 * 1024);
+        StompMessage encoded = codec.encode(message(text));
+        assertEquals(PayloadCodec.ENCODING_DEFLATE, encoded.findHeader(PayloadCodec.HEADER_CONTENT_ENCODING));
+
+        StompMessage decoded = codec.decode(encoded);
+        assertEquals(text, decoded.getPayload());
+        assertNull(decoded.findHeader(PayloadCodec.HEADER_CONTENT_ENCODING));
+    }
+
+    @Test
+    public void bodyInflatingPastTheCapIsNotDecoded() {
+        PayloadCodec codec = new PayloadCodec();
+        codec.configure(true, 0);
+        //A few kilobytes on the wire
+        StompMessage bomb = codec.encode(message(body(PayloadCodec.MAX_INFLATED_SIZE + 1)));
+
+        assertSame(bomb, codec.decode(bomb));
+        assertEquals(1L, codec.snapshot().get("inflateErrors"));
+        //The codec goes on decoding
+        StompMessage encoded = codec.encode(message(body(4096)));
+        assertEquals(body(4096), codec.decode(encoded).getPayload());
+    }
+}
@@ -0,0 +1,114 @@
+package com.jstomp.provider;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import ua.naiksoftware.stomp.dto.StompCommand;
+import ua.naiksoftware.stomp.dto.StompHeader;
+import ua.naiksoftware.stomp.dto.StompMessage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ReceiptTrackerTest {
+
+    private final List<Integer> statuses = Collections.synchronizedList(new ArrayList<Integer>());
+    private final List<Long> latencies = Collections.synchronizedList(new ArrayList<Long>());
+    private ReceiptTracker tracker;
+
+    @After
+    public void tearDown() {
+        tracker.release();
+    }
+
+    private ReceiptTracker tracker(long timeout) {
+        tracker = new ReceiptTracker(timeout, new ReceiptTracker.OnReceiptListener() {
+            @Override
+            public void onReceipt(int status, StompMessage message, long latency) {
+                statuses.add(status);
+                latencies.add(latency);
+            }
+        });
+        return tracker;
+    }
+
+    private static StompMessage message() {
+        return new StompMessage(StompCommand.SEND, new ArrayList<StompHeader>(), "body");
+    }
+
+    private static String receipt(String receiptId) {
+        return "RECEIPT\nreceipt-id:" + receiptId + "\n\n\u0000";
+    }
+
+    @Test
+    public void latencyStartsWhenTheFrameIsWritten() throws Exception {
+        ReceiptTracker tracker = tracker(10 * 1000);
+        String receiptId = tracker.nextReceiptId();
+        tracker.track(receiptId, message());
+        //Time in the send queue
+        Thread.sleep(200);
+        tracker.markWritten(receiptId);
+        tracker.onRawFrame(receipt(receiptId));
+
+        assertEquals(Collections.singletonList(StompConfig.STOMP_SEND_SUCCESS), statuses);
+        assertTrue("latency " + latencies.get(0), latencies.get(0) >= 0 && latencies.get(0) < 200);
+        assertEquals(0, tracker.getPendingCount());
+    }
+
+    @Test
+    public void failureBeforeTheWriteHasNoLatency() {
+        ReceiptTracker tracker = tracker(10 * 1000);
+        String receiptId = tracker.nextReceiptId();
+        tracker.track(receiptId, message());
+        tracker.fail(receiptId);
+
+        assertEquals(Collections.singletonList(StompConfig.STOMP_SEND_FAIL), statuses);
+        assertEquals(Collections.singletonList(-1L), latencies);
+    }
+
+    @Test
+    public void onlyWrittenFramesTimeOut() throws Exception {
+        ReceiptTracker tracker = tracker(100);
+        String queued = tracker.nextReceiptId();
+        String written = tracker.nextReceiptId();
+        tracker.track(queued, message());
+        tracker.track(written, message());
+        tracker.markWritten(written);
+        Thread.sleep(400);
+
+        assertEquals(Collections.singletonList(StompConfig.STOMP_SEND_FAIL), statuses);
+        assertEquals(1, tracker.getPendingCount());
+    }
+
+    @Test
+    public void replacingTrackerKeepsPendingReceipts() {
+        ReceiptTracker old = tracker(10 * 1000);
+        String receiptId = old.nextReceiptId();
+        old.track(receiptId, message());
+        ReceiptTracker replacement = tracker(20 * 1000);
+        old.moveTo(replacement);
+        old.release();
+
+        assertEquals(0, old.getPendingCount());
+        assertTrue(!receiptId.equals(replacement.nextReceiptId()));
+        replacement.onRawFrame(receipt(receiptId));
+        assertEquals(Collections.singletonList(StompConfig.STOMP_SEND_SUCCESS), statuses);
+    }
+
+    @Test
+    public void failAllEndsEveryPendingSend() {
+        ReceiptTracker tracker = tracker(10 * 1000);
+        tracker.track(tracker.nextReceiptId(), message());
+        tracker.track(tracker.nextReceiptId(), message());
+        tracker.failAll();
+
+        assertEquals(2, statuses.size());
+        assertEquals(StompConfig.STOMP_SEND_FAIL, (int) statuses.get(0));
+        assertEquals(StompConfig.STOMP_SEND_FAIL, (int) statuses.get(1));
+        assertEquals(0, tracker.getPendingCount());
+    }
+}
@@ -0,0 +1,81 @@
+package com.jstomp.provider;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class ReconnectSchedulerTest {
+
+    private ReconnectScheduler scheduler;
+
+    @After
+    public void tearDown() {
+        scheduler.release();
+    }
+
+    /**
+     * Connection whose attempts stay connecting until told otherwise
+     */
+    private static final class Connection implements ReconnectScheduler.Connector {
+        final AtomicInteger attempts = new AtomicInteger();
+        volatile boolean connecting = false;
+        volatile boolean connected = false;
+
+        @Override
+        public boolean isConnected() {
+            return connected;
+        }
+
+        @Override
+        public boolean isConnecting() {
+            return connecting;
+        }
+
+        @Override
+        public void reconnect() {
+            attempts.incrementAndGet();
+            connecting = true;
+        }
+    }
+
+    private static void awaitCount(AtomicInteger count, int value, long millis) throws InterruptedException {
+        long end = System.currentTimeMillis() + millis;
+        while (count.get() < value && System.currentTimeMillis() < end) {
+            Thread.sleep(1);
+        }
+    }
+
+    @Test
+    public void attemptStillConnectingIsNotReplaced() throws Exception {
+        Connection connection = new Connection();
+        scheduler = new ReconnectScheduler(new ReconnectPolicy() {
+            @Override
+            public long nextDelay(int attempt) {
+                return 10;
+            }
+        }, connection);
+        scheduler.start();
+        awaitCount(connection.attempts, 1, 5000);
+        //A slow handshake outlives many due attempts
+        Thread.sleep(200);
+        assertEquals(1, connection.attempts.get());
+        assertEquals(1, scheduler.getAttempt());
+
+        //It failed, the next attempt follows
+        connection.connecting = false;
+        awaitCount(connection.attempts, 2, 5000);
+        assertEquals(2, scheduler.getTotalAttempts());
+
+        connection.connected = true;
+        long end = System.currentTimeMillis() + 5000;
+        while (scheduler.isReconnecting() && System.currentTimeMillis() < end) {
+            Thread.sleep(1);
+        }
+        assertFalse(scheduler.isReconnecting());
+        assertEquals(1, scheduler.getReconnectCount());
+    }
+}
@@ -0,0 +1,89 @@
+package com.jstomp.provider;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class UserMessageDecoderTest {
+
+    private static final Gson GSON = new Gson();
+
+    /*Bodies Gson and the decoder must read alike, createTime is not numeric so it is kept as is*/
+    private static final String[] BODIES = {
+            "{\"content\":\"hello\",\"createId\":\"161691756546\",\"createName\":\"陈晨\","
+                    + "\"createTime\":\"2019-06-24 17:03:51\",\"headUrl\":\"https://example.com/h.png\","
+                    + "\"id\":\"1046324312976343042\",\"microGroupId\":\"1143049991384731649\","
+                    + "\"microGroupName\":\"group\",\"path\":\"\",\"obj\":\"\",\"type\":0}",
+            //Numbers and booleans where strings are expected, a quoted number for an int
+            "{\"id\":1046324312976343042,\"createId\":12,\"content\":true,\"type\":\"3\",\"status\":-1}",
+            //Unknown fields of every kind are skipped
+            "{\"extra\":{\"a\":[1,2,{\"b\":null}]},\"id\":\"x\",\"list\":[\"y\"],\"flag\":false,\"type\":-1}",
+            //Nulls, escapes and a missing type
+            "{\"id\":null,\"content\":\"line\\nbreak \\u4f60\\\"q\\\"\",\"localPath\":\"/sdcard/a.jpg\"}",
+            "{}",
+    };
+
+    private static String fields(UserMessageEntry msg) {
+        return GSON.toJson(msg);
+    }
+
+    @Test
+    public void decodesLikeGson() {
+        for (String body : BODIES) {
+            UserMessageEntry expected = GSON.fromJson(body, UserMessageEntry.class);
+            assertEquals(body, fields(expected), fields(UserMessageDecoder.decode(body)));
+        }
+    }
+
+    @Test
+    public void batchDecodesLikeOneByOne() {
+        List<String> bodies = Arrays.asList(BODIES);
+        List<UserMessageEntry> batch = UserMessageDecoder.decodeAll(bodies);
+        assertEquals(bodies.size(), batch.size());
+        for (int i = 0; i < bodies.size(); i++) {
+            assertEquals(fields(UserMessageDecoder.decode(bodies.get(i))), fields(batch.get(i)));
+        }
+    }
+
+    @Test
+    public void badBodyInBatchComesBackNull() {
+        List<UserMessageEntry> batch = UserMessageDecoder.decodeAll(Arrays.asList(BODIES[0], "{\"type\":", BODIES[1]));
+        assertEquals(3, batch.size());
+        assertEquals(fields(UserMessageDecoder.decode(BODIES[0])), fields(batch.get(0)));
+        assertNull(batch.get(1));
+        assertEquals(fields(UserMessageDecoder.decode(BODIES[1])), fields(batch.get(2)));
+    }
+
+    @Test
+    public void rejectsWhatGsonRejects() {
+        for (String body : new String[]{"{\"type\":\"text\"}", "{\"id\":\"a\"", "[1]"}) {
+            try {
+                GSON.fromJson(body, UserMessageEntry.class);
+                fail("Gson accepted " + body);
+            } catch (JsonParseException expected) {
+                //Both must fail
+            }
+            try {
+                UserMessageDecoder.decode(body);
+                fail("decoder accepted " + body);
+            } catch (JsonParseException expected) {
+                //Both failed
+            }
+        }
+    }
+
+    @Test
+    public void numericCreateTimeIsFormatted() {
+        UserMessageEntry msg = UserMessageDecoder.decode("{\"createTime\":0}");
+        assertEquals(19, msg.getCreateTime().length());
+        assertEquals("2019-06-24 17:03:51", UserMessageDecoder.decode("{\"createTime\":\"2019-06-24 17:03:51\"}").getCreateTime());
+    }
+}
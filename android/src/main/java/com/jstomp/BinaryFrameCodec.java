@@ -0,0 +1,87 @@
+package com.jstomp;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Encodes inbound stomp messages for the binary channel.
+ * <p>
+ * Layout of one message, big endian:
+ * <pre>
+ * | kind (1 byte) | topic length (2 bytes) | topic (utf-8) | payload (utf-8) |
+ * </pre>
+ * The payload is encoded straight from the string into a direct buffer, so the only copy
+ * on the native side is the utf-8 encoding itself.
+ **/
+class BinaryFrameCodec {
+    /*Peer-to-peer message*/
+    static final byte KIND_P2P = 0;
+    /*Broadcast message*/
+    static final byte KIND_BROADCAST = 1;
+
+    private static final int HEADER_SIZE = 3;
+
+    private final CharsetEncoder encoder = Charset.forName("UTF-8").newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+    /**
+     * Encode a message into a direct buffer ready to be sent with BinaryCodec
+     *
+     * @param kind    {@link #KIND_P2P} or {@link #KIND_BROADCAST}
+     * @param topic   Subscription address the message arrived on
+     * @param payload Message body
+     * @return
+     */
+    synchronized ByteBuffer encode(byte kind, String topic, String payload) {
+        String t = topic == null ? "" : topic;
+        String p = payload == null ? "" : payload;
+        int topicLength = utf8Length(t);
+        if (topicLength > 0xFFFF) {
+            throw new IllegalArgumentException("Topic is too long: " + topicLength);
+        }
+        ByteBuffer buffer = ByteBuffer.allocateDirect(HEADER_SIZE + topicLength + utf8Length(p));
+        buffer.put(kind);
+        buffer.putShort((short) topicLength);
+        encodeTo(t, buffer);
+        encodeTo(p, buffer);
+        buffer.flip();
+        return buffer;
+    }
+
+    private void encodeTo(String s, ByteBuffer buffer) {
+        if (s.isEmpty()) {
+            return;
+        }
+        encoder.reset();
+        encoder.encode(CharBuffer.wrap(s), buffer, true);
+        encoder.flush(buffer);
+    }
+
+    /**
+     * Number of bytes the string takes in utf-8, computed without allocating
+     *
+     * @param s
+     * @return
+     */
+    static int utf8Length(CharSequence s) {
+        int length = 0;
+        for (int i = 0, n = s.length(); i < n; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+}
@@ -1,15 +1,36 @@
 package com.jstomp;
 
 import android.app.Activity;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 
+import com.google.gson.JsonParseException;
+import com.jstomp.provider.BackoffReconnectPolicy;
+import com.jstomp.provider.ChunkAssembler;
+import com.jstomp.provider.DedupeCache;
+import com.jstomp.provider.InboundDispatcher;
+import com.jstomp.provider.MessageFilter;
+import com.jstomp.provider.MessageStore;
+import com.jstomp.provider.OutboundQueue;
+import com.jstomp.provider.OutboxJournal;
+import com.jstomp.provider.RateLimiter;
+import com.jstomp.provider.ReconnectScheduler;
 import com.jstomp.provider.StompConfig;
+import com.jstomp.provider.StompMetrics;
 import com.jstomp.provider.StompProvider;
+import com.jstomp.provider.UserMessageDecoder;
 import com.jstomp.provider.UserMessageEntry;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
+import io.flutter.plugin.common.BasicMessageChannel;
+import io.flutter.plugin.common.BinaryCodec;
+import io.flutter.plugin.common.BinaryMessenger;
 import io.flutter.plugin.common.MethodCall;
 import io.flutter.plugin.common.MethodChannel;
 import io.flutter.plugin.common.MethodChannel.MethodCallHandler;
@@ -27,13 +48,38 @@ import io.reactivex.plugins.RxJavaPlugins;
  * @describe Stomp Android plugin
  **/
 public class JStompPlugin implements MethodCallHandler {
+    /*Error code of the calls answered with data when they fail*/
+    private static final String CALL_ERROR = "JSTOMP_ERROR";
+
     private Activity activity;
 
     private MethodChannel channel;
 
+    /*Binary message channel, carries utf-8 payloads without the standard codec*/
+    private BasicMessageChannel<ByteBuffer> binaryChannel;
+
+    /*Creates the callback channels of named connections, null when only the default connection is served*/
+    private BinaryMessenger messenger;
+
+    /*Channel calls must be made on the main thread*/
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    /*Flutter side state of each connection, by name, main thread only*/
+    private final Map<String, Connection> connections = new HashMap<>();
+
     public JStompPlugin(Activity act, MethodChannel channel) {
+        this(act, channel, null);
+    }
+
+    public JStompPlugin(Activity act, MethodChannel channel, BasicMessageChannel<ByteBuffer> binaryChannel) {
+        this(act, null, channel, binaryChannel);
+    }
+
+    public JStompPlugin(Activity act, BinaryMessenger messenger, MethodChannel channel, BasicMessageChannel<ByteBuffer> binaryChannel) {
         this.activity = act;
+        this.messenger = messenger;
         this.channel = channel;
+        this.binaryChannel = binaryChannel;
         handlerRxError();
     }
 
@@ -56,26 +102,88 @@ public class JStompPlugin implements MethodCallHandler {
      */
     public static void registerWith(Registrar registrar) {
         final MethodChannel channel = new MethodChannel(registrar.messenger(), "jstomp");
-        channel.setMethodCallHandler(new JStompPlugin(registrar.activity(), channel));
+        final BasicMessageChannel<ByteBuffer> binaryChannel = new BasicMessageChannel<>(registrar.messenger(), "jstomp/binary", BinaryCodec.INSTANCE);
+        channel.setMethodCallHandler(new JStompPlugin(registrar.activity(), registrar.messenger(), channel, binaryChannel));
     }
 
     @Override
     public void onMethodCall(MethodCall call, Result result) {
         String method = call.method;
+        Connection conn = connection(call);
+        if (conn == null) {
+            failCall(method, result, "Unknown connection");
+            return;
+        }
         try {
             switch (method) {
                 case FlutterCall.INIT://initialization
                     String url = call.argument("url");
                     String sendUrl = call.argument("sendUrl");
-                    boolean b = init(url, sendUrl);
+                    StompConfig config = new StompConfig(url, sendUrl);
+                    Number capacity = call.argument("inboundCapacity");
+                    String strategy = call.argument("overflowStrategy");
+                    config.inboundQueue(capacity == null ? 0 : capacity.intValue(),
+                            strategy == null ? null : InboundDispatcher.OverflowStrategy.valueOf(strategy));
+                    Number outboundCapacity = call.argument("outboundCapacity");
+                    Number maxInFlight = call.argument("maxInFlight");
+                    config.outboundQueue(outboundCapacity == null ? 0 : outboundCapacity.intValue(),
+                            maxInFlight == null ? 0 : maxInFlight.intValue());
+                    config.coalesceFrames(Boolean.TRUE.equals(call.argument("coalesceFrames")));
+                    Number receiptTimeout = call.argument("receiptTimeout");
+                    config.receipt(Boolean.TRUE.equals(call.argument("receipt")),
+                            receiptTimeout == null ? 0 : receiptTimeout.longValue());
+                    config.outbox(Boolean.TRUE.equals(call.argument("outbox")));
+                    Number compressionThreshold = call.argument("compressionThreshold");
+                    config.compression(Boolean.TRUE.equals(call.argument("compression")),
+                            compressionThreshold == null ? 0 : compressionThreshold.intValue());
+                    Number chunkSize = call.argument("chunkSize");
+                    Number reassemblyTimeout = call.argument("reassemblyTimeout");
+                    config.chunking(chunkSize == null ? 0 : chunkSize.intValue(),
+                            reassemblyTimeout == null ? 0 : reassemblyTimeout.longValue());
+                    Number messageStoreSize = call.argument("messageStoreSize");
+                    config.messageStore(Boolean.TRUE.equals(call.argument("messageStore")),
+                            messageStoreSize == null ? 0 : messageStoreSize.longValue());
+                    Number dedupeCapacity = call.argument("dedupeCapacity");
+                    Number dedupeWindow = call.argument("dedupeWindow");
+                    config.dedupe(Boolean.TRUE.equals(call.argument("dedupe")),
+                            dedupeCapacity == null ? 0 : dedupeCapacity.intValue(),
+                            dedupeWindow == null ? 0 : dedupeWindow.longValue());
+                    Number idleTimeout = call.argument("idleTimeout");
+                    config.lazyConnect(Boolean.TRUE.equals(call.argument("lazyConnect")),
+                            idleTimeout == null ? 0 : idleTimeout.longValue());
+                    Number sendRate = call.argument("sendRate");
+                    Number sendBurst = call.argument("sendBurst");
+                    Number destinationSendRate = call.argument("destinationSendRate");
+                    Number destinationSendBurst = call.argument("destinationSendBurst");
+                    config.rateLimit(sendRate == null ? 0 : sendRate.doubleValue(),
+                            sendBurst == null ? 0 : sendBurst.intValue(),
+                            destinationSendRate == null ? 0 : destinationSendRate.doubleValue(),
+                            destinationSendBurst == null ? 0 : destinationSendBurst.intValue());
+                    Number flowHighWatermark = call.argument("flowHighWatermark");
+                    Number flowLowWatermark = call.argument("flowLowWatermark");
+                    config.flowControl(flowHighWatermark == null ? 0 : flowHighWatermark.longValue(),
+                            flowLowWatermark == null ? 0 : flowLowWatermark.longValue());
+                    Number clientHeartbeat = call.argument("clientHeartbeat");
+                    Number serverHeartbeat = call.argument("serverHeartbeat");
+                    config.heartbeat(clientHeartbeat == null ? 0 : clientHeartbeat.intValue(),
+                            serverHeartbeat == null ? 0 : serverHeartbeat.intValue());
+                    Number firstDelay = call.argument("reconnectFirstDelay");
+                    Number baseDelay = call.argument("reconnectBaseDelay");
+                    Number maxDelay = call.argument("reconnectMaxDelay");
+                    config.reconnectPolicy(new BackoffReconnectPolicy(
+                            firstDelay == null ? BackoffReconnectPolicy.DEFAULT_FIRST_DELAY : firstDelay.longValue(),
+                            baseDelay == null ? 0 : baseDelay.longValue(),
+                            maxDelay == null ? 0 : maxDelay.longValue()));
+                    conn.structured = Boolean.TRUE.equals(call.argument("structured"));
+                    boolean b = init(conn, config);
                     result.success(b);
                     break;
                 case FlutterCall.DESTROY: //Destroy, disconnect
-                    boolean d = destroy();
+                    boolean d = destroy(conn);
                     result.success(d);
                     break;
                 case FlutterCall.CONNECTION://connection
-                    boolean c = connection();
+                    boolean c = connection(conn);
                     result.success(c);
                     break;
                 case FlutterCall.SEND_MESSAGE: //Send a message
@@ -83,32 +191,117 @@ public class JStompPlugin implements MethodCallHandler {
                     if (call.hasArgument("header")) {
                         header = (Map<String, String>) call.argument("header");
                     }
-                    String str = sendMessage(call.argument("msg"), header);
+                    String priority = call.argument("priority");
+                    String str = sendMessage(conn, call.argument("msg"), call.argument("destination"), header,
+                            priority == null ? -1 : OutboundQueue.lane(priority));
                     result.success(str);
                     break;
                 case FlutterCall.SUBSCRIBER_P2P://Subscribe to p2p
-                    String[] urls = call.arguments.toString().split(",");
-                    boolean s = subscriberP2P(urls);
+                    String[] urls = plainArgument(call).toString().split(",");
+                    boolean s = subscriberP2P(conn, urls);
                     result.success(s);
                     break;
                 case FlutterCall.SUBSCRIBER_BROADCAST: //Subscribe to the broadcast
-                    String[] burls = call.arguments.toString().split(",");
-                    boolean sb = subscriberBroadcast(burls);
+                    String[] burls = plainArgument(call).toString().split(",");
+                    boolean sb = subscriberBroadcast(conn, burls);
                     result.success(sb);
                     break;
+                case FlutterCall.UNSUBSCRIBE_P2P://Unsubscribe from p2p
+                    String[] uurls = plainArgument(call).toString().split(",");
+                    result.success(unsubscribeP2P(conn, uurls));
+                    break;
+                case FlutterCall.UNSUBSCRIBE_BROADCAST://Unsubscribe from the broadcast
+                    String[] ubUrls = plainArgument(call).toString().split(",");
+                    result.success(unsubscribeBroadcast(conn, ubUrls));
+                    break;
                 case FlutterCall.MESSAGE_CALLBACK: //Set message callback
-                    boolean sm = setMessageCallback();
+                    boolean sm = setMessageCallback(conn);
                     result.success(sm);
                     break;
+                case FlutterCall.BATCH_MESSAGE_CALLBACK: //Set batch message callback
+                    Number interval = call.argument("flushInterval");
+                    Number size = call.argument("maxBatchSize");
+                    boolean bm = setBatchMessageCallback(conn,
+                            interval == null ? MessageBatcher.DEFAULT_FLUSH_INTERVAL : interval.longValue(),
+                            size == null ? MessageBatcher.DEFAULT_MAX_BATCH_SIZE : size.intValue());
+                    result.success(bm);
+                    break;
+                case FlutterCall.BINARY_MESSAGE_CALLBACK: //Set binary message callback
+                    boolean bin = setBinaryMessageCallback(conn);
+                    result.success(bin);
+                    break;
+                case FlutterCall.ADD_TOPIC_LISTENER: //Listen to one destination or pattern
+                    boolean at = addTopicListener(conn, (String) plainArgument(call));
+                    result.success(at);
+                    break;
+                case FlutterCall.REMOVE_TOPIC_LISTENER: //Stop listening to a destination or pattern
+                    boolean rt = removeTopicListener(conn, (String) plainArgument(call));
+                    result.success(rt);
+                    break;
+                case FlutterCall.ADD_MESSAGE_FILTER: //Filter received messages natively
+                    result.success(addMessageFilter(conn, call));
+                    break;
+                case FlutterCall.REMOVE_MESSAGE_FILTER: //Remove a message filter
+                    conn.provider().removeMessageFilter((String) plainArgument(call));
+                    result.success(true);
+                    break;
+                case FlutterCall.GET_OUTBOX: //Messages waiting in the outbox
+                    result.success(getOutbox(conn));
+                    break;
+                case FlutterCall.GET_MESSAGES: //Page of stored messages of a group
+                    Number limit = call.argument("limit");
+                    getMessages(conn, call.argument("microGroupId"), limit == null ? 20 : limit.intValue(),
+                            call.argument("beforeId"), call.argument("afterId"), result);
+                    break;
+                case FlutterCall.GET_STATS: //Metrics snapshot
+                    result.success(getStats(conn));
+                    break;
+                case FlutterCall.STATS_CALLBACK: //Push metrics periodically, interval 0 stops
+                    Number statsInterval = call.argument("interval");
+                    result.success(setStatsCallback(conn, statsInterval == null ? 0 : statsInterval.longValue()));
+                    break;
+                case FlutterCall.RECONNECT_STATS: //Reconnect statistics
+                    result.success(getReconnectStats(conn));
+                    break;
+                case FlutterCall.INBOUND_STATS: //Inbound dispatch queue statistics
+                    result.success(getInboundStats(conn));
+                    break;
                 case FlutterCall.SEND_CALLBACK: //Set the send callback
-                    boolean ss = setSendCallback();
+                    boolean ss = setSendCallback(conn);
                     result.success(ss);
                     break;
+                case FlutterCall.FLOW_CONTROL_CALLBACK: //Set the backpressure callback
+                    result.success(setFlowControlCallback(conn));
+                    break;
                 default:
                     break;
             }
         } catch (Exception e) {
-            result.success(Boolean.FALSE);
+            Log.e("JStompPlugin--", "Call " + method + " failed", e);
+            failCall(method, result, e.toString());
+        }
+    }
+
+    /**
+     * Answer a failed call. Calls answered with a list or a map report the error, flutter would
+     * otherwise get false where it expects data; the others get false
+     *
+     * @param method
+     * @param result
+     * @param error
+     */
+    private static void failCall(String method, Result result, String error) {
+        switch (method) {
+            case FlutterCall.GET_OUTBOX:
+            case FlutterCall.GET_MESSAGES:
+            case FlutterCall.GET_STATS:
+            case FlutterCall.RECONNECT_STATS:
+            case FlutterCall.INBOUND_STATS:
+                result.error(CALL_ERROR, error, null);
+                break;
+            default:
+                result.success(Boolean.FALSE);
+                break;
         }
     }
 
@@ -116,12 +309,11 @@ public class JStompPlugin implements MethodCallHandler {
     /**
      * Stomp initialization
      *
-     * @param url
-     * @param sendUrl
+     * @param config
      */
-    private boolean init(String url, String sendUrl) {
+    private boolean init(Connection conn, StompConfig config) {
         try {
-            return StompProvider.get().init(activity.getApplicationContext(), new StompConfig(url, sendUrl));
+            return conn.provider().init(activity.getApplicationContext(), config);
         } catch (Exception e) {
             e.printStackTrace();
             return false;
@@ -133,9 +325,13 @@ public class JStompPlugin implements MethodCallHandler {
      *
      * @return
      */
-    private boolean destroy() {
+    private boolean destroy(Connection conn) {
         try {
-            StompProvider.get().destroy();
+            releaseBatcher(conn);
+            setStatsCallback(conn, 0);
+            conn.topicListeners.clear();
+            conn.provider().destroy();
+            connections.remove(conn.name);
             return true;
         } catch (Exception e) {
             e.printStackTrace();
@@ -146,31 +342,31 @@ public class JStompPlugin implements MethodCallHandler {
     /**
      * Open connection
      */
-    private boolean connection() {
+    private boolean connection(final Connection conn) {
         try {
-            StompProvider.get().openConnection(new StompProvider.OnStompConnectionListener() {
+            conn.provider().openConnection(new StompProvider.OnStompConnectionListener() {
                 @Override
                 public void onConnectionOpened() {
                     //Connect open, notify flutter
-                    channel.invokeMethod(CallFlutter.ON_CONNECTION_OPENED, Boolean.TRUE);
+                    conn.channel.invokeMethod(CallFlutter.ON_CONNECTION_OPENED, Boolean.TRUE);
                 }
 
                 @Override
                 public void onConnectionError(String error) {
                     //Connection error, notify flutter
-                    channel.invokeMethod(CallFlutter.ON_CONNECTION_ERROR, error);
+                    conn.channel.invokeMethod(CallFlutter.ON_CONNECTION_ERROR, error);
                 }
 
                 @Override
                 public void onConnectionClosed() {
                     //Connection closed, notify flutter
-                    channel.invokeMethod(CallFlutter.ON_CONNECTION_CLOSED, Boolean.FALSE);
+                    conn.channel.invokeMethod(CallFlutter.ON_CONNECTION_CLOSED, Boolean.FALSE);
                 }
             });
             return true;
         } catch (Exception e) {
             //Connection error, notify flutter
-            channel.invokeMethod(CallFlutter.ON_CONNECTION_ERROR, e.getMessage());
+            conn.channel.invokeMethod(CallFlutter.ON_CONNECTION_ERROR, e.getMessage());
             return false;
         }
     }
@@ -180,9 +376,9 @@ public class JStompPlugin implements MethodCallHandler {
      *
      * @param url
      */
-    private boolean subscriberP2P(String[] url) {
+    private boolean subscriberP2P(Connection conn, String[] url) {
         try {
-            StompProvider.get().subscriber(url);
+            conn.provider().subscriber(url);
             return true;
         } catch (Exception e) {
             e.printStackTrace();
@@ -195,9 +391,39 @@ public class JStompPlugin implements MethodCallHandler {
      *
      * @param url
      */
-    private boolean subscriberBroadcast(String[] url) {
+    private boolean subscriberBroadcast(Connection conn, String[] url) {
         try {
-            StompProvider.get().subscriberBroadcast(url);
+            conn.provider().subscriberBroadcast(url);
+            return true;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Unsubscribe from p2p, the subscription closes when its last subscriber leaves
+     *
+     * @param url
+     */
+    private boolean unsubscribeP2P(Connection conn, String[] url) {
+        try {
+            conn.provider().unsubscribe(url);
+            return true;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Unsubscribe from the broadcast, the subscription closes when its last subscriber leaves
+     *
+     * @param url
+     */
+    private boolean unsubscribeBroadcast(Connection conn, String[] url) {
+        try {
+            conn.provider().unsubscribeBroadcast(url);
             return true;
         } catch (Exception e) {
             e.printStackTrace();
@@ -208,12 +434,14 @@ public class JStompPlugin implements MethodCallHandler {
     /**
      * Send a message
      *
-     * @param message Must be a json string
+     * @param message     Must be a json string
+     * @param destination Destination of the message, null for the configured send url
+     * @param lane        Send lane, -1 to pick it from the message type
      * @return
      */
-    private String sendMessage(String message, Map<String, String> header) {
+    private String sendMessage(Connection conn, String message, String destination, Map<String, String> header, int lane) {
         try {
-            StompProvider.get().sendMessage(message, header);
+            conn.provider().sendMessageTo(destination, message, header, lane);
             return message;
         } catch (Exception e) {
             e.printStackTrace();
@@ -226,19 +454,60 @@ public class JStompPlugin implements MethodCallHandler {
      *
      * @return
      */
-    private boolean setMessageCallback() {
+    private boolean setMessageCallback(final Connection conn) {
+        try {
+            releaseBatcher(conn);
+            conn.provider().setOnMessageListener(new StompProvider.OnMessageListener() {
+                @Override
+                public void onBroadcastMessage(String stompMsg, String topicUrl) {
+                    conn.invokeOnMain(CallFlutter.ON_BROAD_CAST, conn.payload(stompMsg));
+                }
+
+                @Override
+                public void onP2PMessage(String stompMsg, String topicUrl) {
+                    conn.invokeOnMain(CallFlutter.ON_MESSAGE, conn.payload(stompMsg));
+                }
+            });
+            return true;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Batch message listener, messages are collected natively and delivered as a list per flush window
+     *
+     * @param flushInterval Maximum time in milliseconds a message waits in the buffer
+     * @param maxBatchSize  Maximum number of messages per batch
+     * @return
+     */
+    private boolean setBatchMessageCallback(final Connection conn, long flushInterval, int maxBatchSize) {
         try {
-            StompProvider.get().setOnMessageListener(new StompProvider.OnMessageListener() {
+            releaseBatcher(conn);
+            final MessageBatcher messageBatcher = new MessageBatcher(flushInterval, maxBatchSize, new MessageBatcher.OnFlushListener() {
+                @Override
+                public void onFlush(List<Object> p2pMsg, List<Object> broadcastMsg) {
+                    if (!p2pMsg.isEmpty()) {
+                        conn.channel.invokeMethod(CallFlutter.ON_BATCH_MESSAGE, p2pMsg);
+                    }
+                    if (!broadcastMsg.isEmpty()) {
+                        conn.channel.invokeMethod(CallFlutter.ON_BATCH_BROAD_CAST, broadcastMsg);
+                    }
+                }
+            });
+            conn.provider().setOnMessageListener(new StompProvider.OnMessageListener() {
                 @Override
                 public void onBroadcastMessage(String stompMsg, String topicUrl) {
-                    channel.invokeMethod(CallFlutter.ON_BROAD_CAST, stompMsg);
+                    messageBatcher.addBroadcast(conn.payload(stompMsg));
                 }
 
                 @Override
                 public void onP2PMessage(String stompMsg, String topicUrl) {
-                    channel.invokeMethod(CallFlutter.ON_MESSAGE, stompMsg);
+                    messageBatcher.addP2P(conn.payload(stompMsg));
                 }
             });
+            conn.batcher = messageBatcher;
             return true;
         } catch (Exception e) {
             e.printStackTrace();
@@ -246,20 +515,386 @@ public class JStompPlugin implements MethodCallHandler {
         }
     }
 
+    /**
+     * Binary message listener, payloads go to flutter as utf-8 bytes over the binary channel
+     *
+     * @return
+     */
+    private boolean setBinaryMessageCallback(final Connection conn) {
+        if (conn.binaryChannel == null) {
+            return false;
+        }
+        try {
+            releaseBatcher(conn);
+            final BinaryFrameCodec codec = new BinaryFrameCodec();
+            conn.provider().setOnMessageListener(new StompProvider.OnMessageListener() {
+                @Override
+                public void onBroadcastMessage(String stompMsg, String topicUrl) {
+                    conn.sendBinaryOnMain(codec.encode(BinaryFrameCodec.KIND_BROADCAST, topicUrl, stompMsg));
+                }
+
+                @Override
+                public void onP2PMessage(String stompMsg, String topicUrl) {
+                    conn.sendBinaryOnMain(codec.encode(BinaryFrameCodec.KIND_P2P, topicUrl, stompMsg));
+                }
+            });
+            return true;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Destination listener, messages go to flutter together with the destination and the matched pattern
+     *
+     * @param pattern Destination, "*" matches one path segment and a trailing "**" the rest
+     * @return
+     */
+    private boolean addTopicListener(final Connection conn, String pattern) {
+        try {
+            if (conn.topicListeners.containsKey(pattern)) {
+                return true;
+            }
+            StompProvider.OnTopicMessageListener listener = new StompProvider.OnTopicMessageListener() {
+                @Override
+                public void onTopicMessage(String stompMsg, String topicUrl, String matched) {
+                    Map<String, Object> map = new HashMap<>();
+                    map.put("pattern", matched);
+                    map.put("topic", topicUrl);
+                    map.put("msg", conn.payload(stompMsg));
+                    conn.invokeOnMain(CallFlutter.ON_TOPIC_MESSAGE, map);
+                }
+            };
+            conn.topicListeners.put(pattern, listener);
+            conn.provider().addTopicListener(pattern, listener);
+            return true;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Remove a destination listener
+     *
+     * @param pattern
+     * @return
+     */
+    private boolean removeTopicListener(Connection conn, String pattern) {
+        StompProvider.OnTopicMessageListener listener = conn.topicListeners.remove(pattern);
+        if (listener != null) {
+            conn.provider().removeTopicListener(listener);
+        }
+        return listener != null;
+    }
+
+    /**
+     * Add a filter of received messages, filtered messages never cross the channel
+     *
+     * @param call id plus optional microGroupIds, types, excludeTypes, createIds and headers
+     * @return
+     */
+    private boolean addMessageFilter(Connection conn, MethodCall call) {
+        String id = call.argument("id");
+        if (id == null) {
+            return false;
+        }
+        MessageFilter filter = new MessageFilter(id);
+        List<String> microGroupIds = call.argument("microGroupIds");
+        if (microGroupIds != null) {
+            filter.microGroupIds(microGroupIds);
+        }
+        List<Number> types = call.argument("types");
+        if (types != null) {
+            filter.types(types);
+        }
+        List<Number> excludeTypes = call.argument("excludeTypes");
+        if (excludeTypes != null) {
+            filter.excludeTypes(excludeTypes);
+        }
+        List<String> createIds = call.argument("createIds");
+        if (createIds != null) {
+            filter.createIds(createIds);
+        }
+        Map<String, List<String>> headers = call.argument("headers");
+        if (headers != null) {
+            for (Map.Entry<String, List<String>> entry : headers.entrySet()) {
+                filter.header(entry.getKey(), entry.getValue());
+            }
+        }
+        conn.provider().addMessageFilter(filter);
+        return true;
+    }
+
+    /**
+     * Messages waiting in the outbox, in send order
+     *
+     * @return
+     */
+    private List<Map<String, Object>> getOutbox(Connection conn) {
+        List<Map<String, Object>> list = new ArrayList<>();
+        OutboxJournal outbox = conn.provider().getOutbox();
+        if (outbox == null) {
+            return list;
+        }
+        for (OutboxJournal.Entry entry : outbox.pending()) {
+            Map<String, Object> map = new HashMap<>();
+            map.put("msg", entry.message.getPayload());
+            map.put("status", entry.getStatus());
+            list.add(map);
+        }
+        return list;
+    }
+
+    /**
+     * Page of stored messages of a group, read on the store thread and answered on the main thread
+     *
+     * @param group    microGroupId
+     * @param limit    Maximum number of messages
+     * @param beforeId Page back from this message, may be null
+     * @param afterId  Page forward from this message, may be null
+     * @param result
+     */
+    private void getMessages(Connection conn, final String group, final int limit, final String beforeId, final String afterId, final Result result) {
+        final MessageStore store = conn.provider().getMessageStore();
+        if (store == null) {
+            result.success(new ArrayList<>());
+            return;
+        }
+        boolean queued = store.execute(new Runnable() {
+            @Override
+            public void run() {
+                List<Map<String, Object>> page = null;
+                String error = null;
+                try {
+                    if (beforeId != null) {
+                        page = store.before(group, beforeId, limit);
+                    } else if (afterId != null) {
+                        page = store.after(group, afterId, limit);
+                    } else {
+                        page = store.latest(group, limit);
+                    }
+                } catch (Exception e) {
+                    Log.e("JStompPlugin--", "Message store query failed", e);
+                    error = e.toString();
+                }
+                final List<Map<String, Object>> list = page;
+                final String failure = error;
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (failure != null) {
+                            failCall(FlutterCall.GET_MESSAGES, result, failure);
+                        } else {
+                            result.success(list);
+                        }
+                    }
+                });
+            }
+        });
+        if (!queued) {
+            result.success(new ArrayList<>());
+        }
+    }
+
+    /**
+     * Metrics snapshot: the registry's counters and histograms plus the inbound, outbound and
+     * reconnect statistics
+     *
+     * @return
+     */
+    private Map<String, Object> getStats(Connection conn) {
+        Map<String, Object> map = conn.provider().getMetrics().snapshot();
+        map.put("inbound", getInboundStats(conn));
+        map.put("outbound", getOutboundStats(conn));
+        map.put("reconnect", getReconnectStats(conn));
+        map.put("compression", conn.provider().getPayloadCodec().snapshot());
+        map.put("filters", conn.provider().getMessageFilters().snapshot());
+        return map;
+    }
+
+    /**
+     * Push the metrics snapshot to flutter periodically
+     *
+     * @param interval Milliseconds between pushes, 0 stops pushing
+     * @return
+     */
+    private boolean setStatsCallback(final Connection conn, final long interval) {
+        if (conn.statsPush != null) {
+            mainHandler.removeCallbacks(conn.statsPush);
+            conn.statsPush = null;
+        }
+        if (interval <= 0) {
+            return true;
+        }
+        conn.statsPush = new Runnable() {
+            @Override
+            public void run() {
+                conn.channel.invokeMethod(CallFlutter.ON_STATS, getStats(conn));
+                mainHandler.postDelayed(this, interval);
+            }
+        };
+        mainHandler.postDelayed(conn.statsPush, interval);
+        return true;
+    }
+
+    /**
+     * Outbound send engine statistics
+     *
+     * @return
+     */
+    private Map<String, Object> getOutboundStats(Connection conn) {
+        Map<String, Object> map = new HashMap<>();
+        OutboundQueue queue = conn.provider().getOutboundQueue();
+        if (queue == null) {
+            return map;
+        }
+        map.put("queueDepth", queue.getQueueDepth());
+        map.put("inFlight", queue.getInFlight());
+        map.put("maxInFlight", queue.getMaxInFlight());
+        map.put("sent", queue.getSentCount());
+        map.put("failed", queue.getFailedCount());
+        map.put("rejected", queue.getRejectedCount());
+        map.put("writes", queue.getWriteCount());
+        map.put("chunked", queue.getChunkedCount());
+        map.put("fragments", queue.getFragmentCount());
+        map.put("lanes", queue.laneSnapshot());
+        map.put("headerTemplates", conn.provider().getSendHeaders().snapshot());
+        map.put("queuedChars", queue.getQueuedChars());
+        map.put("writable", queue.isWritable());
+        RateLimiter limiter = queue.getRateLimiter();
+        if (limiter != null) {
+            map.put("rateLimit", limiter.snapshot());
+        }
+        return map;
+    }
+
+    /**
+     * Reconnect statistics, attempt counts and how long recoveries took
+     *
+     * @return
+     */
+    private Map<String, Object> getReconnectStats(Connection conn) {
+        Map<String, Object> map = new HashMap<>();
+        ReconnectScheduler scheduler = conn.provider().getReconnectScheduler();
+        map.put("reconnecting", scheduler.isReconnecting());
+        map.put("attempt", scheduler.getAttempt());
+        map.put("totalAttempts", scheduler.getTotalAttempts());
+        map.put("reconnects", scheduler.getReconnectCount());
+        map.put("lastTimeToReconnect", scheduler.getLastTimeToReconnect());
+        map.put("maxTimeToReconnect", scheduler.getMaxTimeToReconnect());
+        map.put("outageDuration", scheduler.getOutageDuration());
+        map.put("nextAttemptDelay", scheduler.getNextAttemptDelay());
+        map.put("subscriptions", conn.provider().getSubscriptionCount());
+        map.put("lastTimeToSubscribe", conn.provider().getLastTimeToSubscribe());
+        map.put("heartbeatInterval", conn.provider().getHeartbeatWatchdog().getInterval());
+        map.put("deadConnections", conn.provider().getHeartbeatWatchdog().getDeadCount());
+        map.put("parked", conn.provider().isParked());
+        map.put("lastResumeLatency", conn.provider().getLastResumeLatency());
+        return map;
+    }
+
+    /**
+     * Inbound dispatch queue statistics, used to size the queue under load
+     *
+     * @return
+     */
+    private Map<String, Object> getInboundStats(Connection conn) {
+        Map<String, Object> map = new HashMap<>();
+        InboundDispatcher dispatcher = conn.provider().getInboundDispatcher();
+        if (dispatcher == null) {
+            return map;
+        }
+        map.put("queueDepth", dispatcher.getQueueDepth());
+        map.put("maxQueueDepth", dispatcher.getMaxQueueDepth());
+        map.put("capacity", dispatcher.getCapacity());
+        map.put("strategy", dispatcher.getStrategy().name());
+        map.put("dropped", dispatcher.getDroppedCount());
+        map.put("dispatched", dispatcher.getDispatchedCount());
+        DedupeCache cache = conn.provider().getDedupeCache();
+        map.put("duplicates", cache == null ? 0 : cache.getDroppedCount());
+        ChunkAssembler assembler = conn.provider().getChunkAssembler();
+        map.put("assembled", assembler.getAssembledCount());
+        map.put("chunksExpired", assembler.getExpiredCount());
+        map.put("chunksDropped", assembler.getDroppedCount());
+        return map;
+    }
+
+    /**
+     * State of the connection a call is addressed to, the "connection" argument, default when absent
+     *
+     * @param call
+     * @return null when named connections are not supported
+     */
+    private Connection connection(MethodCall call) {
+        String name = null;
+        if (call.arguments instanceof Map) {
+            name = (String) ((Map) call.arguments).get("connection");
+        }
+        if (name == null || name.isEmpty()) {
+            name = StompProvider.DEFAULT_CONNECTION;
+        }
+        Connection conn = connections.get(name);
+        if (conn != null) {
+            return conn;
+        }
+        if (StompProvider.DEFAULT_CONNECTION.equals(name)) {
+            conn = new Connection(name, channel, binaryChannel);
+        } else if (messenger != null) {
+            //Callbacks of a named connection go to its own channels, with the same payloads
+            conn = new Connection(name, new MethodChannel(messenger, "jstomp/connection/" + name),
+                    new BasicMessageChannel<>(messenger, "jstomp/connection/" + name + "/binary", BinaryCodec.INSTANCE));
+        } else {
+            return null;
+        }
+        connections.put(name, conn);
+        return conn;
+    }
+
+    /**
+     * Argument of a call that takes a single value, sent as "value" next to "connection" for named connections
+     *
+     * @param call
+     * @return
+     */
+    private static Object plainArgument(MethodCall call) {
+        if (call.arguments instanceof Map) {
+            return ((Map) call.arguments).get("value");
+        }
+        return call.arguments;
+    }
+
+    /**
+     * Turn off batch mode and drop undelivered messages
+     */
+    private void releaseBatcher(Connection conn) {
+        if (conn.batcher != null) {
+            conn.batcher.release();
+            conn.batcher = null;
+        }
+    }
+
     /**
      * Add send success, failure listener
      *
      * @return
      */
-    private boolean setSendCallback() {
+    private boolean setSendCallback(final Connection conn) {
         try {
-            StompProvider.get().setOnMessageSendListener(new StompProvider.OnMessageSendListener() {
+            conn.provider().setOnMessageSendListener(new StompProvider.OnMessageSendListener() {
                 @Override
                 public void onSendMessage(int status, String userMsg, String tipsMsg) {
+                    onSendMessage(status, userMsg, tipsMsg, -1);
+                }
+
+                @Override
+                public void onSendMessage(int status, String userMsg, String tipsMsg, long latency) {
                     Map<String, Object> map = new HashMap();
                     map.put("msg", userMsg);
                     map.put("status", status);
-                    channel.invokeMethod(CallFlutter.ON_SEND, map);
+                    map.put("latency", latency);
+                    conn.invokeOnMain(CallFlutter.ON_SEND, map);
                 }
             });
             return true;
@@ -269,6 +904,124 @@ public class JStompPlugin implements MethodCallHandler {
         }
     }
 
+    /**
+     * Add the backpressure listener, Dart is told when sending should pause and may resume
+     *
+     * @return
+     */
+    private boolean setFlowControlCallback(final Connection conn) {
+        try {
+            conn.provider().setOnFlowControlListener(new StompProvider.OnFlowControlListener() {
+                @Override
+                public void onFlowControl(boolean writable, int queueDepth, long queuedChars) {
+                    Map<String, Object> map = new HashMap();
+                    map.put("writable", writable);
+                    map.put("queueDepth", queueDepth);
+                    map.put("queuedChars", queuedChars);
+                    conn.invokeOnMain(CallFlutter.ON_FLOW_CONTROL, map);
+                }
+            });
+            return true;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+
+    /**
+     * Flutter side state of one connection
+     */
+    private class Connection {
+        final String name;
+        final MethodChannel channel;
+        final BasicMessageChannel<ByteBuffer> binaryChannel;
+
+        /*Destination listeners registered from flutter, by pattern*/
+        final Map<String, StompProvider.OnTopicMessageListener> topicListeners = new HashMap<>();
+
+        /*Batch delivery of inbound messages, null when batch mode is off*/
+        MessageBatcher batcher;
+
+        /*Periodic stats push to flutter, null when off*/
+        Runnable statsPush;
+
+        /*Deliver messages as decoded maps instead of json strings*/
+        volatile boolean structured;
+
+        Connection(String name, MethodChannel channel, BasicMessageChannel<ByteBuffer> binaryChannel) {
+            this.name = name;
+            this.channel = channel;
+            this.binaryChannel = binaryChannel;
+        }
+
+        StompProvider provider() {
+            return StompProvider.get(name);
+        }
+
+        /**
+         * A received message as handed to flutter. In structured mode the json is decoded here, on
+         * the inbound dispatcher thread, so flutter gets a map and the UI isolate parses nothing
+         *
+         * @param stompMsg
+         * @return the map of {@link #parserMsg} in structured mode, otherwise or when the body is
+         * not a user message the json itself
+         */
+        Object payload(String stompMsg) {
+            if (!structured || stompMsg == null || stompMsg.isEmpty()) {
+                return stompMsg;
+            }
+            StompMetrics metrics = provider().getMetrics();
+            try {
+                UserMessageEntry entry = UserMessageDecoder.decode(stompMsg);
+                if (entry != null) {
+                    metrics.structuredDecoded.incrementAndGet();
+                    return parserMsg(entry);
+                }
+            } catch (JsonParseException e) {
+                //Not a user message, flutter gets the json
+            }
+            metrics.structuredFallbacks.incrementAndGet();
+            return stompMsg;
+        }
+
+        /**
+         * Call a flutter method on the main thread
+         *
+         * @param method
+         * @param arguments
+         */
+        void invokeOnMain(final String method, final Object arguments) {
+            if (Looper.myLooper() == Looper.getMainLooper()) {
+                channel.invokeMethod(method, arguments);
+                return;
+            }
+            mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    channel.invokeMethod(method, arguments);
+                }
+            });
+        }
+
+        /**
+         * Send a binary message on the main thread
+         *
+         * @param message
+         */
+        void sendBinaryOnMain(final ByteBuffer message) {
+            if (Looper.myLooper() == Looper.getMainLooper()) {
+                binaryChannel.send(message);
+                return;
+            }
+            mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    binaryChannel.send(message);
+                }
+            });
+        }
+    }
 
     /**
      * Define the method that flutter calls native
@@ -278,11 +1031,26 @@ public class JStompPlugin implements MethodCallHandler {
         static final String CONNECTION = "connection";
         static final String SUBSCRIBER_P2P = "subscriberP2P";
         static final String SUBSCRIBER_BROADCAST = "subscriberBroadcast";
+        static final String UNSUBSCRIBE_P2P = "unsubscribeP2P";
+        static final String UNSUBSCRIBE_BROADCAST = "unsubscribeBroadcast";
         static final String DESTROY = "destroy";
         static final String SEND_MESSAGE = "sendMessage";
 
         static final String MESSAGE_CALLBACK = "setMessageCallback";
+        static final String BATCH_MESSAGE_CALLBACK = "setBatchMessageCallback";
+        static final String BINARY_MESSAGE_CALLBACK = "setBinaryMessageCallback";
         static final String SEND_CALLBACK = "setSendCallback";
+        static final String FLOW_CONTROL_CALLBACK = "setFlowControlCallback";
+        static final String INBOUND_STATS = "getInboundStats";
+        static final String GET_OUTBOX = "getOutbox";
+        static final String GET_MESSAGES = "getMessages";
+        static final String RECONNECT_STATS = "getReconnectStats";
+        static final String GET_STATS = "getStats";
+        static final String STATS_CALLBACK = "setStatsCallback";
+        static final String ADD_TOPIC_LISTENER = "addTopicListener";
+        static final String REMOVE_TOPIC_LISTENER = "removeTopicListener";
+        static final String ADD_MESSAGE_FILTER = "addMessageFilter";
+        static final String REMOVE_MESSAGE_FILTER = "removeMessageFilter";
     }
 
     /**
@@ -295,7 +1063,12 @@ public class JStompPlugin implements MethodCallHandler {
 
         static final String ON_MESSAGE = "onMessage";
         static final String ON_BROAD_CAST = "onBroadcastMessage";
+        static final String ON_TOPIC_MESSAGE = "onTopicMessage";
+        static final String ON_BATCH_MESSAGE = "onBatchMessage";
+        static final String ON_BATCH_BROAD_CAST = "onBatchBroadcastMessage";
         static final String ON_SEND = "onSend";
+        static final String ON_FLOW_CONTROL = "onFlowControl";
+        static final String ON_STATS = "onStats";
     }
 
     /**
@@ -305,24 +1078,6 @@ public class JStompPlugin implements MethodCallHandler {
      * @return
      */
     private Map<String, Object> parserMsg(UserMessageEntry userMsg) {
-        Map<String, Object> map = new HashMap<>();
-        map.put("id", userMsg.getId());
-        map.put("content", userMsg.getContent());
-        map.put("createId", userMsg.getCreateId());
-        map.put("microGroupName", userMsg.getMicroGroupName());
-        map.put("createName", userMsg.getCreateName());
-        map.put("createTime", userMsg.getCreateTime());
-        map.put("headUrl", userMsg.getHeadUrl());
-        map.put("microGroupId", userMsg.getMicroGroupId());
-        map.put("path", userMsg.getPath());
-        map.put("localPath", userMsg.getLocalPath());
-        map.put("obj", userMsg.getObj());
-        map.put("type", userMsg.getType());
-
-        map.put("sendState", userMsg.getStatus());//send status
-        map.put("direct", 1);//accept
-        map.put("status", 1);//State, success
-        map.put("isCrowd", 0);
-        return map;
+        return UserMessageDecoder.toMap(userMsg);
     }
 }
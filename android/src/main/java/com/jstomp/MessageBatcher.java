@@ -0,0 +1,128 @@
+package com.jstomp;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Collects inbound stomp messages and hands them to flutter as one list per flush window,
+ * instead of one channel call per message.
+ * <p>
+ * A window is closed when {@link #flushInterval} ms have passed since its first message
+ * or when it holds {@link #maxBatchSize} messages, whichever comes first.
+ * The flush callback is always invoked on the main thread.
+ **/
+class MessageBatcher {
+    /*Default flush window, roughly one frame*/
+    static final long DEFAULT_FLUSH_INTERVAL = 16;
+    /*Default maximum number of messages per batch*/
+    static final int DEFAULT_MAX_BATCH_SIZE = 100;
+
+    /**
+     * Batch flush callback
+     */
+    interface OnFlushListener {
+        void onFlush(List<Object> p2pMsg, List<Object> broadcastMsg);
+    }
+
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final Object lock = new Object();
+    private final OnFlushListener listener;
+    private final long flushInterval;
+    private final int maxBatchSize;
+
+    private List<Object> p2pBuffer = new ArrayList<>();
+    private List<Object> broadcastBuffer = new ArrayList<>();
+    /*Whether a delayed flush has already been posted for the current window*/
+    private boolean scheduled = false;
+
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    MessageBatcher(long flushInterval, int maxBatchSize, OnFlushListener listener) {
+        this.flushInterval = flushInterval < 0 ? DEFAULT_FLUSH_INTERVAL : flushInterval;
+        this.maxBatchSize = maxBatchSize <= 0 ? DEFAULT_MAX_BATCH_SIZE : maxBatchSize;
+        this.listener = listener;
+    }
+
+    /**
+     * Add a peer-to-peer message to the current window
+     *
+     * @param msg The json, or its map in structured mode
+     */
+    void addP2P(Object msg) {
+        add(msg, false);
+    }
+
+    /**
+     * Add a broadcast message to the current window
+     *
+     * @param msg The json, or its map in structured mode
+     */
+    void addBroadcast(Object msg) {
+        add(msg, true);
+    }
+
+    private void add(Object msg, boolean broadcast) {
+        boolean full;
+        synchronized (lock) {
+            if (broadcast) {
+                broadcastBuffer.add(msg);
+            } else {
+                p2pBuffer.add(msg);
+            }
+            full = p2pBuffer.size() + broadcastBuffer.size() >= maxBatchSize;
+            if (!full && !scheduled) {
+                scheduled = true;
+                mainHandler.postDelayed(flushTask, flushInterval);
+            }
+        }
+        if (full) {
+            //The window is full, flush immediately
+            if (Looper.myLooper() == Looper.getMainLooper()) {
+                flush();
+            } else {
+                mainHandler.removeCallbacks(flushTask);
+                mainHandler.post(flushTask);
+            }
+        }
+    }
+
+    /**
+     * Deliver everything collected so far, must be called on the main thread
+     */
+    void flush() {
+        List<Object> p2p;
+        List<Object> broadcast;
+        synchronized (lock) {
+            mainHandler.removeCallbacks(flushTask);
+            scheduled = false;
+            if (p2pBuffer.isEmpty() && broadcastBuffer.isEmpty()) {
+                return;
+            }
+            p2p = p2pBuffer;
+            broadcast = broadcastBuffer;
+            p2pBuffer = new ArrayList<>(Math.min(p2p.size(), maxBatchSize));
+            broadcastBuffer = new ArrayList<>(Math.min(broadcast.size(), maxBatchSize));
+        }
+        listener.onFlush(p2p, broadcast);
+    }
+
+    /**
+     * Drop pending messages and stop the flush timer
+     */
+    void release() {
+        synchronized (lock) {
+            mainHandler.removeCallbacks(flushTask);
+            scheduled = false;
+            p2pBuffer.clear();
+            broadcastBuffer.clear();
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.jstomp.provider;
+
+import java.util.Random;
+
+/**
+ * Exponential backoff with full jitter.
+ * <p>
+ * The first attempt follows quickly, so a short network blip is recovered at once. Every later
+ * attempt waits a random time between 0 and {@code min(maxDelay, baseDelay * 2^(attempt - 2))},
+ * which spreads the reconnects of many clients after a broker outage instead of having them
+ * arrive together. There is no last attempt, the delay just stays capped at {@code maxDelay}.
+ **/
+public class BackoffReconnectPolicy implements ReconnectPolicy {
+    /*Default upper bound of the first delay*/
+    public static final long DEFAULT_FIRST_DELAY = 500;
+    /*Default delay window of the second attempt, doubled for every further attempt*/
+    public static final long DEFAULT_BASE_DELAY = 1000;
+    /*Default cap of the delay window*/
+    public static final long DEFAULT_MAX_DELAY = 60 * 1000;
+
+    private final long firstDelay;
+    private final long baseDelay;
+    private final long maxDelay;
+    private final Random random = new Random();
+
+    public BackoffReconnectPolicy() {
+        this(DEFAULT_FIRST_DELAY, DEFAULT_BASE_DELAY, DEFAULT_MAX_DELAY);
+    }
+
+    /**
+     * @param firstDelay Upper bound of the first delay in milliseconds
+     * @param baseDelay  Delay window of the second attempt in milliseconds
+     * @param maxDelay   Cap of the delay window in milliseconds
+     */
+    public BackoffReconnectPolicy(long firstDelay, long baseDelay, long maxDelay) {
+        this.firstDelay = firstDelay < 0 ? DEFAULT_FIRST_DELAY : firstDelay;
+        this.baseDelay = baseDelay <= 0 ? DEFAULT_BASE_DELAY : baseDelay;
+        this.maxDelay = Math.max(this.baseDelay, maxDelay <= 0 ? DEFAULT_MAX_DELAY : maxDelay);
+    }
+
+    @Override
+    public long nextDelay(int attempt) {
+        long window;
+        if (attempt <= 1) {
+            window = firstDelay;
+        } else {
+            //Compare against the shifted cap, shifting the base itself could overflow
+            int shift = Math.min(attempt - 2, 62);
+            window = baseDelay <= (maxDelay >> shift) ? baseDelay << shift : maxDelay;
+        }
+        if (window <= 0) {
+            return 0;
+        }
+        synchronized (random) {
+            return (long) (random.nextDouble() * (window + 1));
+        }
+    }
+
+    public long getFirstDelay() {
+        return firstDelay;
+    }
+
+    public long getBaseDelay() {
+        return baseDelay;
+    }
+
+    public long getMaxDelay() {
+        return maxDelay;
+    }
+}
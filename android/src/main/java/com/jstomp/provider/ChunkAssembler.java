@@ -0,0 +1,229 @@
+package com.jstomp.provider;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import ua.naiksoftware.stomp.dto.StompHeader;
+import ua.naiksoftware.stomp.dto.StompMessage;
+
+/**
+ * Reassembles messages sent in fragments, see {@link OutboundQueue#HEADER_CHUNK_ID}.
+ * <p>
+ * Fragments are kept per chunk id as they arrive, in any order, and the message is joined once
+ * the last one is in. Memory is bounded: at most {@code maxPending} messages and
+ * {@code maxChars} characters are held, the oldest incomplete message is dropped to make room,
+ * and a message still incomplete after the timeout is dropped. Used by the dispatcher thread only.
+ **/
+public class ChunkAssembler {
+    private static final String TAG = "ChunkAssembler";
+
+    /*Default time to wait for the missing fragments, in milliseconds*/
+    public static final long DEFAULT_TIMEOUT = 30 * 1000;
+    /*Default number of incomplete messages held*/
+    public static final int DEFAULT_MAX_PENDING = 64;
+    /*Default number of characters held in incomplete messages*/
+    public static final long DEFAULT_MAX_CHARS = 8 * 1024 * 1024;
+    /*Largest fragment count accepted*/
+    private static final int MAX_FRAGMENTS = 64 * 1024;
+
+    /**
+     * Fragments of one message
+     */
+    private static final class Partial {
+        final String[] parts;
+        final long startTime;
+        int received = 0;
+        long chars = 0;
+        List<StompHeader> headers;
+
+        Partial(int total, long startTime) {
+            this.parts = new String[total];
+            this.startTime = startTime;
+        }
+    }
+
+    private final long timeout;
+    private final int maxPending;
+    private final long maxChars;
+    /*Incomplete messages by chunk id, oldest first*/
+    private final Map<String, Partial> partials = new LinkedHashMap<>();
+    private long heldChars = 0;
+
+    private volatile long assembled = 0;
+    private volatile long expired = 0;
+    private volatile long dropped = 0;
+
+    public ChunkAssembler() {
+        this(DEFAULT_TIMEOUT, DEFAULT_MAX_PENDING, DEFAULT_MAX_CHARS);
+    }
+
+    /**
+     * @param timeout    Time to wait for the missing fragments in milliseconds
+     * @param maxPending Incomplete messages held
+     * @param maxChars   Characters held in incomplete messages
+     */
+    public ChunkAssembler(long timeout, int maxPending, long maxChars) {
+        this.timeout = timeout <= 0 ? DEFAULT_TIMEOUT : timeout;
+        this.maxPending = maxPending <= 0 ? DEFAULT_MAX_PENDING : maxPending;
+        this.maxChars = maxChars <= 0 ? DEFAULT_MAX_CHARS : maxChars;
+    }
+
+    /**
+     * Take a received message
+     *
+     * @param message
+     * @return the message itself when it is not a fragment, the joined message when this was the
+     * last missing fragment, otherwise null
+     */
+    public StompMessage add(StompMessage message) {
+        String id = message.findHeader(OutboundQueue.HEADER_CHUNK_ID);
+        if (id == null) {
+            return message;
+        }
+        long now = SystemClock.elapsedRealtime();
+        expire(now);
+        int index;
+        int total;
+        try {
+            index = Integer.parseInt(message.findHeader(OutboundQueue.HEADER_CHUNK_INDEX));
+            total = Integer.parseInt(message.findHeader(OutboundQueue.HEADER_CHUNK_TOTAL));
+        } catch (NumberFormatException e) {
+            dropped++;
+            Log.e(TAG, "Stomp fragment with bad chunk headers dropped, chunk " + id);
+            return null;
+        }
+        String part = message.getPayload() == null ? "" : message.getPayload();
+        Partial partial = partials.get(id);
+        if (partial == null) {
+            if (total <= 0 || total > MAX_FRAGMENTS) {
+                dropped++;
+                return null;
+            }
+            partial = new Partial(total, now);
+            partials.put(id, partial);
+        }
+        if (index < 0 || index >= partial.parts.length || total != partial.parts.length) {
+            remove(id, partial);
+            dropped++;
+            Log.e(TAG, "Stomp fragment out of range, chunk " + id + " dropped");
+            return null;
+        }
+        if (partial.parts[index] != null) {
+            //Redelivered fragment
+            return null;
+        }
+        if (!makeRoom(id, part.length())) {
+            remove(id, partial);
+            dropped++;
+            Log.e(TAG, "Stomp chunked message " + id + " exceeds the reassembly limit, dropped");
+            return null;
+        }
+        partial.parts[index] = part;
+        partial.received++;
+        partial.chars += part.length();
+        heldChars += part.length();
+        if (partial.headers == null || index == total - 1) {
+            partial.headers = message.getStompHeaders();
+        }
+        if (partial.received < total) {
+            return null;
+        }
+        remove(id, partial);
+        assembled++;
+        StringBuilder body = new StringBuilder((int) Math.min(Integer.MAX_VALUE, partial.chars));
+        for (String s : partial.parts) {
+            body.append(s);
+        }
+        List<StompHeader> headers = new ArrayList<>(partial.headers.size());
+        for (StompHeader header : partial.headers) {
+            String key = header.getKey();
+            if (!OutboundQueue.HEADER_CHUNK_ID.equals(key) && !OutboundQueue.HEADER_CHUNK_INDEX.equals(key)
+                    && !OutboundQueue.HEADER_CHUNK_TOTAL.equals(key)) {
+                headers.add(header);
+            }
+        }
+        return new StompMessage(message.getStompCommand(), headers, body.toString());
+    }
+
+    /**
+     * Drop the oldest other incomplete messages until the fragment fits
+     *
+     * @return false when it does not fit even alone
+     */
+    private boolean makeRoom(String id, int chars) {
+        Partial own = partials.get(id);
+        if (own.chars + chars > maxChars) {
+            return false;
+        }
+        Iterator<Map.Entry<String, Partial>> it = partials.entrySet().iterator();
+        while ((heldChars + chars > maxChars || partials.size() > maxPending) && it.hasNext()) {
+            Map.Entry<String, Partial> entry = it.next();
+            if (entry.getKey().equals(id)) {
+                continue;
+            }
+            heldChars -= entry.getValue().chars;
+            it.remove();
+            dropped++;
+            Log.e(TAG, "Stomp chunked message " + entry.getKey() + " dropped to make room");
+        }
+        return true;
+    }
+
+    private void expire(long now) {
+        Iterator<Map.Entry<String, Partial>> it = partials.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Partial> entry = it.next();
+            if (now - entry.getValue().startTime < timeout) {
+                //Oldest first, the rest is younger
+                return;
+            }
+            heldChars -= entry.getValue().chars;
+            it.remove();
+            expired++;
+            Log.e(TAG, "Stomp chunked message " + entry.getKey() + " timed out, "
+                    + entry.getValue().received + "/" + entry.getValue().parts.length + " fragments");
+        }
+    }
+
+    private void remove(String id, Partial partial) {
+        partials.remove(id);
+        heldChars -= partial.chars;
+    }
+
+    public long getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Number of messages joined from fragments
+     *
+     * @return
+     */
+    public long getAssembledCount() {
+        return assembled;
+    }
+
+    /**
+     * Number of incomplete messages dropped after the timeout
+     *
+     * @return
+     */
+    public long getExpiredCount() {
+        return expired;
+    }
+
+    /**
+     * Number of incomplete messages dropped for bad headers or to stay within the limits
+     *
+     * @return
+     */
+    public long getDroppedCount() {
+        return dropped;
+    }
+}
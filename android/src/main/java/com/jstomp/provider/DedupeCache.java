@@ -0,0 +1,186 @@
+package com.jstomp.provider;
+
+import android.os.SystemClock;
+
+import java.util.Arrays;
+
+import ua.naiksoftware.stomp.dto.StompMessage;
+
+/**
+ * Bounded, time-windowed memory of recent message ids, used to drop redelivered messages.
+ * <p>
+ * Ids are kept as 64-bit hashes in two fixed open-addressing tables, the current generation and
+ * the previous one. A generation is retired once it holds {@code capacity} ids or is older than
+ * the window, so an id is remembered for at least one window unless more than {@code capacity}
+ * distinct ids arrive in it. Memory stays at {@code 4 * capacity} longs whatever the traffic.
+ **/
+public class DedupeCache {
+    /*Default number of ids per generation*/
+    public static final int DEFAULT_CAPACITY = 2048;
+    /*Default time an id is remembered, in milliseconds*/
+    public static final long DEFAULT_WINDOW = 5 * 60 * 1000;
+    /*Header carrying the broker's message id*/
+    public static final String HEADER_MESSAGE_ID = "message-id";
+
+    private final int capacity;
+    private final long window;
+    /*Hash tables of the current and previous generation, 0 marks an empty slot*/
+    private long[] current;
+    private long[] previous;
+    private final int mask;
+    private int currentSize = 0;
+    private long generationStart;
+
+    private volatile long checkedCount = 0;
+    private volatile long droppedCount = 0;
+
+    public DedupeCache() {
+        this(DEFAULT_CAPACITY, DEFAULT_WINDOW);
+    }
+
+    /**
+     * @param capacity Ids per generation
+     * @param window   Time an id is remembered in milliseconds
+     */
+    public DedupeCache(int capacity, long window) {
+        this.capacity = capacity <= 0 ? DEFAULT_CAPACITY : capacity;
+        this.window = window <= 0 ? DEFAULT_WINDOW : window;
+        //Keep the load factor at or below one half
+        int size = Integer.highestOneBit(this.capacity * 2 - 1) << 1;
+        this.mask = size - 1;
+        this.current = new long[size];
+        this.previous = new long[size];
+        this.generationStart = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Id of a message, the "id" field of the body or the message-id header when the body has none
+     *
+     * @param message
+     * @return null when neither is present
+     */
+    public static String messageId(StompMessage message) {
+        String id = UserMessageDecoder.readId(message.getPayload());
+        if (id == null || id.isEmpty()) {
+            id = message.findHeader(HEADER_MESSAGE_ID);
+        }
+        return id;
+    }
+
+    /**
+     * Remember the id and tell whether it was seen within the window
+     *
+     * @param id
+     * @return true for a duplicate, false for a new id or a null one
+     */
+    public synchronized boolean isDuplicate(String id) {
+        if (id == null) {
+            return false;
+        }
+        checkedCount++;
+        long hash = hash(id);
+        rotate();
+        if (contains(current, hash) || contains(previous, hash)) {
+            droppedCount++;
+            return true;
+        }
+        insert(current, hash);
+        currentSize++;
+        return false;
+    }
+
+    /**
+     * Retire the current generation when it is full or expired
+     */
+    private void rotate() {
+        long now = SystemClock.elapsedRealtime();
+        long age = now - generationStart;
+        if (currentSize < capacity && age < window) {
+            return;
+        }
+        long[] retired = previous;
+        Arrays.fill(retired, 0);
+        if (age >= window * 2) {
+            //Both generations are out of the window
+            Arrays.fill(current, 0);
+        } else {
+            previous = current;
+            current = retired;
+        }
+        currentSize = 0;
+        generationStart = now;
+    }
+
+    private boolean contains(long[] table, long hash) {
+        int i = (int) hash & mask;
+        while (table[i] != 0) {
+            if (table[i] == hash) {
+                return true;
+            }
+            i = (i + 1) & mask;
+        }
+        return false;
+    }
+
+    private void insert(long[] table, long hash) {
+        int i = (int) hash & mask;
+        while (table[i] != 0) {
+            i = (i + 1) & mask;
+        }
+        table[i] = hash;
+    }
+
+    /**
+     * 64-bit FNV-1a of the id with the bits mixed, never 0
+     *
+     * @param id
+     * @return
+     */
+    static long hash(String id) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0, n = id.length(); i < n; i++) {
+            h ^= id.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return h == 0 ? 1 : h;
+    }
+
+    /**
+     * Forget every id
+     */
+    public synchronized void clear() {
+        Arrays.fill(current, 0);
+        Arrays.fill(previous, 0);
+        currentSize = 0;
+        generationStart = SystemClock.elapsedRealtime();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public long getWindow() {
+        return window;
+    }
+
+    /**
+     * Number of messages with an id that were checked
+     *
+     * @return
+     */
+    public long getCheckedCount() {
+        return checkedCount;
+    }
+
+    /**
+     * Number of duplicates dropped
+     *
+     * @return
+     */
+    public long getDroppedCount() {
+        return droppedCount;
+    }
+}
@@ -0,0 +1,163 @@
+package com.jstomp.provider;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Detects a dead connection from missing server heart-beats.
+ * <p>
+ * The interval is negotiated from the CONNECTED frame: the server beats every
+ * {@code max(sx, cy)} milliseconds, where sx is the first value of its "heart-beat" header and cy
+ * the interval the client asked for. Every inbound frame, beats included, only stores a timestamp;
+ * one check task on a single thread declares the connection dead once nothing arrived within
+ * {@link #GRACE_FACTOR} intervals.
+ **/
+public class HeartbeatWatchdog {
+    private static final String TAG = "HeartbeatWatchdog";
+
+    /*Header of CONNECT and CONNECTED frames carrying the heart-beat intervals*/
+    public static final String HEADER_HEART_BEAT = "heart-beat";
+    /*Intervals of silence after which the connection is dead*/
+    public static final int GRACE_FACTOR = 2;
+    /*Shortest time between two checks*/
+    private static final long MIN_CHECK_PERIOD = 250;
+
+    /**
+     * Dead connection callback, called on the watchdog thread
+     */
+    public interface OnDeadListener {
+        /**
+         * @param silence Time since the last inbound frame in milliseconds
+         */
+        void onConnectionDead(long silence);
+    }
+
+    private final OnDeadListener listener;
+    private ScheduledExecutorService executor;
+    private ScheduledFuture<?> check;
+
+    /*Time of the last inbound frame*/
+    private volatile long lastFrameTime = 0;
+    /*Negotiated server beat interval, 0 when not armed*/
+    private volatile long interval = 0;
+    private volatile long deadCount = 0;
+
+    public HeartbeatWatchdog(OnDeadListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Record an inbound frame, cheap enough to be called for every frame
+     */
+    public void onFrame() {
+        lastFrameTime = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Start watching after the CONNECTED frame, nothing is watched if either side does not beat
+     *
+     * @param heartBeat       "heart-beat" header of the CONNECTED frame, may be null
+     * @param serverHeartbeat Interval the client asked the server to beat at
+     */
+    public synchronized void arm(String heartBeat, long serverHeartbeat) {
+        disarm();
+        long sx = parseFirst(heartBeat);
+        if (sx <= 0 || serverHeartbeat <= 0) {
+            return;
+        }
+        interval = Math.max(sx, serverHeartbeat);
+        lastFrameTime = SystemClock.elapsedRealtime();
+        if (executor == null) {
+            executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "jstomp-heartbeat");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        long period = Math.max(MIN_CHECK_PERIOD, interval / 2);
+        check = executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                check();
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+        Log.i(TAG, "Stomp server heart-beat every " + interval + "ms");
+    }
+
+    private void check() {
+        long silence = SystemClock.elapsedRealtime() - lastFrameTime;
+        if (interval <= 0 || silence < interval * GRACE_FACTOR) {
+            return;
+        }
+        synchronized (this) {
+            if (check == null) {
+                return;
+            }
+            disarm();
+            deadCount++;
+        }
+        Log.e(TAG, "Stomp connection is dead, no frame for " + silence + "ms");
+        listener.onConnectionDead(silence);
+    }
+
+    /**
+     * Stop watching, e.g. when the connection is closed or replaced
+     */
+    public synchronized void disarm() {
+        if (check != null) {
+            check.cancel(false);
+            check = null;
+        }
+        interval = 0;
+    }
+
+    /**
+     * Stop watching and release the watchdog thread
+     */
+    public synchronized void release() {
+        disarm();
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    /**
+     * Negotiated server beat interval, 0 when not watching
+     *
+     * @return
+     */
+    public long getInterval() {
+        return interval;
+    }
+
+    /**
+     * Number of connections declared dead
+     *
+     * @return
+     */
+    public long getDeadCount() {
+        return deadCount;
+    }
+
+    private static long parseFirst(String heartBeat) {
+        if (heartBeat == null) {
+            return 0;
+        }
+        int comma = heartBeat.indexOf(',');
+        try {
+            return Long.parseLong((comma < 0 ? heartBeat : heartBeat.substring(0, comma)).trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package com.jstomp.provider;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Detects an idle connection in lazy mode.
+ * <p>
+ * Traffic only stores a timestamp. One check task on a single thread asks whether the connection
+ * is still needed, e.g. for subscriptions or unfinished sends, and reports it idle once it was
+ * neither needed nor used for the whole timeout.
+ **/
+public class IdleMonitor {
+    private static final String TAG = "IdleMonitor";
+
+    /*Default time without subscriptions or traffic before disconnecting, in milliseconds*/
+    public static final long DEFAULT_IDLE_TIMEOUT = 60 * 1000;
+    /*Shortest time between two checks*/
+    private static final long MIN_CHECK_PERIOD = 1000;
+
+    /**
+     * Idle callbacks, called on the monitor thread
+     */
+    public interface Callback {
+        /**
+         * Whether the connection is still needed even without traffic
+         */
+        boolean isBusy();
+
+        /**
+         * @param idleTime Time since the connection was last needed or used in milliseconds
+         */
+        void onIdle(long idleTime);
+    }
+
+    private final Callback callback;
+    private ScheduledExecutorService executor;
+    private ScheduledFuture<?> check;
+
+    /*Time the connection was last needed or used*/
+    private volatile long lastActiveTime = 0;
+    /*Idle timeout, 0 when not armed*/
+    private volatile long timeout = 0;
+    private volatile long idleCount = 0;
+
+    public IdleMonitor(Callback callback) {
+        this.callback = callback;
+    }
+
+    /**
+     * Record traffic, cheap enough to be called for every message
+     */
+    public void touch() {
+        lastActiveTime = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Start watching an open connection
+     *
+     * @param timeout Idle timeout in milliseconds, 0 for the default
+     */
+    public synchronized void arm(long timeout) {
+        disarm();
+        this.timeout = timeout <= 0 ? DEFAULT_IDLE_TIMEOUT : timeout;
+        touch();
+        if (executor == null) {
+            executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "jstomp-idle");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        long period = Math.max(MIN_CHECK_PERIOD, this.timeout / 4);
+        check = executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                check();
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    private void check() {
+        if (callback.isBusy()) {
+            touch();
+            return;
+        }
+        long idle = SystemClock.elapsedRealtime() - lastActiveTime;
+        if (timeout <= 0 || idle < timeout) {
+            return;
+        }
+        synchronized (this) {
+            if (check == null) {
+                return;
+            }
+            disarm();
+            idleCount++;
+        }
+        Log.i(TAG, "Stomp connection idle for " + idle + "ms");
+        callback.onIdle(idle);
+    }
+
+    /**
+     * Stop watching, e.g. when the connection is closed
+     */
+    public synchronized void disarm() {
+        if (check != null) {
+            check.cancel(false);
+            check = null;
+        }
+        timeout = 0;
+    }
+
+    /**
+     * Stop watching and release the monitor thread
+     */
+    public synchronized void release() {
+        disarm();
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    /**
+     * Number of times the connection was found idle
+     *
+     * @return
+     */
+    public long getIdleCount() {
+        return idleCount;
+    }
+}
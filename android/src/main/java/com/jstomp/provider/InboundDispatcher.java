@@ -0,0 +1,290 @@
+package com.jstomp.provider;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import ua.naiksoftware.stomp.dto.StompMessage;
+
+/**
+ * Inbound message dispatch stage.
+ * <p>
+ * Frames received on the subscription threads are put into a bounded queue and handed to the
+ * listener on a single dedicated worker thread, so logging and listener work never run on the
+ * main thread. When the queue is full the configured {@link OverflowStrategy} decides what happens.
+ **/
+public class InboundDispatcher {
+    private static final String TAG = "InboundDispatcher";
+
+    /*Default queue capacity*/
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    /*Peer-to-peer frame*/
+    public static final int KIND_P2P = 0;
+    /*Broadcast frame*/
+    public static final int KIND_BROADCAST = 1;
+
+    /**
+     * What to do with a new frame when the queue is full
+     */
+    public enum OverflowStrategy {
+        /*Block the receiving thread until there is room, nothing is lost. The socket reader then
+        reads no heart-beats either, so it cannot be used with a server heart-beat*/
+        BLOCK,
+        /*Drop the oldest queued frame*/
+        DROP_OLDEST,
+        /*Drop the new frame*/
+        DROP_NEWEST,
+        /*Replace the queued frame of the same topic, otherwise drop the oldest*/
+        LATEST_PER_TOPIC
+    }
+
+    /**
+     * Frame handler, called on the dispatcher thread
+     */
+    public interface OnFrameListener {
+        void onFrame(Frame frame);
+    }
+
+    /**
+     * A received frame and the subscription address it arrived on
+     */
+    public static final class Frame {
+        public final int kind;
+        public final String topic;
+        public StompMessage message;
+        /*System.nanoTime() when the message was received*/
+        public long receiveTime;
+
+        Frame(int kind, String topic, StompMessage message, long receiveTime) {
+            this.kind = kind;
+            this.topic = topic;
+            this.message = message;
+            this.receiveTime = receiveTime;
+        }
+    }
+
+    private final int capacity;
+    private final OverflowStrategy strategy;
+    private final OnFrameListener listener;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private final ArrayDeque<Frame> queue;
+    /*Latest queued frame per topic, only used by LATEST_PER_TOPIC*/
+    private final Map<String, Frame> latest;
+
+    private volatile boolean running = false;
+    private Thread worker;
+
+    private volatile long dispatched = 0;
+    private volatile long dropped = 0;
+    private volatile int maxDepth = 0;
+
+    public InboundDispatcher(int capacity, OverflowStrategy strategy, OnFrameListener listener) {
+        this.capacity = capacity <= 0 ? DEFAULT_CAPACITY : capacity;
+        this.strategy = strategy == null ? OverflowStrategy.DROP_OLDEST : strategy;
+        this.listener = listener;
+        this.queue = new ArrayDeque<>(Math.min(this.capacity, 256));
+        this.latest = this.strategy == OverflowStrategy.LATEST_PER_TOPIC ? new HashMap<String, Frame>() : null;
+    }
+
+    /**
+     * Start the dispatcher thread
+     */
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, "jstomp-inbound");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Stop the dispatcher thread and drop queued frames
+     */
+    public synchronized void stop() {
+        running = false;
+        lock.lock();
+        try {
+            queue.clear();
+            if (latest != null) {
+                latest.clear();
+            }
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        if (worker != null) {
+            worker.interrupt();
+            worker = null;
+        }
+    }
+
+    /**
+     * Queue a received frame
+     *
+     * @param kind    {@link #KIND_P2P} or {@link #KIND_BROADCAST}
+     * @param topic   Subscription address
+     * @param message Received message
+     * @return false if the frame was dropped
+     */
+    public boolean offer(int kind, String topic, StompMessage message) {
+        lock.lock();
+        try {
+            if (!running) {
+                return false;
+            }
+            if (queue.size() >= capacity) {
+                switch (strategy) {
+                    case BLOCK:
+                        while (running && queue.size() >= capacity) {
+                            notFull.await();
+                        }
+                        if (!running) {
+                            return false;
+                        }
+                        break;
+                    case DROP_NEWEST:
+                        dropped++;
+                        return false;
+                    case LATEST_PER_TOPIC:
+                        Frame pending = latest.get(topic);
+                        if (pending != null && pending.kind == kind) {
+                            //Conflate into the queued frame, it keeps its place in the queue
+                            pending.message = message;
+                            pending.receiveTime = System.nanoTime();
+                            dropped++;
+                            return true;
+                        }
+                        dropOldest();
+                        break;
+                    case DROP_OLDEST:
+                    default:
+                        dropOldest();
+                        break;
+                }
+            }
+            Frame frame = new Frame(kind, topic, message, System.nanoTime());
+            queue.addLast(frame);
+            if (latest != null) {
+                latest.put(topic, frame);
+            }
+            if (queue.size() > maxDepth) {
+                maxDepth = queue.size();
+            }
+            notEmpty.signal();
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            dropped++;
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void dropOldest() {
+        Frame oldest = queue.pollFirst();
+        if (oldest != null) {
+            forget(oldest);
+            dropped++;
+        }
+    }
+
+    private void forget(Frame frame) {
+        if (latest != null && latest.get(frame.topic) == frame) {
+            latest.remove(frame.topic);
+        }
+    }
+
+    private void loop() {
+        while (running) {
+            Frame frame;
+            lock.lock();
+            try {
+                while (running && queue.isEmpty()) {
+                    notEmpty.await();
+                }
+                if (!running) {
+                    return;
+                }
+                frame = queue.pollFirst();
+                forget(frame);
+                notFull.signal();
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                lock.unlock();
+            }
+            try {
+                listener.onFrame(frame);
+                dispatched++;
+            } catch (Exception e) {
+                Log.e(TAG, "Inbound frame dispatch failed", e);
+            }
+        }
+    }
+
+    /**
+     * Number of frames currently waiting
+     *
+     * @return
+     */
+    public int getQueueDepth() {
+        lock.lock();
+        try {
+            return queue.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Highest queue depth seen since start
+     *
+     * @return
+     */
+    public int getMaxQueueDepth() {
+        return maxDepth;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public OverflowStrategy getStrategy() {
+        return strategy;
+    }
+
+    /**
+     * Number of frames dropped or conflated because the queue was full
+     *
+     * @return
+     */
+    public long getDroppedCount() {
+        return dropped;
+    }
+
+    /**
+     * Number of frames handed to the listener
+     *
+     * @return
+     */
+    public long getDispatchedCount() {
+        return dispatched;
+    }
+}
@@ -0,0 +1,179 @@
+package com.jstomp.provider;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ua.naiksoftware.stomp.dto.StompMessage;
+
+/**
+ * Filter of received messages, all of its conditions must hold for a message to match.
+ * <p>
+ * Conditions are sets of allowed values of the top level "microGroupId", "type" and "createId"
+ * of the json body, a set of excluded types, and sets of allowed values of stomp headers. Values
+ * are kept in hash sets, so a condition costs one lookup whatever the number of values. The body
+ * fields are not read here: {@link MessageFilters} reads the fields any filter needs in a single
+ * pass and hands them to every filter.
+ **/
+public class MessageFilter {
+    /*Body fields a filter can test, index into the values of #matches*/
+    static final int FIELD_MICRO_GROUP_ID = 0;
+    static final int FIELD_TYPE = 1;
+    static final int FIELD_CREATE_ID = 2;
+    static final String[] FIELD_NAMES = {"microGroupId", "type", "createId"};
+
+    private final String id;
+    /*Allowed values per body field, null for any*/
+    private final Set<String>[] fields;
+    private Set<String> excludedTypes;
+    /*Allowed values per stomp header*/
+    private final Map<String, Set<String>> headers = new HashMap<>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param id Name of the filter, a filter added with the same name replaces it
+     */
+    @SuppressWarnings("unchecked")
+    public MessageFilter(String id) {
+        this.id = id;
+        this.fields = new Set[FIELD_NAMES.length];
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * Only messages of these groups
+     *
+     * @param microGroupIds
+     * @return
+     */
+    public MessageFilter microGroupIds(Collection<String> microGroupIds) {
+        fields[FIELD_MICRO_GROUP_ID] = toSet(microGroupIds);
+        return this;
+    }
+
+    /**
+     * Only messages of these types
+     *
+     * @param types
+     * @return
+     */
+    public MessageFilter types(Collection<? extends Number> types) {
+        fields[FIELD_TYPE] = toTypeSet(types);
+        return this;
+    }
+
+    /**
+     * No messages of these types, e.g. -1 for system messages; a message without a type passes
+     *
+     * @param types
+     * @return
+     */
+    public MessageFilter excludeTypes(Collection<? extends Number> types) {
+        excludedTypes = toTypeSet(types);
+        return this;
+    }
+
+    /**
+     * Only messages of these senders
+     *
+     * @param createIds
+     * @return
+     */
+    public MessageFilter createIds(Collection<String> createIds) {
+        fields[FIELD_CREATE_ID] = toSet(createIds);
+        return this;
+    }
+
+    /**
+     * Only messages whose stomp header has one of these values
+     *
+     * @param key
+     * @param values
+     * @return
+     */
+    public MessageFilter header(String key, Collection<String> values) {
+        Set<String> set = toSet(values);
+        if (key != null && set != null) {
+            headers.put(key, set);
+        }
+        return this;
+    }
+
+    /**
+     * Whether the filter tests a body field
+     *
+     * @param field
+     * @return
+     */
+    boolean needs(int field) {
+        return fields[field] != null || (field == FIELD_TYPE && excludedTypes != null);
+    }
+
+    /**
+     * Test a message and count the result
+     *
+     * @param message
+     * @param values  Body fields by index, read for every field this filter {@link #needs}
+     * @return
+     */
+    boolean matches(StompMessage message, String[] values) {
+        boolean match = test(message, values);
+        (match ? hits : misses).incrementAndGet();
+        return match;
+    }
+
+    private boolean test(StompMessage message, String[] values) {
+        for (int i = 0; i < fields.length; i++) {
+            if (fields[i] != null && (values[i] == null || !fields[i].contains(values[i]))) {
+                return false;
+            }
+        }
+        String type = values[FIELD_TYPE];
+        if (excludedTypes != null && type != null && excludedTypes.contains(type)) {
+            return false;
+        }
+        for (Map.Entry<String, Set<String>> entry : headers.entrySet()) {
+            String value = message.findHeader(entry.getKey());
+            if (value == null || !entry.getValue().contains(value)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Set<String> toSet(Collection<String> values) {
+        return values == null ? null : new HashSet<>(values);
+    }
+
+    private static Set<String> toTypeSet(Collection<? extends Number> types) {
+        if (types == null) {
+            return null;
+        }
+        //Compared with the json text of the type
+        Set<String> set = new HashSet<>();
+        for (Number type : types) {
+            set.add(String.valueOf(type.intValue()));
+        }
+        return set;
+    }
+
+    /**
+     * Messages that matched and did not
+     *
+     * @return
+     */
+    public Map<String, Object> snapshot() {
+        Map<String, Object> map = new HashMap<>();
+        map.put("hits", hits.get());
+        map.put("misses", misses.get());
+        return map;
+    }
+}
@@ -0,0 +1,130 @@
+package com.jstomp.provider;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ua.naiksoftware.stomp.dto.StompMessage;
+
+/**
+ * The filters of a connection, a received message reaches the listeners when any filter matches
+ * it, or when there is no filter.
+ * <p>
+ * Adding or removing a filter compiles the set again: the body fields any filter tests are listed
+ * once, so a message body is read in one streaming pass that stops at the last needed field, and
+ * not at all when the filters only test headers. The compiled set is published as one immutable
+ * snapshot, the dispatcher thread reads it without locking.
+ **/
+public class MessageFilters {
+
+    /**
+     * Filters and the body fields they need
+     */
+    private static final class Compiled {
+        final MessageFilter[] filters;
+        /*Names of the body fields to read, null entries are not needed*/
+        final String[] fields;
+        final boolean readBody;
+
+        Compiled(MessageFilter[] filters) {
+            this.filters = filters;
+            this.fields = new String[MessageFilter.FIELD_NAMES.length];
+            boolean read = false;
+            for (int i = 0; i < fields.length; i++) {
+                for (MessageFilter filter : filters) {
+                    if (filter.needs(i)) {
+                        fields[i] = MessageFilter.FIELD_NAMES[i];
+                        read = true;
+                        break;
+                    }
+                }
+            }
+            this.readBody = read;
+        }
+    }
+
+    private final Map<String, MessageFilter> filters = new HashMap<>();
+    private volatile Compiled compiled = new Compiled(new MessageFilter[0]);
+    /*Body field values, only used by the dispatcher thread*/
+    private final String[] values = new String[MessageFilter.FIELD_NAMES.length];
+
+    private final AtomicLong accepted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * Add a filter, replacing the one with the same id; it must not be changed afterwards
+     *
+     * @param filter
+     */
+    public synchronized void add(MessageFilter filter) {
+        filters.put(filter.getId(), filter);
+        compile();
+    }
+
+    /**
+     * Remove a filter
+     *
+     * @param id
+     * @return false when there is no such filter
+     */
+    public synchronized boolean remove(String id) {
+        if (filters.remove(id) == null) {
+            return false;
+        }
+        compile();
+        return true;
+    }
+
+    public synchronized void clear() {
+        filters.clear();
+        compile();
+    }
+
+    private void compile() {
+        compiled = new Compiled(filters.values().toArray(new MessageFilter[0]));
+    }
+
+    /**
+     * Whether a message goes to the listeners, called on the dispatcher thread. Every filter is
+     * tested so each one counts its hits and misses
+     *
+     * @param message
+     * @return
+     */
+    public boolean accept(StompMessage message) {
+        Compiled c = compiled;
+        if (c.filters.length == 0) {
+            return true;
+        }
+        if (c.readBody) {
+            UserMessageDecoder.readFields(message.getPayload(), c.fields, values);
+        } else {
+            for (int i = 0; i < values.length; i++) {
+                values[i] = null;
+            }
+        }
+        boolean match = false;
+        for (MessageFilter filter : c.filters) {
+            match |= filter.matches(message, values);
+        }
+        (match ? accepted : rejected).incrementAndGet();
+        return match;
+    }
+
+    /**
+     * Messages let through and dropped, and the hits and misses per filter id
+     *
+     * @return
+     */
+    public Map<String, Object> snapshot() {
+        Map<String, Object> perFilter = new HashMap<>();
+        for (MessageFilter filter : compiled.filters) {
+            perFilter.put(filter.getId(), filter.snapshot());
+        }
+        Map<String, Object> map = new HashMap<>();
+        map.put("accepted", accepted.get());
+        map.put("rejected", rejected.get());
+        map.put("filters", perFilter);
+        return map;
+    }
+}
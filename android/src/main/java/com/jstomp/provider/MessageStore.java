@@ -0,0 +1,749 @@
+package com.jstomp.provider;
+
+import android.util.Log;
+
+import com.google.gson.JsonParseException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only local store of sent and received messages, queried page by page per microGroupId.
+ * <p>
+ * Messages are appended to segment files of up to {@link #SEGMENT_SIZE} bytes, each record laid
+ * out as
+ * <pre>
+ * | length (4) | crc32 (4) | direction (1) | status (1) | group (2 + n) | id (2 + n) | body |
+ * </pre>
+ * Every group has its own index file of {@code | segment (4) | offset (4) | id hash (8) |}
+ * entries in append order. A page query loads the group's index once, recently used groups stay
+ * in memory, and then reads only the records of the page, so opening a long conversation does not
+ * touch the rest of its history. Writes and queries run on one background thread; the oldest
+ * segments are deleted once the segments and index files together grow past the size limit, and
+ * the index entries pointing into them go with them.
+ **/
+public class MessageStore {
+    private static final String TAG = "MessageStore";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    /*Message directions, same values as the "direct" field of the message map*/
+    public static final int DIRECTION_OUT = 0;
+    public static final int DIRECTION_IN = 1;
+    /*Default size limit of the store*/
+    public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+    /*A new segment is started once a record does not fit into the current one*/
+    static final int SEGMENT_SIZE = 4 * 1024 * 1024;
+    private static final int RECORD_HEADER = 4 + 4 + 1 + 1;
+    private static final int INDEX_ENTRY = 4 + 4 + 8;
+    /*Groups whose index is kept in memory*/
+    private static final int CACHED_GROUPS = 16;
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String INDEX_SUFFIX = ".idx";
+
+    /**
+     * Index of one group, positions pack the segment number into the high and the offset into
+     * the low 32 bits
+     */
+    private static final class GroupIndex {
+        final RandomAccessFile file;
+        long[] positions = new long[64];
+        long[] ids = new long[64];
+        int size = 0;
+
+        GroupIndex(RandomAccessFile file) {
+            this.file = file;
+        }
+
+        void add(long position, long id) {
+            if (size == positions.length) {
+                int capacity = size * 2;
+                long[] p = new long[capacity];
+                long[] i = new long[capacity];
+                System.arraycopy(positions, 0, p, 0, size);
+                System.arraycopy(ids, 0, i, 0, size);
+                positions = p;
+                ids = i;
+            }
+            positions[size] = position;
+            ids[size] = id;
+            size++;
+        }
+
+        /**
+         * Index of the newest entry with the id hash, -1 if none
+         */
+        int find(long id) {
+            for (int i = size - 1; i >= 0; i--) {
+                if (ids[i] == id) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        long last() {
+            return size == 0 ? -1 : positions[size - 1];
+        }
+
+        /**
+         * Drop the oldest entries
+         */
+        void removeFirst(int count) {
+            System.arraycopy(positions, count, positions, 0, size - count);
+            System.arraycopy(ids, count, ids, 0, size - count);
+            size -= count;
+        }
+    }
+
+    private final File dir;
+    private final long maxBytes;
+    private final CRC32 crc = new CRC32();
+    private final ExecutorService executor;
+
+    /*Size of every segment on disk by number, oldest first*/
+    private final TreeMap<Integer, Long> segmentSizes = new TreeMap<>();
+    /*Open segment files by number, the active one included*/
+    private final Map<Integer, RandomAccessFile> segmentFiles = new HashMap<>();
+    private final Map<String, GroupIndex> groups = new LinkedHashMap<String, GroupIndex>(CACHED_GROUPS, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, GroupIndex> eldest) {
+            if (size() <= CACHED_GROUPS) {
+                return false;
+            }
+            closeQuietly(eldest.getValue().file);
+            return true;
+        }
+    };
+    /*Bytes of the index files on disk*/
+    private long indexBytes = 0;
+    private int activeSegment;
+    private long activeSize;
+    private long storedCount = 0;
+    private boolean closed = false;
+
+    /**
+     * @param dir      Directory of the store, created when missing
+     * @param maxBytes Size limit of the segments and index files, 0 for the default
+     * @throws IOException
+     */
+    public MessageStore(File dir, long maxBytes) throws IOException {
+        this.dir = dir;
+        this.maxBytes = maxBytes <= 0 ? DEFAULT_MAX_BYTES : Math.max(maxBytes, SEGMENT_SIZE);
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        this.executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "jstomp-store");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        open();
+    }
+
+    private void open() throws IOException {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                String name = f.getName();
+                if (name.endsWith(INDEX_SUFFIX)) {
+                    indexBytes += f.length();
+                    continue;
+                }
+                if (!name.endsWith(SEGMENT_SUFFIX)) {
+                    continue;
+                }
+                try {
+                    int number = Integer.parseInt(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+                    segmentSizes.put(number, f.length());
+                } catch (NumberFormatException e) {
+                    Log.e(TAG, "Unknown file in message store: " + name);
+                }
+            }
+        }
+        activeSegment = segmentSizes.isEmpty() ? 0 : segmentSizes.lastKey();
+        activeSize = recover(activeSegment);
+        Log.i(TAG, "Message store opened, segments: " + segmentSizes.size() + ", bytes: " + totalBytes());
+    }
+
+    /**
+     * Cut the active segment behind its last good record and index records whose index entry
+     * was lost, e.g. when the process died between the two writes
+     *
+     * @return Size of the segment
+     */
+    private long recover(int segment) throws IOException {
+        RandomAccessFile file = segmentFile(segment, true);
+        int length = (int) Math.min(Integer.MAX_VALUE, file.length());
+        //One read of the whole segment, it is at most a few megabytes
+        byte[] data = new byte[length];
+        file.seek(0);
+        file.readFully(data);
+        ByteBuffer in = ByteBuffer.wrap(data);
+        int offset = 0;
+        Map<String, List<long[]>> unindexed = new LinkedHashMap<>();
+        while (offset + RECORD_HEADER <= length) {
+            int size = in.getInt(offset);
+            if (size < RECORD_HEADER + 4 || size > length - offset) {
+                break;
+            }
+            crc.reset();
+            crc.update(data, offset + 8, size - 8);
+            if ((int) crc.getValue() != in.getInt(offset + 4)) {
+                Log.e(TAG, "Damaged message store record at " + offset);
+                break;
+            }
+            in.position(offset + RECORD_HEADER);
+            String group = readString(in);
+            String id = readString(in);
+            List<long[]> list = unindexed.get(group);
+            if (list == null) {
+                list = new ArrayList<>();
+                unindexed.put(group, list);
+            }
+            list.add(new long[]{position(segment, offset), DedupeCache.hash(id)});
+            offset += size;
+        }
+        if (offset < length) {
+            file.setLength(offset);
+        }
+        segmentSizes.put(segment, (long) offset);
+        for (Map.Entry<String, List<long[]>> entry : unindexed.entrySet()) {
+            GroupIndex index = index(entry.getKey());
+            long last = index.last();
+            for (long[] item : entry.getValue()) {
+                if (item[0] > last) {
+                    appendIndex(index, item[0], item[1]);
+                }
+            }
+        }
+        return offset;
+    }
+
+    /**
+     * Store a message on the background thread, messages without a microGroupId are skipped
+     *
+     * @param direction {@link #DIRECTION_IN} or {@link #DIRECTION_OUT}
+     * @param status    {@link UserMessageEntry#STATUS_SENT} or {@link UserMessageEntry#STATUS_RESENT}
+     *                  for an outbound message, ignored for inbound ones
+     * @param json      Message body
+     */
+    public void append(final int direction, final int status, final String json) {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                write(direction, status, json);
+            }
+        });
+    }
+
+    /**
+     * Run a task on the store thread, queries should be made through it
+     *
+     * @param task
+     * @return false when the store is closed and the task was not run
+     */
+    public boolean execute(Runnable task) {
+        try {
+            executor.execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    private synchronized void write(int direction, int status, String json) {
+        if (closed) {
+            return;
+        }
+        UserMessageEntry msg;
+        try {
+            msg = UserMessageDecoder.decode(json);
+        } catch (JsonParseException e) {
+            return;
+        }
+        if (msg == null || msg.getMicroGroupId() == null || msg.getMicroGroupId().isEmpty()) {
+            return;
+        }
+        String id = msg.getId() == null ? "" : msg.getId();
+        byte[] group = msg.getMicroGroupId().getBytes(UTF_8);
+        byte[] idBytes = id.getBytes(UTF_8);
+        byte[] body = json.getBytes(UTF_8);
+        if (group.length > 0xffff || idBytes.length > 0xffff) {
+            return;
+        }
+        int length = RECORD_HEADER + 2 + group.length + 2 + idBytes.length + body.length;
+        ByteBuffer out = ByteBuffer.allocate(length);
+        out.putInt(length);
+        out.putInt(0);
+        out.put((byte) direction);
+        out.put((byte) status);
+        out.putShort((short) group.length);
+        out.put(group);
+        out.putShort((short) idBytes.length);
+        out.put(idBytes);
+        out.put(body);
+        crc.reset();
+        crc.update(out.array(), 8, length - 8);
+        out.putInt(4, (int) crc.getValue());
+        try {
+            if (activeSize > 0 && activeSize + length > SEGMENT_SIZE) {
+                roll();
+            }
+            RandomAccessFile file = segmentFile(activeSegment, true);
+            file.seek(activeSize);
+            file.write(out.array());
+            long position = position(activeSegment, activeSize);
+            activeSize += length;
+            segmentSizes.put(activeSegment, activeSize);
+            //The index entry follows the record, a lost entry is restored by recover()
+            appendIndex(index(msg.getMicroGroupId()), position, DedupeCache.hash(id));
+            storedCount++;
+        } catch (IOException e) {
+            Log.e(TAG, "Message store append failed", e);
+        }
+    }
+
+    /**
+     * Start a new segment and delete the oldest ones past the size limit, with their index entries
+     */
+    private void roll() throws IOException {
+        activeSegment++;
+        activeSize = 0;
+        segmentSizes.put(activeSegment, 0L);
+        while (segmentSizes.size() > 1 && totalBytes() > maxBytes) {
+            int oldest = segmentSizes.firstKey();
+            segmentSizes.remove(oldest);
+            closeQuietly(segmentFiles.remove(oldest));
+            if (!segmentFile(oldest).delete()) {
+                Log.e(TAG, "Cannot delete message store segment " + oldest);
+            }
+            pruneIndexes();
+        }
+    }
+
+    /**
+     * Drop the index entries of deleted segments. Entries are in append order, so those are the
+     * first entries of an index; an index left without entries is deleted
+     */
+    private void pruneIndexes() {
+        Set<String> cached = new HashSet<>();
+        Iterator<Map.Entry<String, GroupIndex>> it = groups.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, GroupIndex> entry = it.next();
+            File file = indexFile(entry.getKey());
+            cached.add(file.getName());
+            GroupIndex index = entry.getValue();
+            int dead = 0;
+            while (dead < index.size && !isLive(index.positions[dead])) {
+                dead++;
+            }
+            if (dead == 0) {
+                continue;
+            }
+            if (dead == index.size) {
+                it.remove();
+                closeQuietly(index.file);
+                deleteIndex(file);
+                continue;
+            }
+            index.removeFirst(dead);
+            try {
+                writeIndex(index);
+            } catch (IOException e) {
+                Log.e(TAG, "Message store index cannot be pruned", e);
+            }
+        }
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File f : files) {
+            if (f.getName().endsWith(INDEX_SUFFIX) && !cached.contains(f.getName())) {
+                pruneIndex(f);
+            }
+        }
+    }
+
+    /**
+     * Prune an index file that is not loaded, only read when its first entry is gone
+     *
+     * @param file
+     */
+    private void pruneIndex(File file) {
+        RandomAccessFile raf = null;
+        boolean empty = false;
+        try {
+            raf = new RandomAccessFile(file, "rw");
+            if (raf.length() >= INDEX_ENTRY) {
+                raf.seek(0);
+                if (isLive(raf.readLong())) {
+                    return;
+                }
+            }
+            empty = loadIndex(raf).size == 0;
+        } catch (IOException e) {
+            Log.e(TAG, "Message store index cannot be pruned", e);
+        } finally {
+            closeQuietly(raf);
+        }
+        if (empty) {
+            deleteIndex(file);
+        }
+    }
+
+    private void deleteIndex(File file) {
+        long length = file.length();
+        if (file.delete()) {
+            indexBytes -= length;
+        } else {
+            Log.e(TAG, "Cannot delete message store index " + file.getName());
+        }
+    }
+
+    private long totalBytes() {
+        long total = indexBytes;
+        for (long size : segmentSizes.values()) {
+            total += size;
+        }
+        return total;
+    }
+
+    /**
+     * The newest messages of a group
+     *
+     * @param group microGroupId
+     * @param limit Maximum number of messages
+     * @return Message maps, oldest first
+     */
+    public synchronized List<Map<String, Object>> latest(String group, int limit) {
+        GroupIndex index = queryIndex(group);
+        if (index == null) {
+            return Collections.emptyList();
+        }
+        return page(group, index, index.size - limit, index.size);
+    }
+
+    /**
+     * Messages of a group older than the given one
+     *
+     * @param group microGroupId
+     * @param id    Id of the message to page back from
+     * @param limit Maximum number of messages
+     * @return Message maps, oldest first, empty when the id is not in the store
+     */
+    public synchronized List<Map<String, Object>> before(String group, String id, int limit) {
+        GroupIndex index = queryIndex(group);
+        int at = index == null || id == null ? -1 : index.find(DedupeCache.hash(id));
+        if (at < 0) {
+            return Collections.emptyList();
+        }
+        return page(group, index, at - limit, at);
+    }
+
+    /**
+     * Messages of a group newer than the given one
+     *
+     * @param group microGroupId
+     * @param id    Id of the message to page forward from
+     * @param limit Maximum number of messages
+     * @return Message maps, oldest first, empty when the id is not in the store
+     */
+    public synchronized List<Map<String, Object>> after(String group, String id, int limit) {
+        GroupIndex index = queryIndex(group);
+        int at = index == null || id == null ? -1 : index.find(DedupeCache.hash(id));
+        if (at < 0) {
+            return Collections.emptyList();
+        }
+        return page(group, index, at + 1, at + 1 + limit);
+    }
+
+    /**
+     * Number of stored messages of a group
+     *
+     * @param group
+     * @return
+     */
+    public synchronized int count(String group) {
+        GroupIndex index = queryIndex(group);
+        return index == null ? 0 : index.size;
+    }
+
+    private GroupIndex queryIndex(String group) {
+        if (closed || group == null || group.isEmpty()) {
+            return null;
+        }
+        //A query leaves no index file behind for a group that has none
+        if (!groups.containsKey(group) && !indexFile(group).exists()) {
+            return null;
+        }
+        try {
+            return index(group);
+        } catch (IOException e) {
+            Log.e(TAG, "Message store index cannot be read", e);
+            return null;
+        }
+    }
+
+    private List<Map<String, Object>> page(String group, GroupIndex index, int from, int to) {
+        from = Math.max(0, from);
+        to = Math.min(index.size, to);
+        List<Map<String, Object>> list = new ArrayList<>(Math.max(0, to - from));
+        for (int i = from; i < to; i++) {
+            try {
+                Map<String, Object> map = readMap(group, index.positions[i]);
+                if (map != null) {
+                    list.add(map);
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Message store read failed", e);
+            }
+        }
+        return list;
+    }
+
+    private Map<String, Object> readMap(String group, long position) throws IOException {
+        int segment = (int) (position >>> 32);
+        long offset = position & 0xffffffffL;
+        Long size = segmentSizes.get(segment);
+        if (size == null) {
+            return null;
+        }
+        byte[] record = readRecord(segmentFile(segment, false), offset, size);
+        if (record == null) {
+            return null;
+        }
+        ByteBuffer in = ByteBuffer.wrap(record);
+        in.position(8);
+        int direction = in.get();
+        int status = in.get();
+        if (!group.equals(readString(in))) {
+            //Index files are named by a hash of the group
+            return null;
+        }
+        readString(in);
+        String json = new String(record, in.position(), record.length - in.position(), UTF_8);
+        UserMessageEntry msg;
+        try {
+            msg = UserMessageDecoder.decode(json);
+        } catch (JsonParseException e) {
+            return null;
+        }
+        if (msg == null) {
+            return null;
+        }
+        Map<String, Object> map = UserMessageDecoder.toMap(msg);
+        if (direction == DIRECTION_OUT) {
+            map.put("sendState", status);
+        }
+        map.put("direct", direction);
+        return map;
+    }
+
+    /**
+     * Read and check the record at the offset
+     *
+     * @return null when the record is damaged or incomplete
+     */
+    private byte[] readRecord(RandomAccessFile file, long offset, long end) throws IOException {
+        if (offset + RECORD_HEADER > end) {
+            return null;
+        }
+        file.seek(offset);
+        int length = file.readInt();
+        if (length < RECORD_HEADER + 4 || offset + length > end) {
+            return null;
+        }
+        byte[] record = new byte[length];
+        file.seek(offset);
+        file.readFully(record);
+        crc.reset();
+        crc.update(record, 8, length - 8);
+        if ((int) crc.getValue() != ByteBuffer.wrap(record).getInt(4)) {
+            return null;
+        }
+        return record;
+    }
+
+    /**
+     * Index of a group, loaded from its file and cached. Entries of deleted segments or behind the
+     * end of the log are dropped, and the file is rewritten without them
+     */
+    private GroupIndex index(String group) throws IOException {
+        GroupIndex index = groups.get(group);
+        if (index != null) {
+            return index;
+        }
+        index = loadIndex(new RandomAccessFile(indexFile(group), "rw"));
+        groups.put(group, index);
+        return index;
+    }
+
+    /**
+     * Read the live entries of an index file, rewriting it when it holds others
+     */
+    private GroupIndex loadIndex(RandomAccessFile raf) throws IOException {
+        GroupIndex index = new GroupIndex(raf);
+        int count = (int) (raf.length() / INDEX_ENTRY);
+        boolean stale = raf.length() != (long) count * INDEX_ENTRY;
+        if (count > 0) {
+            byte[] bytes = new byte[count * INDEX_ENTRY];
+            raf.seek(0);
+            raf.readFully(bytes);
+            ByteBuffer in = ByteBuffer.wrap(bytes);
+            for (int i = 0; i < count; i++) {
+                long position = in.getLong();
+                long id = in.getLong();
+                if (isLive(position)) {
+                    index.add(position, id);
+                } else {
+                    stale = true;
+                }
+            }
+        }
+        if (stale) {
+            writeIndex(index);
+        }
+        return index;
+    }
+
+    /**
+     * Replace the content of an index file with the entries in memory
+     */
+    private void writeIndex(GroupIndex index) throws IOException {
+        long before = index.file.length();
+        ByteBuffer out = ByteBuffer.allocate(index.size * INDEX_ENTRY);
+        for (int i = 0; i < index.size; i++) {
+            out.putLong(index.positions[i]);
+            out.putLong(index.ids[i]);
+        }
+        index.file.setLength(0);
+        index.file.seek(0);
+        index.file.write(out.array());
+        indexBytes += out.capacity() - before;
+    }
+
+    private File indexFile(String group) {
+        return new File(dir, Long.toHexString(DedupeCache.hash(group)) + INDEX_SUFFIX);
+    }
+
+    private boolean isLive(long position) {
+        int segment = (int) (position >>> 32);
+        long offset = position & 0xffffffffL;
+        Long size = segmentSizes.get(segment);
+        return size != null && offset < size;
+    }
+
+    private void appendIndex(GroupIndex index, long position, long id) throws IOException {
+        ByteBuffer out = ByteBuffer.allocate(INDEX_ENTRY);
+        out.putLong(position);
+        out.putLong(id);
+        long at = (long) index.size * INDEX_ENTRY;
+        long before = index.file.length();
+        index.file.seek(at);
+        index.file.write(out.array());
+        indexBytes += Math.max(before, at + INDEX_ENTRY) - before;
+        index.add(position, id);
+    }
+
+    private RandomAccessFile segmentFile(int segment, boolean create) throws IOException {
+        RandomAccessFile file = segmentFiles.get(segment);
+        if (file == null) {
+            File f = segmentFile(segment);
+            if (!create && !f.exists()) {
+                throw new IOException("Missing segment " + f);
+            }
+            file = new RandomAccessFile(f, "rw");
+            segmentFiles.put(segment, file);
+        }
+        return file;
+    }
+
+    private File segmentFile(int segment) {
+        return new File(dir, String.format(Locale.US, "%010d%s", segment, SEGMENT_SUFFIX));
+    }
+
+    private static long position(int segment, long offset) {
+        return ((long) segment << 32) | offset;
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = in.getShort() & 0xffff;
+        String s = new String(in.array(), in.position(), length, UTF_8);
+        in.position(in.position() + length);
+        return s;
+    }
+
+    private static void closeQuietly(RandomAccessFile file) {
+        if (file == null) {
+            return;
+        }
+        try {
+            file.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Message store file close failed", e);
+        }
+    }
+
+    /**
+     * Number of messages stored since the store was opened
+     *
+     * @return
+     */
+    public long getStoredCount() {
+        return storedCount;
+    }
+
+    /**
+     * Size of the segments and index files on disk
+     *
+     * @return
+     */
+    public synchronized long getSize() {
+        return totalBytes();
+    }
+
+    /**
+     * Finish the pending writes on the store thread and close the files
+     */
+    public void close() {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (MessageStore.this) {
+                    closed = true;
+                    for (RandomAccessFile file : segmentFiles.values()) {
+                        closeQuietly(file);
+                    }
+                    segmentFiles.clear();
+                    for (GroupIndex index : groups.values()) {
+                        closeQuietly(index.file);
+                    }
+                    groups.clear();
+                }
+            }
+        });
+        executor.shutdown();
+    }
+}
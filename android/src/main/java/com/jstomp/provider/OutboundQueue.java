@@ -0,0 +1,1068 @@
+package com.jstomp.provider;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import io.reactivex.Completable;
+import io.reactivex.observers.DisposableCompletableObserver;
+import ua.naiksoftware.stomp.dto.StompHeader;
+import ua.naiksoftware.stomp.dto.StompMessage;
+
+/**
+ * Outbound send engine.
+ * <p>
+ * Producers put messages into a bounded queue and a single writer thread drains it in batches.
+ * The queue has three lanes, control, interactive and bulk, drained by smooth weighted round
+ * robin with the weights {@link #LANE_WEIGHTS}: while every lane has messages they are taken in
+ * that ratio, interleaved, and a lane alone gets the whole bandwidth. The time each message waited
+ * is recorded per lane.
+ * <p>
+ * At most {@code maxInFlight} messages are handed to the socket without having completed, and
+ * completed sends release their slot and their disposable. When the transport allows it, a batch
+ * is written as one websocket message holding several stomp frames.
+ * <p>
+ * Bodies longer than the chunk size are sent as fragments carrying {@link #HEADER_CHUNK_ID},
+ * {@link #HEADER_CHUNK_INDEX} and {@link #HEADER_CHUNK_TOTAL}. The writer sends one fragment per
+ * round next to the queued messages and rotates between chunked messages, so a large message
+ * never holds back the small ones queued after it.
+ * <p>
+ * An optional {@link RateLimiter} paces the writer, so a producer faster than the limit fills the
+ * queue instead of the socket. The writer never sleeps on a single destination: messages whose
+ * destination has no token stay queued in order and the others are taken past them, and only when
+ * nothing can go does it wait, until the earliest refill or a new message. The queue reports backpressure: it turns paused once the queued
+ * bodies reach the high watermark or the queue is full, and writable again once they are drained
+ * to the low watermark.
+ **/
+public class OutboundQueue {
+    private static final String TAG = "OutboundQueue";
+
+    /*Default queue capacity*/
+    public static final int DEFAULT_CAPACITY = 4096;
+    /*Default number of messages written but not yet completed*/
+    public static final int DEFAULT_MAX_IN_FLIGHT = 64;
+    /*Maximum number of messages taken from the queue per write*/
+    private static final int MAX_BATCH_SIZE = 32;
+    /*A write that has not completed by then is failed, so a replaced client cannot hold a slot forever*/
+    private static final long SEND_TIMEOUT = 30;
+
+    /*Headers of a fragment: id of the chunked message, fragment number from 0 and fragment count*/
+    public static final String HEADER_CHUNK_ID = "chunk-id";
+    public static final String HEADER_CHUNK_INDEX = "chunk-index";
+    public static final String HEADER_CHUNK_TOTAL = "chunk-total";
+    /*Smallest fragment size*/
+    private static final int MIN_CHUNK_SIZE = 256;
+
+    /*Lanes: system control messages, interactive messages such as text, bulk messages such as media*/
+    public static final int LANE_CONTROL = 0;
+    public static final int LANE_INTERACTIVE = 1;
+    public static final int LANE_BULK = 2;
+    private static final String[] LANE_NAMES = {"control", "interactive", "bulk"};
+    /*Share of the writes each lane gets while all lanes have messages*/
+    private static final int[] LANE_WEIGHTS = {8, 4, 1};
+    /*Default queued body size at which producers are told to pause, in characters*/
+    public static final long DEFAULT_HIGH_WATERMARK = 1024 * 1024;
+    /*Default queued body size at which producers are told to resume, in characters*/
+    public static final long DEFAULT_LOW_WATERMARK = 256 * 1024;
+    /*Bucket upper bounds of the queueing delay, in milliseconds*/
+    private static final long[] QUEUE_DELAY_BOUNDS = {1, 2, 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000};
+
+    /**
+     * Socket access used by the writer
+     */
+    public interface Transport {
+        /**
+         * Send one stomp message
+         */
+        Completable send(StompMessage message);
+
+        /**
+         * Whether several frames can be written as one websocket message right now
+         */
+        boolean canSendFrames();
+
+        /**
+         * Send several compiled stomp frames as one websocket message
+         */
+        Completable sendFrames(String frames);
+
+        /**
+         * Form of the message written to the socket, e.g. with a compressed body.
+         * Send results always report the queued message
+         */
+        default StompMessage encode(StompMessage message) {
+            return message;
+        }
+
+        /**
+         * Whether messages can be handed over now, e.g. a connection is open or opening. While
+         * it is not the messages stay queued, call {@link #onTransportOpen} when it is again
+         */
+        default boolean isOpen() {
+            return true;
+        }
+    }
+
+    /**
+     * Send result callback, called on the thread that completed the write
+     */
+    public interface OnSendResultListener {
+        void onSendResult(int status, StompMessage message, Throwable error);
+
+        /**
+         * The message is handed to the transport now, called on the writer thread; for a chunked
+         * message when its last fragment is
+         */
+        default void onWrite(StompMessage message) {
+        }
+    }
+
+    /**
+     * Backpressure callback, called on the producer thread when pausing and on the writer thread
+     * when resuming
+     */
+    public interface OnFlowListener {
+        /**
+         * @param writable    false when producers should stop sending, true when they may go on
+         * @param queueDepth  Queued messages
+         * @param queuedChars Characters of the queued bodies
+         */
+        void onFlowChanged(boolean writable, int queueDepth, long queuedChars);
+    }
+
+    /**
+     * A queued message and when it was queued
+     */
+    private static final class Queued {
+        final StompMessage message;
+        final long queueTime;
+
+        Queued(StompMessage message, long queueTime) {
+            this.message = message;
+            this.queueTime = queueTime;
+        }
+    }
+
+    private final int capacity;
+    /*Queued messages per lane, guarded by lock*/
+    private final ArrayDeque<Queued>[] lanes;
+    /*Round robin credit of each lane, guarded by lock*/
+    private final int[] laneCredits = new int[LANE_NAMES.length];
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    /*Messages in all lanes*/
+    private volatile int count = 0;
+    /*Messages ever queued, guarded by lock, and the number the writer last took from*/
+    private long offers = 0;
+    private long seenOffers = 0;
+    /*Messages taken from each lane and the time they waited*/
+    private final AtomicLong[] laneTaken = new AtomicLong[LANE_NAMES.length];
+    private final StompMetrics.Histogram[] laneDelay = new StompMetrics.Histogram[LANE_NAMES.length];
+    private final Semaphore inFlightPermits;
+    private final int maxInFlight;
+    private final int batchSize;
+    private final Transport transport;
+    private final OnSendResultListener listener;
+    /*Writes that have not completed yet, pruned on completion*/
+    private final Set<Write> inFlight = Collections.newSetFromMap(new ConcurrentHashMap<Write, Boolean>());
+
+    /*Send rate limits, null for none*/
+    private volatile RateLimiter rateLimiter;
+    /*Destinations held back by the limiter in the current take, only used by the writer thread*/
+    private final Set<String> held = new HashSet<>();
+    /*Nanoseconds until the first held back message may go, only used by the writer thread*/
+    private long heldDelay;
+    /*Characters of the bodies queued and not yet written, fragments count until written*/
+    private final AtomicLong queuedChars = new AtomicLong();
+    private volatile long highWatermark = DEFAULT_HIGH_WATERMARK;
+    private volatile long lowWatermark = DEFAULT_LOW_WATERMARK;
+    private final AtomicBoolean paused = new AtomicBoolean(false);
+    private volatile OnFlowListener flowListener;
+
+    /*Body size from which messages are sent in fragments, 0 when off*/
+    private volatile int chunkSize = 0;
+    /*Messages being sent in fragments, in turn, only used by the writer thread*/
+    private final ArrayDeque<ChunkedSend> chunked = new ArrayDeque<>();
+    /*Prefix of the chunk ids of this queue*/
+    private final String chunkIdPrefix = Long.toHexString(new Random().nextLong()) + "-";
+    private long nextChunkId = 0;
+
+    private volatile boolean running = false;
+    private Thread writer;
+
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private volatile long writes = 0;
+    private volatile long chunkedCount = 0;
+    private volatile long fragments = 0;
+
+    /**
+     * A message sent in fragments. The send result is reported once, as a failure when the first
+     * fragment fails, or as a success when every fragment was written
+     */
+    private static final class ChunkedSend {
+        final StompMessage message;
+        final String id;
+        /*Fragment boundaries in the body, fragment i is [bounds[i], bounds[i + 1])*/
+        final int[] bounds;
+        int next = 0;
+        final AtomicInteger remaining;
+        final AtomicBoolean failed = new AtomicBoolean(false);
+
+        ChunkedSend(StompMessage message, String id, int chunkSize) {
+            this.message = message;
+            this.id = id;
+            String payload = message.getPayload();
+            int length = payload.length();
+            int[] b = new int[(length + chunkSize - 1) / chunkSize + 1];
+            int n = 0;
+            int at = 0;
+            while (at < length) {
+                int end = Math.min(length, at + chunkSize);
+                //Keep surrogate pairs in one fragment
+                if (end < length && Character.isHighSurrogate(payload.charAt(end - 1))) {
+                    end--;
+                }
+                if (n + 1 == b.length) {
+                    b = Arrays.copyOf(b, b.length + 8);
+                }
+                b[n++] = at;
+                at = end;
+            }
+            b[n] = length;
+            this.bounds = Arrays.copyOf(b, n + 1);
+            this.remaining = new AtomicInteger(n);
+        }
+
+        int total() {
+            return bounds.length - 1;
+        }
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public OutboundQueue(int capacity, int maxInFlight, Transport transport, OnSendResultListener listener) {
+        this.capacity = capacity <= 0 ? DEFAULT_CAPACITY : capacity;
+        this.lanes = new ArrayDeque[LANE_NAMES.length];
+        for (int i = 0; i < LANE_NAMES.length; i++) {
+            lanes[i] = new ArrayDeque<>();
+            laneTaken[i] = new AtomicLong();
+            laneDelay[i] = new StompMetrics.Histogram(QUEUE_DELAY_BOUNDS);
+        }
+        this.maxInFlight = maxInFlight <= 0 ? DEFAULT_MAX_IN_FLIGHT : maxInFlight;
+        this.inFlightPermits = new Semaphore(this.maxInFlight);
+        this.batchSize = Math.min(MAX_BATCH_SIZE, this.maxInFlight);
+        this.transport = transport;
+        this.listener = listener;
+    }
+
+    /**
+     * Start the writer thread
+     */
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, "jstomp-outbound");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Stop the writer. Pending writes are disposed, and they, the queued messages and the
+     * messages left to send in fragments are all reported as failed, like writes that time out
+     */
+    public synchronized void stop() {
+        running = false;
+        Thread thread = writer;
+        writer = null;
+        if (thread != null) {
+            thread.interrupt();
+            //The writer owns the chunked messages and the batch it took until it exits
+            if (thread != Thread.currentThread()) {
+                boolean interrupted = false;
+                while (thread.isAlive()) {
+                    try {
+                        thread.join();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+        List<StompMessage> queued = new ArrayList<>();
+        lock.lock();
+        try {
+            for (ArrayDeque<Queued> lane : lanes) {
+                for (Queued q : lane) {
+                    queued.add(q.message);
+                }
+                lane.clear();
+            }
+            count = 0;
+        } finally {
+            lock.unlock();
+        }
+        queuedChars.set(0);
+        paused.set(false);
+        Throwable stopped = new IllegalStateException("Outbound queue stopped");
+        for (Write write : inFlight.toArray(new Write[0])) {
+            write.abort(stopped);
+        }
+        ChunkedSend send;
+        while ((send = chunked.poll()) != null) {
+            fail(send, stopped);
+        }
+        for (StompMessage message : queued) {
+            fail(message, stopped);
+        }
+    }
+
+    /**
+     * Send bodies longer than the given size in fragments
+     *
+     * @param chunkSize Fragment size in characters, 0 turns chunking off
+     */
+    public void setChunkSize(int chunkSize) {
+        this.chunkSize = chunkSize <= 0 ? 0 : Math.max(MIN_CHUNK_SIZE, chunkSize);
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Pace the writer with rate limits
+     *
+     * @param rateLimiter null for no limit
+     */
+    public void setRateLimiter(RateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
+
+    public RateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    /**
+     * Backpressure thresholds
+     *
+     * @param highWatermark Queued characters at which producers are told to pause, 0 for the default
+     * @param lowWatermark  Queued characters at which they are told to resume, 0 for the default
+     */
+    public void setWatermarks(long highWatermark, long lowWatermark) {
+        this.highWatermark = highWatermark <= 0 ? DEFAULT_HIGH_WATERMARK : highWatermark;
+        this.lowWatermark = Math.min(this.highWatermark, lowWatermark <= 0 ? DEFAULT_LOW_WATERMARK : lowWatermark);
+        updateFlow();
+    }
+
+    public void setOnFlowListener(OnFlowListener flowListener) {
+        this.flowListener = flowListener;
+    }
+
+    /**
+     * Lane of a name, "control", "interactive" or "bulk"
+     *
+     * @param name
+     * @return -1 for an unknown name
+     */
+    public static int lane(String name) {
+        for (int i = 0; i < LANE_NAMES.length; i++) {
+            if (LANE_NAMES[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Queue a message in the interactive lane, never blocks
+     *
+     * @param message
+     * @return false if the queue is full or stopped
+     */
+    public boolean offer(StompMessage message) {
+        return offer(message, LANE_INTERACTIVE);
+    }
+
+    /**
+     * Queue a message for sending, never blocks
+     *
+     * @param message
+     * @param lane    {@link #LANE_CONTROL}, {@link #LANE_INTERACTIVE} or {@link #LANE_BULK}
+     * @return false if the queue is full or stopped
+     */
+    public boolean offer(StompMessage message, int lane) {
+        if (lane < 0 || lane >= LANE_NAMES.length) {
+            lane = LANE_INTERACTIVE;
+        }
+        boolean queued = false;
+        lock.lock();
+        try {
+            if (running && count < capacity) {
+                lanes[lane].add(new Queued(message, System.nanoTime()));
+                count++;
+                offers++;
+                queuedChars.addAndGet(length(message));
+                notEmpty.signal();
+                queued = true;
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (!queued) {
+            rejected.incrementAndGet();
+        }
+        updateFlow();
+        return queued;
+    }
+
+    private static int length(StompMessage message) {
+        return message.getPayload() == null ? 0 : message.getPayload().length();
+    }
+
+    /**
+     * Switch between paused and writable at the watermarks and tell the listener
+     */
+    private void updateFlow() {
+        long chars = queuedChars.get();
+        int depth = count;
+        boolean change;
+        if (!paused.get()) {
+            change = (chars >= highWatermark || depth >= capacity) && paused.compareAndSet(false, true);
+        } else {
+            change = chars <= lowWatermark && depth <= capacity / 2 && paused.compareAndSet(true, false);
+        }
+        OnFlowListener l = flowListener;
+        if (change && l != null) {
+            l.onFlowChanged(!paused.get(), depth, chars);
+        }
+    }
+
+    /**
+     * Take up to {@code max} messages, lane by lane in weighted round robin. With a rate limiter
+     * only messages that may go now are taken, the others stay queued in order
+     *
+     * @param batch
+     * @param max
+     * @param limiter null for no limit
+     * @return nanoseconds until a held back message may go, Long.MAX_VALUE when none is held back
+     */
+    private long take(List<StompMessage> batch, int max, RateLimiter limiter) throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            seenOffers = offers;
+            long now = System.nanoTime();
+            int size = chunkSize;
+            held.clear();
+            heldDelay = Long.MAX_VALUE;
+            //Lanes with nothing that may go now
+            int blocked = 0;
+            while (batch.size() < max && count > 0) {
+                if (limiter != null) {
+                    long delay = limiter.connectionDelay(now);
+                    if (delay > 0) {
+                        heldDelay = Math.min(heldDelay, delay);
+                        break;
+                    }
+                }
+                int lane = nextLane(blocked);
+                if (lane < 0) {
+                    break;
+                }
+                Queued queued = poll(lanes[lane], limiter, size, now);
+                if (queued == null) {
+                    blocked |= 1 << lane;
+                    continue;
+                }
+                count--;
+                laneTaken[lane].incrementAndGet();
+                laneDelay[lane].record((now - queued.queueTime) / 1000000);
+                batch.add(queued.message);
+            }
+            return heldDelay;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * First message of a lane that may go now, taking its tokens. Messages over the chunk size
+     * always may, their fragments are paced one by one
+     *
+     * @param lane
+     * @param limiter null for no limit
+     * @param size    Chunk size
+     * @param now
+     * @return null when every message of the lane is held back
+     */
+    private Queued poll(ArrayDeque<Queued> lane, RateLimiter limiter, int size, long now) {
+        if (limiter == null) {
+            return lane.poll();
+        }
+        Iterator<Queued> iterator = lane.iterator();
+        while (iterator.hasNext()) {
+            Queued queued = iterator.next();
+            if (size > 0 && length(queued.message) > size) {
+                iterator.remove();
+                return queued;
+            }
+            String destination = queued.message.findHeader(StompHeader.DESTINATION);
+            if (!limiter.limitsDestinations()) {
+                limiter.take(destination, now);
+                iterator.remove();
+                return queued;
+            }
+            //Later messages to a held back destination stay behind it
+            if (destination != null && held.contains(destination)) {
+                continue;
+            }
+            long delay = limiter.destinationDelay(destination, now);
+            if (delay == 0) {
+                limiter.take(destination, now);
+                iterator.remove();
+                return queued;
+            }
+            held.add(destination);
+            heldDelay = Math.min(heldDelay, delay);
+        }
+        return null;
+    }
+
+    /**
+     * Smooth weighted round robin over the lanes that have messages
+     *
+     * @param skip Bits of the lanes to leave out
+     * @return -1 when no lane is left
+     */
+    private int nextLane(int skip) {
+        int best = -1;
+        int total = 0;
+        for (int i = 0; i < lanes.length; i++) {
+            if (lanes[i].isEmpty()) {
+                //An empty lane saves no credit for later
+                laneCredits[i] = 0;
+                continue;
+            }
+            if ((skip & 1 << i) != 0) {
+                continue;
+            }
+            laneCredits[i] += LANE_WEIGHTS[i];
+            total += LANE_WEIGHTS[i];
+            if (best < 0 || laneCredits[i] > laneCredits[best]) {
+                best = i;
+            }
+        }
+        if (best >= 0) {
+            laneCredits[best] -= total;
+        }
+        return best;
+    }
+
+    /**
+     * Wait for a new message, or until a held back message may go
+     *
+     * @param nanos Long.MAX_VALUE to wait for a new message only
+     */
+    private void await(long nanos, RateLimiter limiter) throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            if (offers != seenOffers) {
+                //Queued after the last take
+                return;
+            }
+            if (nanos == Long.MAX_VALUE) {
+                notEmpty.await();
+            } else {
+                long left = notEmpty.awaitNanos(nanos);
+                if (limiter != null) {
+                    limiter.recordWait(nanos - Math.max(0, left));
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The transport can take messages again, wake the writer
+     */
+    public void onTransportOpen() {
+        lock.lock();
+        try {
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wait until the transport can take messages
+     */
+    private void awaitOpen() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (running && !transport.isOpen()) {
+                notEmpty.await();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void loop() {
+        List<StompMessage> batch = new ArrayList<>(batchSize);
+        while (running) {
+            ChunkedSend send = null;
+            try {
+                //Messages wait in the queue rather than in flight on a closed connection
+                awaitOpen();
+                RateLimiter limiter = rateLimiter;
+                long wait = take(batch, batchSize, limiter);
+                takeOversized(batch);
+                send = nextChunked(limiter);
+                wait = Math.min(wait, heldDelay);
+                StompMessage fragment = send == null ? null : nextFragment(send);
+                if (batch.isEmpty() && fragment == null) {
+                    //Fragments of a failed message are dropped without waiting
+                    if (send == null) {
+                        await(wait, limiter);
+                    }
+                    continue;
+                }
+                if (fragment != null && limiter != null) {
+                    limiter.take(fragment.findHeader(StompHeader.DESTINATION), System.nanoTime());
+                }
+                //The batch is at most maxInFlight, the fragment waits for its own permit
+                if (!batch.isEmpty()) {
+                    inFlightPermits.acquire(batch.size());
+                    write(batch);
+                    batch.clear();
+                }
+                if (fragment != null) {
+                    inFlightPermits.acquire();
+                    if (send.next == send.total()) {
+                        listener.onWrite(send.message);
+                    }
+                    writes++;
+                    fragments++;
+                    queuedChars.addAndGet(-length(fragment));
+                    Write write = fragmentWrite(send);
+                    if (register(write)) {
+                        subscribe(transport.send(transport.encode(fragment)), write);
+                    }
+                }
+                updateFlow();
+            } catch (InterruptedException e) {
+                //Stopped: what was taken but not written is failed here, the rest by stop()
+                Throwable stopped = new IllegalStateException("Outbound queue stopped");
+                for (StompMessage message : batch) {
+                    fail(message, stopped);
+                }
+                if (send != null) {
+                    fail(send, stopped);
+                }
+                return;
+            } catch (Exception e) {
+                Log.e(TAG, "Stomp outbound write failed", e);
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * Next chunked message whose fragment may go now, held back ones keep their turn. Sets
+     * {@link #heldDelay} to the time until the first held back one may go
+     *
+     * @param limiter null for no limit
+     * @return null when there is none
+     */
+    private ChunkedSend nextChunked(RateLimiter limiter) {
+        heldDelay = Long.MAX_VALUE;
+        if (limiter == null) {
+            return chunked.poll();
+        }
+        long now = System.nanoTime();
+        for (int i = 0, n = chunked.size(); i < n; i++) {
+            ChunkedSend send = chunked.poll();
+            if (send.failed.get()) {
+                return send;
+            }
+            long delay = limiter.delay(send.message.findHeader(StompHeader.DESTINATION), now);
+            if (delay == 0) {
+                return send;
+            }
+            heldDelay = Math.min(heldDelay, delay);
+            chunked.add(send);
+        }
+        return null;
+    }
+
+    /**
+     * Move the messages over the chunk size from the batch to the chunked messages
+     *
+     * @param batch
+     */
+    private void takeOversized(List<StompMessage> batch) {
+        int size = chunkSize;
+        if (size <= 0) {
+            return;
+        }
+        int kept = 0;
+        for (int i = 0, n = batch.size(); i < n; i++) {
+            StompMessage message = batch.get(i);
+            String payload = message.getPayload();
+            if (payload != null && payload.length() > size) {
+                chunked.add(new ChunkedSend(message, chunkIdPrefix + nextChunkId++, size));
+                chunkedCount++;
+            } else {
+                batch.set(kept++, message);
+            }
+        }
+        batch.subList(kept, batch.size()).clear();
+    }
+
+    /**
+     * Next fragment of a chunked message, which goes back to the end of the line when it has more
+     *
+     * @param send
+     * @return null when the message already failed
+     */
+    private StompMessage nextFragment(ChunkedSend send) {
+        if (send.failed.get()) {
+            //The fragments left are never written
+            queuedChars.addAndGet(send.bounds[send.next] - send.bounds[send.total()]);
+            return null;
+        }
+        int index = send.next++;
+        int total = send.total();
+        if (send.next < total) {
+            chunked.add(send);
+        }
+        List<StompHeader> source = send.message.getStompHeaders();
+        List<StompHeader> headers = new ArrayList<>(source.size() + 3);
+        String receipt = null;
+        for (StompHeader header : source) {
+            //The receipt goes on the last fragment, it then confirms the whole message
+            if (ReceiptTracker.HEADER_RECEIPT.equals(header.getKey())) {
+                receipt = header.getValue();
+            } else {
+                headers.add(header);
+            }
+        }
+        headers.add(new StompHeader(HEADER_CHUNK_ID, send.id));
+        headers.add(new StompHeader(HEADER_CHUNK_INDEX, String.valueOf(index)));
+        headers.add(new StompHeader(HEADER_CHUNK_TOTAL, String.valueOf(total)));
+        if (receipt != null && index == total - 1) {
+            headers.add(new StompHeader(ReceiptTracker.HEADER_RECEIPT, receipt));
+        }
+        String body = send.message.getPayload().substring(send.bounds[index], send.bounds[index + 1]);
+        return new StompMessage(send.message.getStompCommand(), headers, body);
+    }
+
+    private void write(List<StompMessage> batch) {
+        long chars = 0;
+        for (int i = 0, n = batch.size(); i < n; i++) {
+            chars += length(batch.get(i));
+        }
+        queuedChars.addAndGet(-chars);
+        for (int i = 0, n = batch.size(); i < n; i++) {
+            listener.onWrite(batch.get(i));
+        }
+        if (batch.size() > 1 && transport.canSendFrames()) {
+            StringBuilder frames = new StringBuilder();
+            for (int i = 0, n = batch.size(); i < n; i++) {
+                frames.append(transport.encode(batch.get(i)).compile());
+            }
+            writes++;
+            Write write = batchWrite(new ArrayList<>(batch));
+            if (register(write)) {
+                subscribe(transport.sendFrames(frames.toString()), write);
+            }
+            return;
+        }
+        for (int i = 0, n = batch.size(); i < n; i++) {
+            writes++;
+            Write write = messageWrite(batch.get(i));
+            if (register(write)) {
+                subscribe(transport.send(transport.encode(batch.get(i))), write);
+            }
+        }
+    }
+
+    /**
+     * A write waiting for its result. The result is reported once, from the transport or as a
+     * failure when the queue stops, and then the write gives back its in-flight slots
+     */
+    private abstract class Write extends DisposableCompletableObserver {
+        private final int permits;
+        private final AtomicBoolean done = new AtomicBoolean(false);
+
+        Write(int permits) {
+            this.permits = permits;
+        }
+
+        @Override
+        public final void onComplete() {
+            if (finish()) {
+                succeeded();
+            }
+        }
+
+        @Override
+        public final void onError(Throwable e) {
+            if (finish()) {
+                failed(e);
+            }
+        }
+
+        /**
+         * Fail without waiting for the transport
+         *
+         * @param e
+         */
+        void abort(Throwable e) {
+            dispose();
+            onError(e);
+        }
+
+        private boolean finish() {
+            if (!done.compareAndSet(false, true)) {
+                return false;
+            }
+            inFlight.remove(this);
+            inFlightPermits.release(permits);
+            return true;
+        }
+
+        abstract void succeeded();
+
+        abstract void failed(Throwable e);
+    }
+
+    private Write messageWrite(final StompMessage message) {
+        return new Write(1) {
+            @Override
+            void succeeded() {
+                sent.incrementAndGet();
+                listener.onSendResult(StompConfig.STOMP_SEND_SUCCESS, message, null);
+            }
+
+            @Override
+            void failed(Throwable e) {
+                fail(message, e);
+            }
+        };
+    }
+
+    private Write batchWrite(final List<StompMessage> messages) {
+        return new Write(messages.size()) {
+            @Override
+            void succeeded() {
+                sent.addAndGet(messages.size());
+                for (StompMessage message : messages) {
+                    listener.onSendResult(StompConfig.STOMP_SEND_SUCCESS, message, null);
+                }
+            }
+
+            @Override
+            void failed(Throwable e) {
+                OutboundQueue.this.failed.addAndGet(messages.size());
+                for (StompMessage message : messages) {
+                    listener.onSendResult(StompConfig.STOMP_SEND_FAIL, message, e);
+                }
+            }
+        };
+    }
+
+    private Write fragmentWrite(final ChunkedSend send) {
+        return new Write(1) {
+            @Override
+            void succeeded() {
+                if (send.remaining.decrementAndGet() == 0 && !send.failed.get()) {
+                    sent.incrementAndGet();
+                    listener.onSendResult(StompConfig.STOMP_SEND_SUCCESS, send.message, null);
+                }
+            }
+
+            @Override
+            void failed(Throwable e) {
+                fail(send, e);
+            }
+        };
+    }
+
+    private void fail(StompMessage message, Throwable e) {
+        failed.incrementAndGet();
+        listener.onSendResult(StompConfig.STOMP_SEND_FAIL, message, e);
+    }
+
+    /**
+     * Report a chunked message as failed once, its fragments left are dropped
+     *
+     * @param send
+     * @param e
+     */
+    private void fail(ChunkedSend send, Throwable e) {
+        if (send.failed.compareAndSet(false, true)) {
+            failed.incrementAndGet();
+            listener.onSendResult(StompConfig.STOMP_SEND_FAIL, send.message, e);
+        }
+    }
+
+    /**
+     * Track a write before it is handed to the transport, so a stop meanwhile still fails it
+     *
+     * @param write
+     * @return false when the queue is stopped, the write is then failed already
+     */
+    private boolean register(Write write) {
+        inFlight.add(write);
+        if (!running) {
+            write.abort(new IllegalStateException("Outbound queue stopped"));
+            return false;
+        }
+        return true;
+    }
+
+    private void subscribe(Completable completable, Write write) {
+        completable.timeout(SEND_TIMEOUT, TimeUnit.SECONDS).subscribe(write);
+    }
+
+    /**
+     * Number of messages waiting for the writer
+     *
+     * @return
+     */
+    public int getQueueDepth() {
+        return count;
+    }
+
+    /**
+     * Characters of the queued bodies, fragments of a chunked message count until written
+     *
+     * @return
+     */
+    public long getQueuedChars() {
+        return queuedChars.get();
+    }
+
+    /**
+     * Whether producers may go on sending, false between the high and the low watermark
+     *
+     * @return
+     */
+    public boolean isWritable() {
+        return !paused.get();
+    }
+
+    /**
+     * Statistics per lane: queued messages, messages taken and the time they waited in the queue
+     *
+     * @return
+     */
+    public Map<String, Object> laneSnapshot() {
+        Map<String, Object> map = new HashMap<>();
+        for (int i = 0; i < LANE_NAMES.length; i++) {
+            Map<String, Object> lane = new HashMap<>();
+            int depth;
+            lock.lock();
+            try {
+                depth = lanes[i].size();
+            } finally {
+                lock.unlock();
+            }
+            lane.put("weight", LANE_WEIGHTS[i]);
+            lane.put("queueDepth", depth);
+            lane.put("taken", laneTaken[i].get());
+            lane.put("queueDelayMillis", laneDelay[i].snapshot());
+            map.put(LANE_NAMES[i], lane);
+        }
+        return map;
+    }
+
+    /**
+     * Number of messages written but not completed
+     *
+     * @return
+     */
+    public int getInFlight() {
+        return maxInFlight - inFlightPermits.availablePermits();
+    }
+
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    public long getSentCount() {
+        return sent.get();
+    }
+
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    /**
+     * Number of messages refused because the queue was full
+     *
+     * @return
+     */
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    /**
+     * Number of socket writes, lower than the sent count when frames are coalesced
+     *
+     * @return
+     */
+    public long getWriteCount() {
+        return writes;
+    }
+
+    /**
+     * Number of messages sent in fragments
+     *
+     * @return
+     */
+    public long getChunkedCount() {
+        return chunkedCount;
+    }
+
+    /**
+     * Number of fragments written
+     *
+     * @return
+     */
+    public long getFragmentCount() {
+        return fragments;
+    }
+}
@@ -0,0 +1,372 @@
+package com.jstomp.provider;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import ua.naiksoftware.stomp.dto.StompCommand;
+import ua.naiksoftware.stomp.dto.StompHeader;
+import ua.naiksoftware.stomp.dto.StompMessage;
+
+/**
+ * Durable outbox of messages that have not been confirmed yet.
+ * <p>
+ * Records are appended to a memory-mapped segment file, so an append is a memory copy and
+ * survives a process crash. Each record is laid out as
+ * <pre>
+ * | length (4) | crc32 (4) | type (1) | seq (8) | body |
+ * </pre>
+ * The length is written last, a torn record therefore reads as the end of the log.
+ * Confirmed messages append a small ACK record; when the segment is full the live
+ * entries are rewritten into a fresh segment.
+ **/
+public class OutboxJournal {
+    private static final String TAG = "OutboxJournal";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final byte TYPE_ENTRY = 1;
+    private static final byte TYPE_ACK = 2;
+    private static final int RECORD_HEADER = 4 + 4 + 1 + 8;
+    private static final int DEFAULT_SEGMENT_SIZE = 1024 * 1024;
+
+    /**
+     * A message waiting in the outbox
+     */
+    public static final class Entry {
+        public final long seq;
+        public StompMessage message;
+        /*UserMessageEntry status: STATUS_SENT while first sent, STATUS_FAILED while waiting for a replay, STATUS_RESENT while replayed*/
+        int status = UserMessageEntry.STATUS_SENT;
+        /*Whether the entry currently sits in the send queue*/
+        boolean queued = false;
+
+        Entry(long seq, StompMessage message) {
+            this.seq = seq;
+            this.message = message;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+    }
+
+    private final File file;
+    private final Map<Long, Entry> entries = new LinkedHashMap<>();
+    private final Map<StompMessage, Entry> byMessage = new IdentityHashMap<>();
+
+    private RandomAccessFile raf;
+    private MappedByteBuffer buffer;
+    private long nextSeq = 1;
+    private final CRC32 crc = new CRC32();
+
+    public OutboxJournal(File file) throws IOException {
+        this.file = file;
+        File dir = file.getParentFile();
+        if (dir != null && !dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        open(Math.max(DEFAULT_SEGMENT_SIZE, (int) Math.min(Integer.MAX_VALUE, file.length())));
+        load();
+    }
+
+    private void open(int size) throws IOException {
+        raf = new RandomAccessFile(file, "rw");
+        if (raf.length() < size) {
+            raf.setLength(size);
+        }
+        buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+
+    /**
+     * Replay the log into memory, stops at the first empty or damaged record
+     */
+    private void load() {
+        buffer.position(0);
+        int end = 0;
+        while (buffer.remaining() >= RECORD_HEADER) {
+            int start = buffer.position();
+            int length = buffer.getInt();
+            if (length < RECORD_HEADER || length > buffer.capacity() - start) {
+                break;
+            }
+            int checksum = buffer.getInt();
+            crc.reset();
+            for (int i = start + 8; i < start + length; i++) {
+                crc.update(buffer.get(i));
+            }
+            if ((int) crc.getValue() != checksum) {
+                Log.e(TAG, "Damaged outbox record at " + start);
+                break;
+            }
+            byte type = buffer.get();
+            long seq = buffer.getLong();
+            nextSeq = Math.max(nextSeq, seq + 1);
+            if (type == TYPE_ENTRY) {
+                try {
+                    Entry entry = new Entry(seq, readMessage(buffer));
+                    entry.status = UserMessageEntry.STATUS_FAILED;
+                    entries.put(seq, entry);
+                    byMessage.put(entry.message, entry);
+                } catch (BufferUnderflowException e) {
+                    break;
+                }
+            } else if (type == TYPE_ACK) {
+                Entry entry = entries.remove(seq);
+                if (entry != null) {
+                    byMessage.remove(entry.message);
+                }
+            }
+            buffer.position(start + length);
+            end = start + length;
+        }
+        //Continue appending behind the last good record
+        for (int i = end; i < Math.min(end + RECORD_HEADER, buffer.capacity()); i++) {
+            buffer.put(i, (byte) 0);
+        }
+        buffer.position(end);
+        Log.i(TAG, "Outbox loaded, pending messages: " + entries.size());
+    }
+
+    /**
+     * Append a message, it stays in the outbox until {@link #ack} is called
+     *
+     * @param message
+     * @param queued  Whether the message goes to the send queue right away
+     * @return
+     */
+    public synchronized Entry append(StompMessage message, boolean queued) {
+        Entry entry = new Entry(nextSeq++, message);
+        entry.queued = queued;
+        try {
+            //Written before it is live, a compaction on the way would otherwise write it twice
+            writeRecord(TYPE_ENTRY, entry.seq, encodeMessage(message));
+        } catch (IOException e) {
+            Log.e(TAG, "Outbox append failed", e);
+        }
+        entries.put(entry.seq, entry);
+        byMessage.put(message, entry);
+        return entry;
+    }
+
+    /**
+     * Remove a confirmed message from the outbox
+     *
+     * @param message
+     * @return the removed entry, null if the message was not in the outbox
+     */
+    public synchronized Entry ack(StompMessage message) {
+        Entry entry = byMessage.remove(message);
+        if (entry == null) {
+            return null;
+        }
+        entries.remove(entry.seq);
+        try {
+            writeRecord(TYPE_ACK, entry.seq, null);
+        } catch (IOException e) {
+            Log.e(TAG, "Outbox ack failed", e);
+        }
+        return entry;
+    }
+
+    /**
+     * Outbox entry of a message, null if it is not in the outbox
+     *
+     * @param message
+     * @return
+     */
+    public synchronized Entry find(StompMessage message) {
+        return byMessage.get(message);
+    }
+
+    /**
+     * Mark a message as failed, it will be resent by the next replay
+     *
+     * @param message
+     */
+    public synchronized void markFailed(StompMessage message) {
+        Entry entry = byMessage.get(message);
+        if (entry != null) {
+            entry.status = UserMessageEntry.STATUS_FAILED;
+            entry.queued = false;
+        }
+    }
+
+    /**
+     * Entries to resend, in append order, each is marked as queued and resent
+     *
+     * @return
+     */
+    public synchronized List<Entry> takeForReplay() {
+        List<Entry> list = new ArrayList<>();
+        for (Entry entry : entries.values()) {
+            if (!entry.queued) {
+                entry.queued = true;
+                entry.status = UserMessageEntry.STATUS_RESENT;
+                list.add(entry);
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Replace the message of an entry, e.g. with a copy carrying a new receipt header.
+     * Only in-memory, the stored message is kept
+     *
+     * @param entry
+     * @param message
+     */
+    public synchronized void rebind(Entry entry, StompMessage message) {
+        byMessage.remove(entry.message);
+        entry.message = message;
+        if (entries.containsKey(entry.seq)) {
+            byMessage.put(message, entry);
+        }
+    }
+
+    /**
+     * All entries still in the outbox, in append order
+     *
+     * @return
+     */
+    public synchronized List<Entry> pending() {
+        return new ArrayList<>(entries.values());
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    private void writeRecord(byte type, long seq, byte[] body) throws IOException {
+        int length = RECORD_HEADER + (body == null ? 0 : body.length);
+        if (buffer.remaining() < length + RECORD_HEADER) {
+            compact(length);
+        }
+        int start = buffer.position();
+        buffer.position(start + 8);
+        buffer.put(type);
+        buffer.putLong(seq);
+        if (body != null) {
+            buffer.put(body);
+        }
+        int end = buffer.position();
+        crc.reset();
+        for (int i = start + 8; i < end; i++) {
+            crc.update(buffer.get(i));
+        }
+        buffer.putInt(start + 4, (int) crc.getValue());
+        //Terminate the log behind the record before publishing its length
+        if (end + 4 <= buffer.capacity()) {
+            buffer.putInt(end, 0);
+        }
+        buffer.putInt(start, length);
+    }
+
+    /**
+     * Rewrite the live entries into a fresh segment, growing it when they do not fit.
+     * The new segment replaces the old one by an atomic rename once it is complete
+     *
+     * @param extra Size of the record about to be written
+     */
+    private void compact(int extra) throws IOException {
+        List<byte[]> bodies = new ArrayList<>(entries.size());
+        int needed = extra + RECORD_HEADER;
+        for (Entry entry : entries.values()) {
+            byte[] body = encodeMessage(entry.message);
+            bodies.add(body);
+            needed += RECORD_HEADER + body.length;
+        }
+        int size = DEFAULT_SEGMENT_SIZE;
+        while (size < needed * 2) {
+            size *= 2;
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        RandomAccessFile oldRaf = raf;
+        raf = new RandomAccessFile(tmp, "rw");
+        raf.setLength(size);
+        buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        buffer.putInt(0, 0);
+        int i = 0;
+        for (Entry entry : entries.values()) {
+            writeRecord(TYPE_ENTRY, entry.seq, bodies.get(i++));
+        }
+        buffer.force();
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Cannot replace " + file);
+        }
+        oldRaf.close();
+        Log.i(TAG, "Outbox compacted, pending messages: " + entries.size() + ", segment: " + size);
+    }
+
+    /**
+     * Release the mapped file
+     */
+    public synchronized void close() {
+        try {
+            if (buffer != null) {
+                buffer.force();
+            }
+            if (raf != null) {
+                raf.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Outbox close failed", e);
+        }
+        buffer = null;
+        raf = null;
+    }
+
+    private static byte[] encodeMessage(StompMessage message) {
+        List<StompHeader> headers = message.getStompHeaders();
+        int count = headers == null ? 0 : headers.size();
+        byte[][] parts = new byte[count * 2 + 1][];
+        int size = 4;
+        for (int i = 0; i < count; i++) {
+            parts[i * 2] = headers.get(i).getKey().getBytes(UTF_8);
+            parts[i * 2 + 1] = headers.get(i).getValue().getBytes(UTF_8);
+        }
+        String payload = message.getPayload();
+        parts[count * 2] = (payload == null ? "" : payload).getBytes(UTF_8);
+        for (byte[] part : parts) {
+            size += 4 + part.length;
+        }
+        ByteBuffer out = ByteBuffer.allocate(size);
+        out.putInt(count);
+        for (byte[] part : parts) {
+            out.putInt(part.length);
+            out.put(part);
+        }
+        return out.array();
+    }
+
+    private static StompMessage readMessage(ByteBuffer in) {
+        int count = in.getInt();
+        List<StompHeader> headers = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            headers.add(new StompHeader(readString(in), readString(in)));
+        }
+        return new StompMessage(StompCommand.SEND, headers, readString(in));
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0 || length > in.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+}
@@ -0,0 +1,218 @@
+package com.jstomp.provider;
+
+import android.os.Debug;
+import android.util.Base64;
+import android.util.Log;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import ua.naiksoftware.stomp.dto.StompHeader;
+import ua.naiksoftware.stomp.dto.StompMessage;
+
+/**
+ * Deflate compression of message bodies.
+ * <p>
+ * Outgoing bodies of at least {@code threshold} characters are deflated (zlib format) and, because
+ * the stomp client only writes text frames, base64 encoded; the frame gets a
+ * {@code content-encoding: deflate} header. Incoming frames with that header are inflated before
+ * dispatch, whether or not outgoing compression is on. One {@link Deflater} and one
+ * {@link Inflater} are reused with growing buffers, so steady traffic does not allocate codec state.
+ * A body that inflates past {@link #MAX_INFLATED_SIZE} is not decoded, and a buffer grown past
+ * {@link #MAX_KEPT_BUFFER} by a large body is dropped after it.
+ **/
+public class PayloadCodec {
+    private static final String TAG = "PayloadCodec";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    /*Header marking a compressed body*/
+    public static final String HEADER_CONTENT_ENCODING = "content-encoding";
+    /*Deflated and base64 encoded body*/
+    public static final String ENCODING_DEFLATE = "deflate";
+    /*Default size from which bodies are compressed, in characters*/
+    public static final int DEFAULT_THRESHOLD = 1024;
+    /*Largest inflated body in bytes, the size a chunked message may be reassembled to*/
+    public static final int MAX_INFLATED_SIZE = (int) ChunkAssembler.DEFAULT_MAX_CHARS;
+    /*Initial buffer size, and the largest buffer kept between bodies*/
+    private static final int BUFFER_SIZE = 4096;
+    private static final int MAX_KEPT_BUFFER = 64 * 1024;
+
+    private volatile boolean enabled = false;
+    private volatile int threshold = DEFAULT_THRESHOLD;
+
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+    private final Inflater inflater = new Inflater();
+    private byte[] deflateBuffer = new byte[BUFFER_SIZE];
+    private byte[] inflateBuffer = new byte[BUFFER_SIZE];
+
+    /*Compressed bodies, their size before (utf-8 bytes) and after (base64 characters) and the thread cpu time spent*/
+    private volatile long deflated = 0;
+    private volatile long deflateBytesIn = 0;
+    private volatile long deflateBytesOut = 0;
+    private volatile long deflateCpuNanos = 0;
+    /*Bodies over the threshold sent raw because compressing did not make them smaller*/
+    private volatile long incompressible = 0;
+    /*Inflated bodies, their size before (base64 characters) and after (utf-8 bytes) and the thread cpu time spent*/
+    private volatile long inflated = 0;
+    private volatile long inflateBytesIn = 0;
+    private volatile long inflateBytesOut = 0;
+    private volatile long inflateCpuNanos = 0;
+    private volatile long inflateErrors = 0;
+
+    /**
+     * Outgoing compression settings
+     *
+     * @param enabled
+     * @param threshold Size from which bodies are compressed in characters, 0 for the default
+     */
+    public void configure(boolean enabled, int threshold) {
+        this.enabled = enabled;
+        this.threshold = threshold <= 0 ? DEFAULT_THRESHOLD : threshold;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Wire form of an outgoing message, a compressed copy or the message itself
+     *
+     * @param message
+     * @return
+     */
+    public StompMessage encode(StompMessage message) {
+        String payload = message.getPayload();
+        if (!enabled || payload == null || payload.length() < threshold
+                || message.findHeader(HEADER_CONTENT_ENCODING) != null) {
+            return message;
+        }
+        String encoded;
+        synchronized (deflater) {
+            long start = Debug.threadCpuTimeNanos();
+            byte[] input = payload.getBytes(UTF_8);
+            deflater.reset();
+            deflater.setInput(input);
+            deflater.finish();
+            int length = 0;
+            while (!deflater.finished()) {
+                if (length == deflateBuffer.length) {
+                    deflateBuffer = grow(deflateBuffer, length, Integer.MAX_VALUE);
+                }
+                length += deflater.deflate(deflateBuffer, length, deflateBuffer.length - length);
+            }
+            //Base64 adds a third, only keep the result when the frame gets smaller
+            if ((length + 2) / 3 * 4 >= input.length) {
+                incompressible++;
+                deflateBuffer = shrink(deflateBuffer);
+                return message;
+            }
+            encoded = Base64.encodeToString(deflateBuffer, 0, length, Base64.NO_WRAP);
+            deflateBuffer = shrink(deflateBuffer);
+            deflated++;
+            deflateBytesIn += input.length;
+            deflateBytesOut += encoded.length();
+            deflateCpuNanos += Math.max(0, Debug.threadCpuTimeNanos() - start);
+        }
+        List<StompHeader> headers = new ArrayList<>(message.getStompHeaders().size() + 1);
+        headers.addAll(message.getStompHeaders());
+        headers.add(new StompHeader(HEADER_CONTENT_ENCODING, ENCODING_DEFLATE));
+        return new StompMessage(message.getStompCommand(), headers, encoded);
+    }
+
+    /**
+     * Readable form of an incoming message, an inflated copy when the body is compressed
+     *
+     * @param message
+     * @return the message itself when it is not compressed or cannot be inflated
+     */
+    public StompMessage decode(StompMessage message) {
+        if (!ENCODING_DEFLATE.equals(message.findHeader(HEADER_CONTENT_ENCODING))) {
+            return message;
+        }
+        String payload = message.getPayload();
+        String decoded;
+        synchronized (inflater) {
+            long start = Debug.threadCpuTimeNanos();
+            try {
+                byte[] input = Base64.decode(payload, Base64.DEFAULT);
+                inflater.reset();
+                inflater.setInput(input);
+                int length = 0;
+                while (!inflater.finished()) {
+                    if (length == inflateBuffer.length) {
+                        if (length >= MAX_INFLATED_SIZE) {
+                            throw new DataFormatException("Inflated body larger than " + MAX_INFLATED_SIZE + " bytes");
+                        }
+                        inflateBuffer = grow(inflateBuffer, length, MAX_INFLATED_SIZE);
+                    }
+                    int n = inflater.inflate(inflateBuffer, length, inflateBuffer.length - length);
+                    if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        throw new DataFormatException("Truncated deflate stream");
+                    }
+                    length += n;
+                }
+                decoded = new String(inflateBuffer, 0, length, UTF_8);
+                inflated++;
+                inflateBytesIn += payload.length();
+                inflateBytesOut += length;
+                inflateCpuNanos += Math.max(0, Debug.threadCpuTimeNanos() - start);
+            } catch (DataFormatException | IllegalArgumentException e) {
+                inflateErrors++;
+                Log.e(TAG, "Stomp message body cannot be inflated", e);
+                return message;
+            } finally {
+                inflateBuffer = shrink(inflateBuffer);
+            }
+        }
+        List<StompHeader> headers = new ArrayList<>(message.getStompHeaders().size());
+        for (StompHeader header : message.getStompHeaders()) {
+            if (!HEADER_CONTENT_ENCODING.equals(header.getKey())) {
+                headers.add(header);
+            }
+        }
+        return new StompMessage(message.getStompCommand(), headers, decoded);
+    }
+
+    private static byte[] grow(byte[] buffer, int length, int max) {
+        byte[] bigger = new byte[(int) Math.min(max, buffer.length * 2L)];
+        System.arraycopy(buffer, 0, bigger, 0, length);
+        return bigger;
+    }
+
+    /**
+     * A buffer grown by one large body is not kept for the next ones
+     */
+    private static byte[] shrink(byte[] buffer) {
+        return buffer.length > MAX_KEPT_BUFFER ? new byte[BUFFER_SIZE] : buffer;
+    }
+
+    /**
+     * Compression statistics, ratios are compressed size over original size, 0 when nothing was done
+     *
+     * @return
+     */
+    public Map<String, Object> snapshot() {
+        Map<String, Object> map = new HashMap<>();
+        map.put("enabled", enabled);
+        map.put("threshold", threshold);
+        map.put("deflated", deflated);
+        map.put("deflateBytesIn", deflateBytesIn);
+        map.put("deflateBytesOut", deflateBytesOut);
+        map.put("deflateRatio", deflateBytesIn == 0 ? 0d : (double) deflateBytesOut / deflateBytesIn);
+        map.put("deflateCpuMicros", deflateCpuNanos / 1000);
+        map.put("incompressible", incompressible);
+        map.put("inflated", inflated);
+        map.put("inflateBytesIn", inflateBytesIn);
+        map.put("inflateBytesOut", inflateBytesOut);
+        map.put("inflateRatio", inflateBytesOut == 0 ? 0d : (double) inflateBytesIn / inflateBytesOut);
+        map.put("inflateCpuMicros", inflateCpuNanos / 1000);
+        map.put("inflateErrors", inflateErrors);
+        return map;
+    }
+}
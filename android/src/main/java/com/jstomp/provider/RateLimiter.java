@@ -0,0 +1,181 @@
+package com.jstomp.provider;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Token bucket limits of the send rate, one bucket for the connection and one per destination.
+ * <p>
+ * Buckets are refilled lazily from the clock. A message may go when the connection bucket and its
+ * destination's bucket both hold a token, and then takes one from each. Nothing here waits: the
+ * writer asks how long a destination is still held back, sends the messages of other
+ * destinations meanwhile, and sleeps only when nothing can go, until the earliest refill.
+ * Destination buckets are kept for the {@link #MAX_DESTINATIONS} most recently used destinations.
+ * Used by the outbound writer thread only.
+ **/
+public class RateLimiter {
+    /*Destinations with their own bucket, the least recently used one is dropped beyond that*/
+    private static final int MAX_DESTINATIONS = 256;
+
+    /**
+     * A token bucket
+     */
+    private static final class Bucket {
+        /*Tokens per nanosecond*/
+        final double rate;
+        final double burst;
+        double tokens;
+        long last;
+
+        Bucket(double ratePerSecond, int burst, long now) {
+            this.rate = ratePerSecond / 1e9;
+            this.burst = Math.max(1, burst);
+            this.tokens = this.burst;
+            this.last = now;
+        }
+
+        /**
+         * @return nanoseconds until a token is available, 0 when there is one now
+         */
+        long delay(long now) {
+            tokens = Math.min(burst, tokens + (now - last) * rate);
+            last = now;
+            return tokens >= 1 ? 0 : Math.max(1, (long) Math.ceil((1 - tokens) / rate));
+        }
+    }
+
+    private final double rate;
+    private final int burst;
+    private final double destinationRate;
+    private final int destinationBurst;
+    private final Bucket connection;
+    private final Map<String, Bucket> destinations = new LinkedHashMap<String, Bucket>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Bucket> eldest) {
+            return size() > MAX_DESTINATIONS;
+        }
+    };
+
+    private volatile long throttled = 0;
+    private volatile long waitNanos = 0;
+
+    /**
+     * @param rate             Messages per second on the connection, 0 for no limit
+     * @param burst            Messages the connection may send at once after being quiet
+     * @param destinationRate  Messages per second to one destination, 0 for no limit
+     * @param destinationBurst Messages one destination may get at once after being quiet
+     */
+    public RateLimiter(double rate, int burst, double destinationRate, int destinationBurst) {
+        this.rate = Math.max(0, rate);
+        this.burst = burst;
+        this.destinationRate = Math.max(0, destinationRate);
+        this.destinationBurst = destinationBurst;
+        this.connection = this.rate > 0 ? new Bucket(this.rate, burst, System.nanoTime()) : null;
+    }
+
+    /**
+     * Whether this limiter has the given limits, so it can be kept instead of starting over with
+     * full buckets
+     *
+     * @return
+     */
+    public boolean hasLimits(double rate, int burst, double destinationRate, int destinationBurst) {
+        return this.rate == Math.max(0, rate) && this.burst == burst
+                && this.destinationRate == Math.max(0, destinationRate) && this.destinationBurst == destinationBurst;
+    }
+
+    /**
+     * Whether messages are limited per destination, otherwise only the connection bucket counts
+     *
+     * @return
+     */
+    public boolean limitsDestinations() {
+        return destinationRate > 0;
+    }
+
+    /**
+     * Time until the connection may send again
+     *
+     * @param now {@link System#nanoTime()}
+     * @return nanoseconds, 0 when it may send now
+     */
+    public long connectionDelay(long now) {
+        return connection == null ? 0 : connection.delay(now);
+    }
+
+    /**
+     * Time until a destination may get a message again, the connection limit not included
+     *
+     * @param destination May be null
+     * @param now         {@link System#nanoTime()}
+     * @return nanoseconds, 0 when it may get one now
+     */
+    public long destinationDelay(String destination, long now) {
+        if (destinationRate <= 0 || destination == null) {
+            return 0;
+        }
+        Bucket bucket = destinations.get(destination);
+        return bucket == null ? 0 : bucket.delay(now);
+    }
+
+    /**
+     * Time until a message to a destination may go, both limits included
+     *
+     * @param destination May be null
+     * @param now         {@link System#nanoTime()}
+     * @return nanoseconds, 0 when it may go now
+     */
+    public long delay(String destination, long now) {
+        return Math.max(connectionDelay(now), destinationDelay(destination, now));
+    }
+
+    /**
+     * Take the tokens of a message that may go now, see {@link #delay}
+     *
+     * @param destination May be null
+     * @param now         {@link System#nanoTime()}
+     */
+    public void take(String destination, long now) {
+        if (connection != null) {
+            connection.delay(now);
+            connection.tokens -= 1;
+        }
+        if (destinationRate > 0 && destination != null) {
+            Bucket bucket = destinations.get(destination);
+            if (bucket == null) {
+                bucket = new Bucket(destinationRate, destinationBurst, now);
+                destinations.put(destination, bucket);
+            }
+            bucket.delay(now);
+            bucket.tokens -= 1;
+        }
+    }
+
+    /**
+     * Record that the writer had nothing to send because of the limits
+     *
+     * @param nanos Time it waited
+     */
+    void recordWait(long nanos) {
+        throttled++;
+        waitNanos += Math.max(0, nanos);
+    }
+
+    /**
+     * Limits and how much they slowed sending down: the times the writer waited for tokens and
+     * for how long
+     *
+     * @return
+     */
+    public Map<String, Object> snapshot() {
+        Map<String, Object> map = new HashMap<>();
+        map.put("rate", rate);
+        map.put("burst", burst);
+        map.put("destinationRate", destinationRate);
+        map.put("destinationBurst", destinationBurst);
+        map.put("throttled", throttled);
+        map.put("waitMillis", waitNanos / 1000000);
+        return map;
+    }
+}
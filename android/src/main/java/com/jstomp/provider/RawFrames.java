@@ -0,0 +1,67 @@
+package com.jstomp.provider;
+
+/**
+ * Minimal readers for raw stomp frames, used on the socket thread before the
+ * stomp client parses the frame, so they only look at what they need.
+ **/
+final class RawFrames {
+    static final String RECEIPT = "RECEIPT";
+    static final String ERROR = "ERROR";
+    static final String CONNECTED = "CONNECTED";
+
+    private RawFrames() {
+    }
+
+    /**
+     * Whether the frame starts with the given command
+     *
+     * @param frame
+     * @param command
+     * @return
+     */
+    static boolean isCommand(String frame, String command) {
+        int start = skipNewlines(frame);
+        int end = start + command.length();
+        return frame.startsWith(command, start)
+                && end < frame.length()
+                && (frame.charAt(end) == '\n' || frame.charAt(end) == '\r');
+    }
+
+    /**
+     * Value of a header, null if the frame does not have it
+     *
+     * @param frame
+     * @param name
+     * @return
+     */
+    static String header(String frame, String name) {
+        int lineStart = frame.indexOf('\n', skipNewlines(frame));
+        while (lineStart >= 0 && lineStart + 1 < frame.length()) {
+            lineStart++;
+            int lineEnd = frame.indexOf('\n', lineStart);
+            if (lineEnd < 0) {
+                lineEnd = frame.length();
+            }
+            int contentEnd = lineEnd > lineStart && frame.charAt(lineEnd - 1) == '\r' ? lineEnd - 1 : lineEnd;
+            if (contentEnd == lineStart) {
+                //Blank line, end of the headers
+                return null;
+            }
+            if (contentEnd - lineStart > name.length()
+                    && frame.charAt(lineStart + name.length()) == ':'
+                    && frame.startsWith(name, lineStart)) {
+                return frame.substring(lineStart + name.length() + 1, contentEnd);
+            }
+            lineStart = lineEnd < frame.length() ? lineEnd : -1;
+        }
+        return null;
+    }
+
+    private static int skipNewlines(String frame) {
+        int i = 0;
+        while (i < frame.length() && (frame.charAt(i) == '\n' || frame.charAt(i) == '\r')) {
+            i++;
+        }
+        return i;
+    }
+}
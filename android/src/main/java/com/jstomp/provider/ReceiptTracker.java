@@ -0,0 +1,212 @@
+package com.jstomp.provider;
+
+import android.os.SystemClock;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ua.naiksoftware.stomp.dto.StompMessage;
+
+/**
+ * Outstanding send receipts.
+ * <p>
+ * Every tracked SEND frame carries a "receipt" header. The send is confirmed when the broker's
+ * RECEIPT frame with the same "receipt-id" arrives, and failed on a matching ERROR frame or when
+ * no answer came within the timeout. The round-trip time and the timeout run from
+ * {@link #markWritten}, when the writer hands the frame to the socket, so time spent in the send
+ * queue is not counted as broker latency; it is recorded per lane by {@link OutboundQueue}. A
+ * message that is never written is failed by the send queue, not by the timeout.
+ **/
+public class ReceiptTracker {
+    /*Header asking the broker for a receipt*/
+    public static final String HEADER_RECEIPT = "receipt";
+    /*Header of RECEIPT and ERROR frames naming the confirmed receipt*/
+    public static final String HEADER_RECEIPT_ID = "receipt-id";
+    /*Default time to wait for a receipt*/
+    public static final long DEFAULT_TIMEOUT = 10 * 1000;
+
+    /**
+     * Receipt result callback
+     */
+    public interface OnReceiptListener {
+        /**
+         * @param status  {@link StompConfig#STOMP_SEND_SUCCESS} or {@link StompConfig#STOMP_SEND_FAIL}
+         * @param message The tracked message
+         * @param latency Round-trip time in milliseconds from the write, -1 if it was not written
+         */
+        void onReceipt(int status, StompMessage message, long latency);
+    }
+
+    private static final class Pending {
+        final StompMessage message;
+        /*When the frame was written, 0 while it is queued*/
+        volatile long writeTime = 0;
+
+        Pending(StompMessage message) {
+            this.message = message;
+        }
+    }
+
+    private final Map<String, Pending> pending = new ConcurrentHashMap<>();
+    private final AtomicLong sequence = new AtomicLong();
+    private final long timeout;
+    private final OnReceiptListener listener;
+    private final ScheduledExecutorService sweeper;
+
+    public ReceiptTracker(long timeout, OnReceiptListener listener) {
+        this.timeout = timeout <= 0 ? DEFAULT_TIMEOUT : timeout;
+        this.listener = listener;
+        this.sweeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "jstomp-receipt");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        long period = Math.max(100, this.timeout / 4);
+        sweeper.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                expire();
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * A new receipt id, unique for this tracker
+     *
+     * @return
+     */
+    public String nextReceiptId() {
+        return "jstomp-" + sequence.incrementAndGet();
+    }
+
+    /**
+     * Start waiting for the receipt of a message
+     *
+     * @param receiptId
+     * @param message
+     */
+    public void track(String receiptId, StompMessage message) {
+        pending.put(receiptId, new Pending(message));
+    }
+
+    /**
+     * The frame asking for the receipt is being written, the round trip starts
+     *
+     * @param receiptId
+     */
+    public void markWritten(String receiptId) {
+        Pending p = pending.get(receiptId);
+        if (p != null) {
+            p.writeTime = SystemClock.elapsedRealtime();
+        }
+    }
+
+    /**
+     * Handle a raw inbound frame, only RECEIPT and ERROR frames are looked at
+     *
+     * @param frame
+     */
+    void onRawFrame(String frame) {
+        if (pending.isEmpty()) {
+            return;
+        }
+        int status;
+        if (RawFrames.isCommand(frame, RawFrames.RECEIPT)) {
+            status = StompConfig.STOMP_SEND_SUCCESS;
+        } else if (RawFrames.isCommand(frame, RawFrames.ERROR)) {
+            status = StompConfig.STOMP_SEND_FAIL;
+        } else {
+            return;
+        }
+        String receiptId = RawFrames.header(frame, HEADER_RECEIPT_ID);
+        if (receiptId != null) {
+            complete(receiptId, status);
+        }
+    }
+
+    /**
+     * Fail a tracked message right away, e.g. when the write itself failed
+     *
+     * @param receiptId
+     */
+    public void fail(String receiptId) {
+        complete(receiptId, StompConfig.STOMP_SEND_FAIL);
+    }
+
+    private void complete(String receiptId, int status) {
+        Pending p = pending.remove(receiptId);
+        if (p != null) {
+            long writeTime = p.writeTime;
+            listener.onReceipt(status, p.message, writeTime == 0 ? -1 : SystemClock.elapsedRealtime() - writeTime);
+        }
+    }
+
+    private void expire() {
+        long now = SystemClock.elapsedRealtime();
+        Iterator<Map.Entry<String, Pending>> it = pending.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Pending> entry = it.next();
+            Pending p = entry.getValue();
+            long writeTime = p.writeTime;
+            if (writeTime != 0 && now - writeTime >= timeout) {
+                it.remove();
+                listener.onReceipt(StompConfig.STOMP_SEND_FAIL, p.message, now - writeTime);
+            }
+        }
+    }
+
+    /**
+     * Number of sends waiting for a receipt
+     *
+     * @return
+     */
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * Time a written frame waits for its receipt, in milliseconds
+     *
+     * @return
+     */
+    public long getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Hand the pending receipts over to a tracker replacing this one, its ids continue after ours
+     *
+     * @param other
+     */
+    public void moveTo(ReceiptTracker other) {
+        other.sequence.set(Math.max(other.sequence.get(), sequence.get()));
+        other.pending.putAll(pending);
+        pending.clear();
+    }
+
+    /**
+     * Fail every pending send, e.g. when receipts are turned off and nothing confirms them any more
+     */
+    public void failAll() {
+        for (String receiptId : pending.keySet().toArray(new String[0])) {
+            fail(receiptId);
+        }
+    }
+
+    /**
+     * Stop the timeout sweeper and forget pending receipts
+     */
+    public void release() {
+        sweeper.shutdownNow();
+        pending.clear();
+    }
+}
@@ -0,0 +1,16 @@
+package com.jstomp.provider;
+
+/**
+ * Decides how long to wait before the next reconnect attempt.
+ * <p>
+ * Attempts are counted from 1 for every outage and reset once the connection opens again.
+ **/
+public interface ReconnectPolicy {
+    /**
+     * Delay before an attempt
+     *
+     * @param attempt Attempt number of the current outage, starting at 1
+     * @return Delay in milliseconds
+     */
+    long nextDelay(int attempt);
+}
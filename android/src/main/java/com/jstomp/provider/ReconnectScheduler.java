@@ -0,0 +1,267 @@
+package com.jstomp.provider;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs reconnect attempts on a single scheduled thread.
+ * <p>
+ * {@link #start} begins an outage: attempts are made with the delays of the {@link ReconnectPolicy}
+ * until {@link #onConnected} is called. Every attempt schedules the next one, so an attempt that
+ * never reports back does not stall the recovery. A due attempt is skipped while the previous one
+ * is still connecting, up to {@link #CONNECT_TIMEOUT}, so a slow handshake is not torn down by
+ * the next attempt. Attempt counts and the time it took to get the connection back are kept for
+ * monitoring.
+ **/
+public class ReconnectScheduler {
+    private static final String TAG = "ReconnectScheduler";
+    /*Time an attempt may take to connect before the next one replaces it, in milliseconds*/
+    public static final long CONNECT_TIMEOUT = 30 * 1000;
+
+    /**
+     * Connection access used by the scheduler, called on the scheduler thread
+     */
+    public interface Connector {
+        /**
+         * Whether the connection is open
+         */
+        boolean isConnected();
+
+        /**
+         * Whether the connection is being opened and has not failed yet
+         */
+        boolean isConnecting();
+
+        /**
+         * Make one reconnect attempt
+         */
+        void reconnect();
+    }
+
+    private final Connector connector;
+    private volatile ReconnectPolicy policy;
+    private ScheduledExecutorService executor;
+    private ScheduledFuture<?> pending;
+
+    /*Attempts of the current outage, 0 when connected*/
+    private volatile int attempt = 0;
+    /*Start of the current outage, 0 when connected*/
+    private volatile long outageStart = 0;
+    /*Time of the last attempt of the current outage, 0 when none was made*/
+    private volatile long attemptTime = 0;
+    /*Time the next attempt is due, 0 when none is scheduled*/
+    private volatile long nextAttemptTime = 0;
+    private volatile long totalAttempts = 0;
+    private volatile long reconnects = 0;
+    private volatile long lastTimeToReconnect = -1;
+    private volatile long maxTimeToReconnect = -1;
+
+    public ReconnectScheduler(ReconnectPolicy policy, Connector connector) {
+        this.policy = policy == null ? new BackoffReconnectPolicy() : policy;
+        this.connector = connector;
+    }
+
+    /**
+     * Replace the policy, used from the next scheduled attempt on
+     *
+     * @param policy
+     */
+    public void setPolicy(ReconnectPolicy policy) {
+        if (policy != null) {
+            this.policy = policy;
+        }
+    }
+
+    /**
+     * The connection was lost, start reconnecting unless attempts are already scheduled
+     */
+    public synchronized void start() {
+        if (pending != null) {
+            return;
+        }
+        if (outageStart == 0) {
+            outageStart = SystemClock.elapsedRealtime();
+        }
+        scheduleNext();
+    }
+
+    private void scheduleNext() {
+        if (executor == null) {
+            executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "jstomp-reconnect");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        int next = attempt + 1;
+        long delay = Math.max(0, policy.nextDelay(next));
+        nextAttemptTime = SystemClock.elapsedRealtime() + delay;
+        Log.i(TAG, "Stomp reconnect attempt " + next + " in " + delay + "ms");
+        pending = executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                attempt();
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void attempt() {
+        if (connector.isConnected()) {
+            onConnected();
+            return;
+        }
+        synchronized (this) {
+            if (pending == null) {
+                return;
+            }
+            //The last attempt is still connecting, a new one would close it before it opens
+            if (attemptTime != 0 && connector.isConnecting()
+                    && SystemClock.elapsedRealtime() - attemptTime < CONNECT_TIMEOUT) {
+                Log.i(TAG, "Stomp reconnect attempt " + attempt + " is still connecting");
+                scheduleNext();
+                return;
+            }
+            attempt++;
+            totalAttempts++;
+            attemptTime = SystemClock.elapsedRealtime();
+            //Schedule the follow-up first, it is cancelled when the connection opens
+            scheduleNext();
+        }
+        try {
+            connector.reconnect();
+        } catch (Exception e) {
+            Log.e(TAG, "Stomp reconnect attempt failed", e);
+        }
+    }
+
+    /**
+     * The connection is open, stop reconnecting and record the recovery time
+     */
+    public synchronized void onConnected() {
+        cancelPending();
+        if (outageStart != 0) {
+            long elapsed = SystemClock.elapsedRealtime() - outageStart;
+            if (attempt > 0) {
+                reconnects++;
+                lastTimeToReconnect = elapsed;
+                maxTimeToReconnect = Math.max(maxTimeToReconnect, elapsed);
+                Log.i(TAG, "Stomp reconnected after " + attempt + " attempts in " + elapsed + "ms");
+            }
+        }
+        attempt = 0;
+        attemptTime = 0;
+        outageStart = 0;
+    }
+
+    /**
+     * Stop reconnecting without recording a recovery, e.g. when the connection is closed on purpose
+     */
+    public synchronized void cancel() {
+        cancelPending();
+        attempt = 0;
+        attemptTime = 0;
+        outageStart = 0;
+    }
+
+    private void cancelPending() {
+        if (pending != null) {
+            pending.cancel(false);
+            pending = null;
+        }
+        nextAttemptTime = 0;
+    }
+
+    /**
+     * Stop reconnecting and release the scheduler thread, it is created again by {@link #start}
+     */
+    public synchronized void release() {
+        cancel();
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    /**
+     * Whether attempts are scheduled
+     *
+     * @return
+     */
+    public synchronized boolean isReconnecting() {
+        return pending != null;
+    }
+
+    /**
+     * Attempts made in the current outage
+     *
+     * @return
+     */
+    public int getAttempt() {
+        return attempt;
+    }
+
+    /**
+     * Attempts made since the scheduler was created
+     *
+     * @return
+     */
+    public long getTotalAttempts() {
+        return totalAttempts;
+    }
+
+    /**
+     * Number of outages recovered by reconnecting
+     *
+     * @return
+     */
+    public long getReconnectCount() {
+        return reconnects;
+    }
+
+    /**
+     * Time from losing the connection to getting it back, of the last recovery, -1 if none yet
+     *
+     * @return
+     */
+    public long getLastTimeToReconnect() {
+        return lastTimeToReconnect;
+    }
+
+    /**
+     * Longest time to reconnect seen, -1 if none yet
+     *
+     * @return
+     */
+    public long getMaxTimeToReconnect() {
+        return maxTimeToReconnect;
+    }
+
+    /**
+     * Time until the next attempt in milliseconds, -1 when none is scheduled
+     *
+     * @return
+     */
+    public long getNextAttemptDelay() {
+        long next = nextAttemptTime;
+        return next == 0 ? -1 : Math.max(0, next - SystemClock.elapsedRealtime());
+    }
+
+    /**
+     * Time since the connection was lost, 0 when connected
+     *
+     * @return
+     */
+    public long getOutageDuration() {
+        long start = outageStart;
+        return start == 0 ? 0 : SystemClock.elapsedRealtime() - start;
+    }
+}
@@ -0,0 +1,185 @@
+package com.jstomp.provider;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+
+import ua.naiksoftware.stomp.dto.StompHeader;
+
+/**
+ * Header lists of outgoing SEND frames.
+ * <p>
+ * Besides building a fresh list, headers can be taken from a cache of templates, one per
+ * destination and custom header set. A template is built once and then shared read-only by every
+ * frame with the same destination and headers, so such a send allocates no header objects; a
+ * header that changes per frame, like the receipt, is appended through a small view instead of a
+ * copy. The {@link #DEFAULT_CAPACITY} most recently used destinations keep up to
+ * {@link #TEMPLATES_PER_DESTINATION} header sets each, headers whose values change with every
+ * message therefore miss and only cost the template they build.
+ **/
+public final class SendHeaders {
+    /*Default number of destinations with cached templates*/
+    public static final int DEFAULT_CAPACITY = 256;
+    /*Header sets cached per destination, the oldest one is replaced beyond that*/
+    public static final int TEMPLATES_PER_DESTINATION = 4;
+
+    /**
+     * Headers of one destination and custom header set
+     */
+    private static final class Template {
+        /*Copy of the custom headers, null when there are none*/
+        final Map<String, String> header;
+        final List<StompHeader> headers;
+
+        Template(String destination, Map<String, String> header) {
+            boolean custom = header != null && !header.isEmpty();
+            this.header = custom ? new HashMap<>(header) : null;
+            this.headers = Collections.unmodifiableList(build(destination, header, 0));
+        }
+
+        boolean matches(Map<String, String> header) {
+            if (header == null || header.isEmpty()) {
+                return this.header == null;
+            }
+            return header.equals(this.header);
+        }
+    }
+
+    /**
+     * A template with one more header at the end
+     */
+    private static final class Extended extends AbstractList<StompHeader> implements RandomAccess {
+        private final List<StompHeader> template;
+        private final StompHeader extra;
+
+        Extended(List<StompHeader> template, StompHeader extra) {
+            this.template = template;
+            this.extra = extra;
+        }
+
+        @Override
+        public StompHeader get(int index) {
+            if (index == template.size()) {
+                return extra;
+            }
+            return template.get(index);
+        }
+
+        @Override
+        public int size() {
+            return template.size() + 1;
+        }
+    }
+
+    private final Map<String, Template[]> templates;
+
+    private volatile long hits = 0;
+    private volatile long misses = 0;
+
+    public SendHeaders() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity Destinations with cached templates, 0 for the default
+     */
+    public SendHeaders(int capacity) {
+        final int max = capacity <= 0 ? DEFAULT_CAPACITY : capacity;
+        this.templates = new LinkedHashMap<String, Template[]>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Template[]> eldest) {
+                return size() > max;
+            }
+        };
+    }
+
+    /**
+     * Headers of a SEND frame, the destination first, then the custom headers in map order
+     *
+     * @param destination
+     * @param header      Custom headers, may be null
+     * @param extra       Room to keep for headers added afterwards, e.g. a receipt
+     * @return
+     */
+    public static List<StompHeader> build(String destination, Map<String, String> header, int extra) {
+        int custom = header == null ? 0 : header.size();
+        List<StompHeader> stompHeaders = new ArrayList<>(1 + custom + Math.max(0, extra));
+        stompHeaders.add(new StompHeader(StompHeader.DESTINATION, destination));
+        //If there are custom headers, add them one by one.
+        if (custom > 0) {
+            for (Map.Entry<String, String> entry : header.entrySet()) {
+                stompHeaders.add(new StompHeader(entry.getKey(), entry.getValue()));
+            }
+        }
+        return stompHeaders;
+    }
+
+    /**
+     * Cached headers of a SEND frame, same order as {@link #build}
+     *
+     * @param destination
+     * @param header      Custom headers, may be null
+     * @return a read-only list shared by the frames with the same destination and headers
+     */
+    public List<StompHeader> get(String destination, Map<String, String> header) {
+        synchronized (templates) {
+            Template[] cached = templates.get(destination);
+            if (cached != null) {
+                for (Template template : cached) {
+                    if (template == null) {
+                        break;
+                    }
+                    if (template.matches(header)) {
+                        hits++;
+                        return template.headers;
+                    }
+                }
+            } else {
+                cached = new Template[TEMPLATES_PER_DESTINATION];
+                templates.put(destination, cached);
+            }
+            misses++;
+            //Newest first, the oldest falls off the end
+            System.arraycopy(cached, 0, cached, 1, cached.length - 1);
+            cached[0] = new Template(destination, header);
+            return cached[0].headers;
+        }
+    }
+
+    /**
+     * Headers with one more at the end, without copying them
+     *
+     * @param headers e.g. a cached template
+     * @param extra
+     * @return a read-only list
+     */
+    public static List<StompHeader> with(List<StompHeader> headers, StompHeader extra) {
+        return new Extended(headers, extra);
+    }
+
+    public void clear() {
+        synchronized (templates) {
+            templates.clear();
+        }
+    }
+
+    /**
+     * Cache statistics
+     *
+     * @return
+     */
+    public Map<String, Object> snapshot() {
+        Map<String, Object> map = new HashMap<>();
+        synchronized (templates) {
+            map.put("destinations", templates.size());
+        }
+        map.put("hits", hits);
+        map.put("misses", misses);
+        return map;
+    }
+}
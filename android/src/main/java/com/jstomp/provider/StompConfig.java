@@ -1,9 +1,9 @@
 package com.jstomp.provider;
 
 import android.annotation.SuppressLint;
-import android.util.ArraySet;
 
 import java.util.Arrays;
+import java.util.LinkedHashSet;
 import java.util.Set;
 
 /**
@@ -20,14 +20,68 @@ public class StompConfig {
     public static final int STOMP_SEND_SUCCESS = 1;
     /*operation failed*/
     public static final int STOMP_SEND_FAIL = 0;
+    /*Resent from the outbox successfully*/
+    public static final int STOMP_SEND_RESENT = -1;
     /*Initialize the endpoint url*/
     private String url;
     /*Send message url*/
     private String sendUrl;
-    /*Subscribe to the broadcast address*/
-    private Set<String> topicBroadCast = new ArraySet<>();
-    /*Subscribe to a peer-to-peer address*/
-    private Set<String> topic = new ArraySet<>();
+    /*Subscribe to the broadcast address, in subscription order*/
+    private Set<String> topicBroadCast = new LinkedHashSet<>();
+    /*Subscribe to a peer-to-peer address, in subscription order*/
+    private Set<String> topic = new LinkedHashSet<>();
+    /*Inbound dispatch queue capacity*/
+    private int inboundCapacity = InboundDispatcher.DEFAULT_CAPACITY;
+    /*What to do when the inbound queue is full*/
+    private InboundDispatcher.OverflowStrategy overflowStrategy = InboundDispatcher.OverflowStrategy.DROP_OLDEST;
+    /*Outbound send queue capacity*/
+    private int outboundCapacity = OutboundQueue.DEFAULT_CAPACITY;
+    /*Maximum number of messages written but not yet completed*/
+    private int maxInFlight = OutboundQueue.DEFAULT_MAX_IN_FLIGHT;
+    /*Whether consecutive frames may share one websocket message*/
+    private boolean coalesceFrames = false;
+    /*Whether sends wait for the broker's RECEIPT frame*/
+    private boolean receiptEnabled = false;
+    /*Time to wait for a receipt, in milliseconds*/
+    private long receiptTimeout = ReceiptTracker.DEFAULT_TIMEOUT;
+    /*Whether unconfirmed messages are kept in the on-disk outbox*/
+    private boolean outboxEnabled = false;
+    /*Interval the client sends heart-beats at, in milliseconds, 0 for none*/
+    private int clientHeartbeat = 0;
+    /*Interval the client wants the server's heart-beats at, in milliseconds, 0 for none*/
+    private int serverHeartbeat = 0;
+    /*Whether redelivered messages are dropped*/
+    private boolean dedupeEnabled = false;
+    /*Message ids remembered per dedupe generation*/
+    private int dedupeCapacity = DedupeCache.DEFAULT_CAPACITY;
+    /*Time a message id is remembered, in milliseconds*/
+    private long dedupeWindow = DedupeCache.DEFAULT_WINDOW;
+    /*Whether sent and received messages are kept in the local store*/
+    private boolean messageStoreEnabled = false;
+    /*Size limit of the local store, in bytes*/
+    private long messageStoreSize = MessageStore.DEFAULT_MAX_BYTES;
+    /*Whether large outgoing bodies are compressed*/
+    private boolean compressionEnabled = false;
+    /*Size from which outgoing bodies are compressed, in characters*/
+    private int compressionThreshold = PayloadCodec.DEFAULT_THRESHOLD;
+    /*Body size from which messages are sent in fragments, 0 when off*/
+    private int chunkSize = 0;
+    /*Time to wait for the missing fragments of a received message, in milliseconds*/
+    private long reassemblyTimeout = ChunkAssembler.DEFAULT_TIMEOUT;
+    /*Whether the connection opens on demand and closes when idle*/
+    private boolean lazyConnect = false;
+    /*Time without subscriptions or traffic before a lazy connection closes, in milliseconds*/
+    private long idleTimeout = IdleMonitor.DEFAULT_IDLE_TIMEOUT;
+    /*Send rate limits in messages per second and bursts, 0 rates for no limit*/
+    private double sendRate = 0;
+    private int sendBurst = 1;
+    private double destinationSendRate = 0;
+    private int destinationSendBurst = 1;
+    /*Queued body size at which producers are told to pause and to resume, in characters*/
+    private long flowHighWatermark = OutboundQueue.DEFAULT_HIGH_WATERMARK;
+    private long flowLowWatermark = OutboundQueue.DEFAULT_LOW_WATERMARK;
+    /*Delays between reconnect attempts*/
+    private ReconnectPolicy reconnectPolicy = new BackoffReconnectPolicy();
 
 
     public StompConfig(String url, String sendURL) {
@@ -59,6 +113,347 @@ public class StompConfig {
         return this;
     }
 
+    /**
+     * Inbound dispatch queue settings
+     *
+     * @param capacity Maximum number of frames waiting to be dispatched
+     * @param strategy What to do when the queue is full, DROP_OLDEST when null; BLOCK stalls the
+     *                 socket reader and is refused together with a server heart-beat
+     * @return
+     */
+    public StompConfig inboundQueue(int capacity, InboundDispatcher.OverflowStrategy strategy) {
+        if (capacity > 0) {
+            this.inboundCapacity = capacity;
+        }
+        if (strategy != null) {
+            this.overflowStrategy = strategy;
+        }
+        return this;
+    }
+
+    public int getInboundCapacity() {
+        return inboundCapacity;
+    }
+
+    public InboundDispatcher.OverflowStrategy getOverflowStrategy() {
+        return overflowStrategy;
+    }
+
+    /**
+     * Outbound send queue settings
+     *
+     * @param capacity    Maximum number of messages waiting to be written
+     * @param maxInFlight Maximum number of messages written but not yet completed
+     * @return
+     */
+    public StompConfig outboundQueue(int capacity, int maxInFlight) {
+        if (capacity > 0) {
+            this.outboundCapacity = capacity;
+        }
+        if (maxInFlight > 0) {
+            this.maxInFlight = maxInFlight;
+        }
+        return this;
+    }
+
+    /**
+     * Write consecutive queued frames as one websocket message,
+     * only enable it when the broker accepts several stomp frames per websocket message
+     *
+     * @param coalesce
+     * @return
+     */
+    public StompConfig coalesceFrames(boolean coalesce) {
+        this.coalesceFrames = coalesce;
+        return this;
+    }
+
+    /**
+     * Ask the broker for a receipt of every sent message, the send callback then fires
+     * when the RECEIPT or ERROR frame arrives and carries the round-trip time
+     *
+     * @param enabled
+     * @param timeout Time to wait for a receipt in milliseconds, the send fails after it
+     * @return
+     */
+    public StompConfig receipt(boolean enabled, long timeout) {
+        this.receiptEnabled = enabled;
+        if (timeout > 0) {
+            this.receiptTimeout = timeout;
+        }
+        return this;
+    }
+
+    public boolean isReceiptEnabled() {
+        return receiptEnabled;
+    }
+
+    public long getReceiptTimeout() {
+        return receiptTimeout;
+    }
+
+    /**
+     * Keep every message in an on-disk outbox until it is confirmed, messages sent while
+     * disconnected or failed are resent in order once the connection opens
+     *
+     * @param enabled
+     * @return
+     */
+    public StompConfig outbox(boolean enabled) {
+        this.outboxEnabled = enabled;
+        return this;
+    }
+
+    public boolean isOutboxEnabled() {
+        return outboxEnabled;
+    }
+
+    /**
+     * Heart-beat intervals sent in the CONNECT frame. When the server agrees to beat, a connection
+     * that stays silent for {@link HeartbeatWatchdog#GRACE_FACTOR} intervals is declared dead and
+     * reconnected right away
+     *
+     * @param client Interval the client sends beats at in milliseconds, 0 for none
+     * @param server Interval the server should send beats at in milliseconds, 0 for none
+     * @return
+     */
+    public StompConfig heartbeat(int client, int server) {
+        this.clientHeartbeat = Math.max(0, client);
+        this.serverHeartbeat = Math.max(0, server);
+        return this;
+    }
+
+    public int getClientHeartbeat() {
+        return clientHeartbeat;
+    }
+
+    public int getServerHeartbeat() {
+        return serverHeartbeat;
+    }
+
+    /**
+     * Drop messages whose id was already delivered, e.g. redeliveries after a reconnect. The id is
+     * the "id" field of the body, or the message-id header when the body has none
+     *
+     * @param enabled
+     * @param capacity Message ids remembered per generation, 0 for the default
+     * @param window   Time a message id is remembered in milliseconds, 0 for the default
+     * @return
+     */
+    public StompConfig dedupe(boolean enabled, int capacity, long window) {
+        this.dedupeEnabled = enabled;
+        if (capacity > 0) {
+            this.dedupeCapacity = capacity;
+        }
+        if (window > 0) {
+            this.dedupeWindow = window;
+        }
+        return this;
+    }
+
+    public boolean isDedupeEnabled() {
+        return dedupeEnabled;
+    }
+
+    public int getDedupeCapacity() {
+        return dedupeCapacity;
+    }
+
+    public long getDedupeWindow() {
+        return dedupeWindow;
+    }
+
+    /**
+     * Keep received and confirmed sent messages in a local store, queried page by page per
+     * microGroupId. The oldest messages are deleted once the store reaches its size limit
+     *
+     * @param enabled
+     * @param maxBytes Size limit in bytes, 0 for the default
+     * @return
+     */
+    public StompConfig messageStore(boolean enabled, long maxBytes) {
+        this.messageStoreEnabled = enabled;
+        if (maxBytes > 0) {
+            this.messageStoreSize = maxBytes;
+        }
+        return this;
+    }
+
+    public boolean isMessageStoreEnabled() {
+        return messageStoreEnabled;
+    }
+
+    public long getMessageStoreSize() {
+        return messageStoreSize;
+    }
+
+    /**
+     * Deflate outgoing bodies of at least the threshold size and mark them with a
+     * "content-encoding: deflate" header, the broker side has to understand it. Incoming
+     * compressed bodies are always inflated
+     *
+     * @param enabled
+     * @param threshold Size from which bodies are compressed in characters, 0 for the default
+     * @return
+     */
+    public StompConfig compression(boolean enabled, int threshold) {
+        this.compressionEnabled = enabled;
+        if (threshold > 0) {
+            this.compressionThreshold = threshold;
+        }
+        return this;
+    }
+
+    public boolean isCompressionEnabled() {
+        return compressionEnabled;
+    }
+
+    public int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+
+    /**
+     * Send bodies longer than the chunk size as fragments with chunk-id, chunk-index and
+     * chunk-total headers, interleaved with the other outgoing messages. Received fragments are
+     * always joined before dispatch
+     *
+     * @param chunkSize         Fragment size in characters, 0 turns chunking off
+     * @param reassemblyTimeout Time to wait for the missing fragments of a received message
+     *                          in milliseconds, 0 for the default
+     * @return
+     */
+    public StompConfig chunking(int chunkSize, long reassemblyTimeout) {
+        this.chunkSize = Math.max(0, chunkSize);
+        if (reassemblyTimeout > 0) {
+            this.reassemblyTimeout = reassemblyTimeout;
+        }
+        return this;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public long getReassemblyTimeout() {
+        return reassemblyTimeout;
+    }
+
+    /**
+     * Lazy mode: opening the connection is deferred to the first subscription or send, and the
+     * connection closes after the idle timeout without subscriptions, unfinished sends or traffic.
+     * The wanted subscriptions and queued messages are kept, the next subscription or send
+     * reconnects and subscribes again
+     *
+     * @param enabled
+     * @param idleTimeout Idle time before closing in milliseconds, 0 for the default
+     * @return
+     */
+    public StompConfig lazyConnect(boolean enabled, long idleTimeout) {
+        this.lazyConnect = enabled;
+        if (idleTimeout > 0) {
+            this.idleTimeout = idleTimeout;
+        }
+        return this;
+    }
+
+    public boolean isLazyConnect() {
+        return lazyConnect;
+    }
+
+    public long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    /**
+     * Limit the send rate with token buckets, one for the connection and one per destination.
+     * Messages over the limit wait in the outbound queue
+     *
+     * @param rate             Messages per second on the connection, 0 for no limit
+     * @param burst            Messages sent at once after a quiet period
+     * @param destinationRate  Messages per second to one destination, 0 for no limit
+     * @param destinationBurst Messages sent to one destination at once after a quiet period
+     * @return
+     */
+    public StompConfig rateLimit(double rate, int burst, double destinationRate, int destinationBurst) {
+        this.sendRate = Math.max(0, rate);
+        this.sendBurst = Math.max(1, burst);
+        this.destinationSendRate = Math.max(0, destinationRate);
+        this.destinationSendBurst = Math.max(1, destinationBurst);
+        return this;
+    }
+
+    public double getSendRate() {
+        return sendRate;
+    }
+
+    public int getSendBurst() {
+        return sendBurst;
+    }
+
+    public double getDestinationSendRate() {
+        return destinationSendRate;
+    }
+
+    public int getDestinationSendBurst() {
+        return destinationSendBurst;
+    }
+
+    /**
+     * Backpressure thresholds: sending is reported paused once the queued bodies reach the high
+     * watermark or the queue is full, and writable again once they are drained to the low watermark
+     *
+     * @param highWatermark Queued characters to pause at, 0 for the default
+     * @param lowWatermark  Queued characters to resume at, 0 for the default
+     * @return
+     */
+    public StompConfig flowControl(long highWatermark, long lowWatermark) {
+        if (highWatermark > 0) {
+            this.flowHighWatermark = highWatermark;
+        }
+        if (lowWatermark > 0) {
+            this.flowLowWatermark = lowWatermark;
+        }
+        return this;
+    }
+
+    public long getFlowHighWatermark() {
+        return flowHighWatermark;
+    }
+
+    public long getFlowLowWatermark() {
+        return flowLowWatermark;
+    }
+
+    /**
+     * Delays between reconnect attempts after the connection is lost,
+     * exponential backoff with full jitter by default
+     *
+     * @param policy
+     * @return
+     */
+    public StompConfig reconnectPolicy(ReconnectPolicy policy) {
+        if (policy != null) {
+            this.reconnectPolicy = policy;
+        }
+        return this;
+    }
+
+    public ReconnectPolicy getReconnectPolicy() {
+        return reconnectPolicy;
+    }
+
+    public int getOutboundCapacity() {
+        return outboundCapacity;
+    }
+
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    public boolean isCoalesceFrames() {
+        return coalesceFrames;
+    }
+
     /**
      * Return send url
      *
@@ -0,0 +1,220 @@
+package com.jstomp.provider;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Runtime counters and latency histograms.
+ * <p>
+ * Recording is lock-free and does not allocate: counters are atomics, histograms have fixed
+ * buckets, and per-topic counters are looked up once when the subscription is made. Only
+ * {@link #snapshot} builds objects, so recording can stay on in production.
+ **/
+public class StompMetrics {
+
+    /*Bucket upper bounds of the dispatch latency, in microseconds*/
+    private static final long[] DISPATCH_BOUNDS = {50, 100, 250, 500, 1000, 2500, 5000, 10000, 25000, 50000, 100000};
+    /*Bucket upper bounds of the send latency, in milliseconds*/
+    private static final long[] SEND_BOUNDS = {5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000};
+
+    /**
+     * Fixed bucket histogram, values above the last bound go to an overflow bucket
+     */
+    public static final class Histogram {
+        private final long[] bounds;
+        private final AtomicLongArray counts;
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        Histogram(long[] bounds) {
+            this.bounds = bounds;
+            this.counts = new AtomicLongArray(bounds.length + 1);
+        }
+
+        /**
+         * Record a value, negative values are ignored
+         *
+         * @param value
+         */
+        public void record(long value) {
+            if (value < 0) {
+                return;
+            }
+            int i = 0;
+            while (i < bounds.length && value > bounds[i]) {
+                i++;
+            }
+            counts.incrementAndGet(i);
+            count.incrementAndGet();
+            sum.addAndGet(value);
+            long current = max.get();
+            while (value > current && !max.compareAndSet(current, value)) {
+                current = max.get();
+            }
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        /**
+         * Upper bound of the bucket holding the given percentile, the max for the overflow bucket
+         *
+         * @param percentile 0 to 100
+         * @return -1 when empty
+         */
+        public long percentile(double percentile) {
+            long total = count.get();
+            if (total == 0) {
+                return -1;
+            }
+            long rank = (long) Math.ceil(total * percentile / 100d);
+            long seen = 0;
+            for (int i = 0; i < bounds.length; i++) {
+                seen += counts.get(i);
+                if (seen >= rank) {
+                    return bounds[i];
+                }
+            }
+            return max.get();
+        }
+
+        Map<String, Object> snapshot() {
+            Map<String, Object> map = new HashMap<>();
+            long total = count.get();
+            map.put("count", total);
+            map.put("sum", sum.get());
+            map.put("max", max.get());
+            map.put("mean", total == 0 ? 0 : sum.get() / total);
+            map.put("p50", percentile(50));
+            map.put("p90", percentile(90));
+            map.put("p99", percentile(99));
+            List<Long> boundList = new ArrayList<>(bounds.length);
+            for (long bound : bounds) {
+                boundList.add(bound);
+            }
+            List<Long> countList = new ArrayList<>(bounds.length + 1);
+            for (int i = 0; i < counts.length(); i++) {
+                countList.add(counts.get(i));
+            }
+            map.put("bounds", boundList);
+            map.put("counts", countList);
+            return map;
+        }
+    }
+
+    /*Received frames*/
+    public final AtomicLong receivedP2P = new AtomicLong();
+    public final AtomicLong receivedBroadcast = new AtomicLong();
+    /*Frames handed to the listeners*/
+    public final AtomicLong dispatched = new AtomicLong();
+    /*Redelivered frames dropped by the dedupe cache*/
+    public final AtomicLong duplicatesDropped = new AtomicLong();
+    /*Send results*/
+    public final AtomicLong sendSuccess = new AtomicLong();
+    public final AtomicLong sendFailed = new AtomicLong();
+    public final AtomicLong sendResent = new AtomicLong();
+    /*Connection lifecycle*/
+    public final AtomicLong connectionsOpened = new AtomicLong();
+    public final AtomicLong connectionsClosed = new AtomicLong();
+    public final AtomicLong connectionErrors = new AtomicLong();
+    /*Reconnects started by the service after the connection closed*/
+    public final AtomicLong reconnectsStarted = new AtomicLong();
+    /*Lazy connections closed when idle and opened again on demand*/
+    public final AtomicLong idleDisconnects = new AtomicLong();
+    public final AtomicLong lazyResumes = new AtomicLong();
+    /*Messages delivered as decoded maps, and those sent as json because they did not decode*/
+    public final AtomicLong structuredDecoded = new AtomicLong();
+    public final AtomicLong structuredFallbacks = new AtomicLong();
+
+    /*Time from receiving a frame to its listeners being done, in microseconds*/
+    public final Histogram dispatchLatency = new Histogram(DISPATCH_BOUNDS);
+    /*Broker round-trip of confirmed sends, in milliseconds*/
+    public final Histogram sendLatency = new Histogram(SEND_BOUNDS);
+    /*Time from the demand that woke a lazy connection to the connection open, in milliseconds*/
+    public final Histogram resumeLatency = new Histogram(SEND_BOUNDS);
+
+    /*Received frames per subscription address*/
+    private final ConcurrentHashMap<String, AtomicLong> topics = new ConcurrentHashMap<>();
+
+    /**
+     * Counter of an address, look it up once and keep it, incrementing it does not allocate
+     *
+     * @param topic
+     * @return
+     */
+    public AtomicLong topicCounter(String topic) {
+        AtomicLong counter = topics.get(topic);
+        if (counter == null) {
+            AtomicLong created = new AtomicLong();
+            counter = topics.putIfAbsent(topic, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        return counter;
+    }
+
+    /**
+     * Record a send result
+     *
+     * @param status  {@link StompConfig#STOMP_SEND_SUCCESS}, {@link StompConfig#STOMP_SEND_FAIL} or {@link StompConfig#STOMP_SEND_RESENT}
+     * @param latency Milliseconds, -1 when unknown
+     */
+    public void recordSend(int status, long latency) {
+        if (status == StompConfig.STOMP_SEND_SUCCESS) {
+            sendSuccess.incrementAndGet();
+        } else if (status == StompConfig.STOMP_SEND_RESENT) {
+            sendResent.incrementAndGet();
+        } else {
+            sendFailed.incrementAndGet();
+        }
+        if (status != StompConfig.STOMP_SEND_FAIL) {
+            sendLatency.record(latency);
+        }
+    }
+
+    /**
+     * Current values, counters under "counters", per address counts under "topics" and the
+     * histograms under "dispatchLatencyMicros" and "sendLatencyMillis"
+     *
+     * @return
+     */
+    public Map<String, Object> snapshot() {
+        Map<String, Object> counters = new HashMap<>();
+        counters.put("receivedP2P", receivedP2P.get());
+        counters.put("receivedBroadcast", receivedBroadcast.get());
+        counters.put("dispatched", dispatched.get());
+        counters.put("duplicatesDropped", duplicatesDropped.get());
+        counters.put("sendSuccess", sendSuccess.get());
+        counters.put("sendFailed", sendFailed.get());
+        counters.put("sendResent", sendResent.get());
+        counters.put("connectionsOpened", connectionsOpened.get());
+        counters.put("connectionsClosed", connectionsClosed.get());
+        counters.put("connectionErrors", connectionErrors.get());
+        counters.put("reconnectsStarted", reconnectsStarted.get());
+        counters.put("idleDisconnects", idleDisconnects.get());
+        counters.put("lazyResumes", lazyResumes.get());
+        counters.put("structuredDecoded", structuredDecoded.get());
+        counters.put("structuredFallbacks", structuredFallbacks.get());
+
+        Map<String, Object> topicCounts = new HashMap<>();
+        for (Map.Entry<String, AtomicLong> entry : topics.entrySet()) {
+            topicCounts.put(entry.getKey(), entry.getValue().get());
+        }
+
+        Map<String, Object> map = new HashMap<>();
+        map.put("counters", counters);
+        map.put("topics", topicCounts);
+        map.put("dispatchLatencyMicros", dispatchLatency.snapshot());
+        map.put("sendLatencyMillis", sendLatency.snapshot());
+        map.put("resumeLatencyMillis", resumeLatency.snapshot());
+        return map;
+    }
+}
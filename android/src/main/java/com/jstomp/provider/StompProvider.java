@@ -5,27 +5,34 @@ import android.annotation.TargetApi;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Log;
 
-import com.google.gson.Gson;
-
-import java.text.SimpleDateFormat;
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
-import io.reactivex.CompletableTransformer;
+import io.reactivex.Completable;
 import io.reactivex.android.schedulers.AndroidSchedulers;
 import io.reactivex.disposables.CompositeDisposable;
 import io.reactivex.disposables.Disposable;
 import io.reactivex.schedulers.Schedulers;
-import ua.naiksoftware.stomp.Stomp;
+import okhttp3.OkHttpClient;
 import ua.naiksoftware.stomp.StompClient;
 import ua.naiksoftware.stomp.dto.StompCommand;
 import ua.naiksoftware.stomp.dto.StompHeader;
 import ua.naiksoftware.stomp.dto.StompMessage;
+import ua.naiksoftware.stomp.provider.ConnectionProvider;
+import ua.naiksoftware.stomp.provider.OkHttpConnectionProvider;
 
 /**
  * @company Shanghai Daoqiao Information Technology-->
@@ -39,14 +46,35 @@ import ua.naiksoftware.stomp.dto.StompMessage;
 public class StompProvider {
 
     private static final String TAG = "StompProvider";
-    private StompClient mStompClient;
-    private static StompProvider instance;
+    /*Name of the connection returned by get()*/
+    public static final String DEFAULT_CONNECTION = "default";
+    /*Live connections by name, each with its own client, queues, subscriptions and reconnect policy*/
+    private static final Map<String, StompProvider> connections = new LinkedHashMap<>();
+    /*Name of this connection*/
+    private final String name;
+    private volatile StompClient mStompClient;
+    /*Websocket under the current client, used for raw frame writes*/
+    private volatile ConnectionProvider mConnectionProvider;
+    /*Whether the current client is open or opening, the send queue holds messages while it is not*/
+    private volatile boolean clientOpen = false;
+    /*Connection state is changed on the main thread only, like the lifecycle callbacks*/
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    /*Set while a reconnect is posted to the main thread and has not run yet*/
+    private final AtomicBoolean reconnectPosted = new AtomicBoolean(false);
+    /*Shared by every client, keeps the connection pool and dispatcher across reconnects*/
+    private OkHttpClient okHttpClient;
     private Context mContext;
     /*Unified message listening interface*/
 
-    private OnMessageListener messageListener;
+    private volatile OnMessageListener messageListener;
+    /*Per destination listeners, supports "*" and trailing "**" wildcards*/
+    private final TopicRouter<OnTopicMessageListener> topicRouter = new TopicRouter<>();
+    /*Filters deciding which received messages reach the listeners*/
+    private final MessageFilters messageFilters = new MessageFilters();
     /*Global send listener*/
-    private OnMessageSendListener globalSendStatusListener;
+    private volatile OnMessageSendListener globalSendStatusListener;
+    /*Backpressure listener*/
+    private volatile OnFlowControlListener flowControlListener;
     /*Connection monitoring*/
     private OnStompConnectionListener connectionListener;
 
@@ -61,6 +89,96 @@ public class StompProvider {
 
     private CompositeDisposable compositeDisposable;
 
+    /*Counters and latency histograms*/
+    private final StompMetrics metrics = new StompMetrics();
+
+    /*Joins messages received in fragments, replaced on init*/
+    private volatile ChunkAssembler chunkAssembler = new ChunkAssembler();
+
+    /*Compresses outgoing and inflates incoming message bodies*/
+    private final PayloadCodec payloadCodec = new PayloadCodec();
+    /*Header templates of outgoing messages per destination and header set*/
+    private final SendHeaders sendHeaders = new SendHeaders();
+
+    /*Declares the connection dead when server heart-beats stop*/
+    private final HeartbeatWatchdog heartbeatWatchdog = new HeartbeatWatchdog(new HeartbeatWatchdog.OnDeadListener() {
+        @Override
+        public void onConnectionDead(long silence) {
+            handleDeadConnection();
+        }
+    });
+    /*Set when the current connection was declared dead, until the next client is created*/
+    private volatile boolean connectionDead = false;
+
+    /*Subscriptions of the current client by kind and address, the wanted set lives in the config*/
+    private final Map<String, Disposable> activeSubscriptions = new LinkedHashMap<>();
+    /*Local consumers of each wanted subscription by kind and address, guarded like activeSubscriptions*/
+    private final Map<String, Integer> subscriptionRefs = new HashMap<>();
+    /*When the current client was created, used to measure the time to restored subscriptions*/
+    private volatile long clientCreateTime = 0;
+    /*Time from creating the client to all subscriptions restored of the last reconnect, -1 if none yet*/
+    private volatile long lastTimeToSubscribe = -1;
+
+    /*Inbound dispatch stage, runs listener work off the main thread*/
+    private InboundDispatcher inboundDispatcher;
+
+    /*Recent message ids, drops redelivered messages, null when dedupe is off*/
+    private volatile DedupeCache dedupeCache;
+
+    /*Outbound send engine*/
+    private OutboundQueue outboundQueue;
+
+    /*Outstanding send receipts, null when receipts are off*/
+    private volatile ReceiptTracker receiptTracker;
+
+    /*On-disk outbox of unconfirmed messages, null when the outbox is off*/
+    private volatile OutboxJournal outbox;
+
+    /*Local history of sent and received messages, null when the store is off*/
+    private volatile MessageStore messageStore;
+
+    /*Closes a lazy connection that is neither needed nor used*/
+    private final IdleMonitor idleMonitor = new IdleMonitor(new IdleMonitor.Callback() {
+        @Override
+        public boolean isBusy() {
+            return hasWork();
+        }
+
+        @Override
+        public void onIdle(long idleTime) {
+            idleDisconnect(idleTime);
+        }
+    });
+    /*Set while a lazy connection waits for demand, before its first use or after closing when idle*/
+    private final AtomicBoolean parked = new AtomicBoolean(false);
+    /*When the demand that wakes a parked connection arrived, 0 when not resuming*/
+    private volatile long resumeStartTime = 0;
+    /*Time from that demand to the connection open, of the last resume, -1 if none yet*/
+    private volatile long lastResumeLatency = -1;
+
+    /*Reconnect attempts after the connection is lost*/
+    private final ReconnectScheduler reconnectScheduler = new ReconnectScheduler(null, new ReconnectScheduler.Connector() {
+        @Override
+        public boolean isConnected() {
+            return isConnecting();
+        }
+
+        @Override
+        public boolean isConnecting() {
+            //Opened or opening, until the lifecycle reports ERROR or CLOSED
+            return clientOpen && !connectionDead && mStompClient != null;
+        }
+
+        @Override
+        public void reconnect() {
+            if (parked.get()) {
+                return;
+            }
+            stopService = false;
+            reConnection();
+        }
+    });
+
     /**
      * Stomp connection close listening interface
      */
@@ -81,32 +199,109 @@ public class StompProvider {
         void onP2PMessage(String stompMsg, String topicUrl);
     }
 
+    /**
+     * Message listening interface of a single destination or pattern
+     */
+    public interface OnTopicMessageListener {
+        void onTopicMessage(String stompMsg, String topicUrl, String pattern);
+    }
+
     /**
      * Stomp send interface
      */
     public interface OnMessageSendListener {
         void onSendMessage(int status, String userMsg, String tipsMsg);
+
+        /**
+         * Send result with the measured latency in milliseconds, the broker round-trip time
+         * when receipts are enabled, -1 when unknown
+         */
+        default void onSendMessage(int status, String userMsg, String tipsMsg, long latency) {
+            onSendMessage(status, userMsg, tipsMsg);
+        }
     }
 
+    /**
+     * Backpressure interface, sending should pause while not writable
+     */
+    public interface OnFlowControlListener {
+        void onFlowControl(boolean writable, int queueDepth, long queuedChars);
+    }
 
-    private StompProvider() {
+
+    private StompProvider(String name) {
+        this.name = name;
     }
 
+    /**
+     * Return the default connection
+     *
+     * @return
+     */
     public static StompProvider get() {
-        if (instance == null) {
-            synchronized (StompProvider.class) {
-                if (instance == null) {
-                    instance = new StompProvider();
-                }
+        return get(DEFAULT_CONNECTION);
+    }
+
+    /**
+     * Return the connection with this name, created on first use. Connections are independent,
+     * each is initialized, connected and destroyed on its own
+     *
+     * @param name
+     * @return
+     */
+    public static StompProvider get(String name) {
+        if (TextUtils.isEmpty(name)) {
+            name = DEFAULT_CONNECTION;
+        }
+        synchronized (connections) {
+            StompProvider provider = connections.get(name);
+            if (provider == null) {
+                provider = new StompProvider(name);
+                connections.put(name, provider);
             }
+            return provider;
         }
-        return instance;
+    }
+
+    /**
+     * Return the connection with this name, null when it does not exist
+     *
+     * @param name
+     * @return
+     */
+    public static StompProvider find(String name) {
+        synchronized (connections) {
+            return connections.get(TextUtils.isEmpty(name) ? DEFAULT_CONNECTION : name);
+        }
+    }
+
+    /**
+     * Return all live connections
+     *
+     * @return
+     */
+    public static List<StompProvider> all() {
+        synchronized (connections) {
+            return new ArrayList<>(connections.values());
+        }
+    }
+
+    /**
+     * Name of this connection
+     *
+     * @return
+     */
+    public String getName() {
+        return name;
     }
 
     /**
      * Reset and disconnect subscribers
      */
     private void resetSubscriptions() {
+        synchronized (activeSubscriptions) {
+            activeSubscriptions.clear();
+        }
         if (compositeDisposable != null) {
             compositeDisposable.dispose();
         }
@@ -128,12 +323,53 @@ public class StompProvider {
      * @param config Custom configuration information
      */
     public boolean init(Context context, StompConfig config) {
+        if (config.getOverflowStrategy() == InboundDispatcher.OverflowStrategy.BLOCK && config.getServerHeartbeat() > 0) {
+            //A reader blocked on a full queue misses the beats and the watchdog closes a healthy connection
+            Log.e(TAG, "Stomp BLOCK inbound overflow cannot be used with a server heart-beat");
+            return false;
+        }
         try {
             resetSubscriptions();
+            //The client of the previous attempt must not stay open next to the new one
+            closeClient();
             this.mContext = context;
             this.mConfig = config;
+            reconnectScheduler.setPolicy(config.getReconnectPolicy());
+            payloadCodec.configure(config.isCompressionEnabled(), config.getCompressionThreshold());
+            if (chunkAssembler.getTimeout() != config.getReassemblyTimeout()) {
+                chunkAssembler = new ChunkAssembler(config.getReassemblyTimeout(), 0, 0);
+            }
+            startInboundDispatcher(config);
+            startDedupeCache(config);
+            startOutboundQueue(config);
+            outboundQueue.setChunkSize(config.getChunkSize());
+            startRateLimiter(config);
+            outboundQueue.setWatermarks(config.getFlowHighWatermark(), config.getFlowLowWatermark());
+            startReceiptTracker(config);
+            openOutbox(context, config);
+            openMessageStore(context, config);
             String url = config.connectionUrl();
-            mStompClient = Stomp.over(Stomp.ConnectionProvider.OKHTTP, url);
+            if (okHttpClient == null) {
+                okHttpClient = new OkHttpClient();
+            }
+            mConnectionProvider = new TapConnectionProvider(new OkHttpConnectionProvider(url, null, okHttpClient),
+                    new TapConnectionProvider.OnRawFrameListener() {
+                        @Override
+                        public void onRawFrame(TapConnectionProvider provider, String frame) {
+                            //Frames of a replaced socket that is still closing
+                            if (provider == mConnectionProvider) {
+                                handleRawFrame(frame);
+                            }
+                        }
+                    });
+            heartbeatWatchdog.disarm();
+            mStompClient = new StompClient(mConnectionProvider)
+                    .withClientHeartbeat(config.getClientHeartbeat())
+                    .withServerHeartbeat(config.getServerHeartbeat());
+            connectionDead = false;
+            clientOpen = true;
+            outboundQueue.onTransportOpen();
+            clientCreateTime = SystemClock.elapsedRealtime();
             Log.d(TAG, "Stomp initialization--url:" + url);
             return true;
         } catch (Exception e) {
@@ -142,24 +378,531 @@ public class StompProvider {
         }
     }
 
+    /**
+     * Start the inbound dispatcher, an existing one is kept across reconnects
+     *
+     * @param config
+     */
+    private void startInboundDispatcher(StompConfig config) {
+        if (inboundDispatcher != null) {
+            return;
+        }
+        inboundDispatcher = new InboundDispatcher(config.getInboundCapacity(), config.getOverflowStrategy(),
+                new InboundDispatcher.OnFrameListener() {
+                    @Override
+                    public void onFrame(InboundDispatcher.Frame frame) {
+                        dispatchFrame(frame);
+                    }
+                });
+        inboundDispatcher.start();
+    }
+
+    /**
+     * Rate limits of the outbound queue; the limiter is kept across reconnects so its buckets and
+     * stats carry over, and only replaced when the limits change
+     *
+     * @param config
+     */
+    private void startRateLimiter(StompConfig config) {
+        if (config.getSendRate() <= 0 && config.getDestinationSendRate() <= 0) {
+            outboundQueue.setRateLimiter(null);
+            return;
+        }
+        RateLimiter limiter = outboundQueue.getRateLimiter();
+        if (limiter == null || !limiter.hasLimits(config.getSendRate(), config.getSendBurst(),
+                config.getDestinationSendRate(), config.getDestinationSendBurst())) {
+            outboundQueue.setRateLimiter(new RateLimiter(config.getSendRate(), config.getSendBurst(),
+                    config.getDestinationSendRate(), config.getDestinationSendBurst()));
+        }
+    }
+
+    /**
+     * Create the duplicate filter, an existing one is kept across reconnects so redeliveries
+     * after reconnecting are recognised
+     *
+     * @param config
+     */
+    private void startDedupeCache(StompConfig config) {
+        if (!config.isDedupeEnabled()) {
+            dedupeCache = null;
+            return;
+        }
+        DedupeCache cache = dedupeCache;
+        if (cache == null || cache.getCapacity() != config.getDedupeCapacity()
+                || cache.getWindow() != config.getDedupeWindow()) {
+            dedupeCache = new DedupeCache(config.getDedupeCapacity(), config.getDedupeWindow());
+        }
+    }
+
+    /**
+     * Return the duplicate filter, null when dedupe is off
+     *
+     * @return
+     */
+    public DedupeCache getDedupeCache() {
+        return dedupeCache;
+    }
+
+    /**
+     * Start the outbound send engine, an existing one is kept across reconnects
+     *
+     * @param config
+     */
+    private void startOutboundQueue(StompConfig config) {
+        if (outboundQueue != null) {
+            return;
+        }
+        outboundQueue = new OutboundQueue(config.getOutboundCapacity(), config.getMaxInFlight(),
+                new OutboundQueue.Transport() {
+                    @Override
+                    public Completable send(StompMessage message) {
+                        StompClient client = mStompClient;
+                        if (client == null) {
+                            return Completable.error(new IllegalStateException("Stomp client is not initialized"));
+                        }
+                        return client.send(message);
+                    }
+
+                    @Override
+                    public boolean canSendFrames() {
+                        StompConfig cfg = mConfig;
+                        return mConnectionProvider != null && cfg != null && cfg.isCoalesceFrames() && isConnecting();
+                    }
+
+                    @Override
+                    public Completable sendFrames(String frames) {
+                        return mConnectionProvider.send(frames);
+                    }
+
+                    @Override
+                    public StompMessage encode(StompMessage message) {
+                        return payloadCodec.encode(message);
+                    }
+
+                    @Override
+                    public boolean isOpen() {
+                        //A client that is still connecting holds sends until CONNECTED
+                        return clientOpen && !connectionDead && mStompClient != null;
+                    }
+                },
+                new OutboundQueue.OnSendResultListener() {
+                    @Override
+                    public void onSendResult(int status, StompMessage message, Throwable error) {
+                        if (status == StompConfig.STOMP_SEND_SUCCESS) {
+                            Log.d(TAG, "Stomp message sent successfully" + message.getPayload());
+                        } else {
+                            Log.e(TAG, "Stomp message failed to be sent", error);
+                        }
+                        String receiptId = message.findHeader(ReceiptTracker.HEADER_RECEIPT);
+                        ReceiptTracker tracker = receiptTracker;
+                        if (receiptId != null && tracker != null) {
+                            //The result comes with the receipt, only a failed write ends it early
+                            if (status != StompConfig.STOMP_SEND_SUCCESS) {
+                                tracker.fail(receiptId);
+                            }
+                            return;
+                        }
+                        handleSendResultMessage(status, message, -1);
+                    }
+
+                    @Override
+                    public void onWrite(StompMessage message) {
+                        //The broker round trip starts now, not when the message was queued
+                        String receiptId = message.findHeader(ReceiptTracker.HEADER_RECEIPT);
+                        ReceiptTracker tracker = receiptTracker;
+                        if (receiptId != null && tracker != null) {
+                            tracker.markWritten(receiptId);
+                        }
+                    }
+                });
+        outboundQueue.setOnFlowListener(new OutboundQueue.OnFlowListener() {
+            @Override
+            public void onFlowChanged(boolean writable, int queueDepth, long queuedChars) {
+                Log.d(TAG, "Stomp outbound " + (writable ? "writable" : "paused") + ", queued chars " + queuedChars);
+                OnFlowControlListener listener = flowControlListener;
+                if (listener != null) {
+                    listener.onFlowControl(writable, queueDepth, queuedChars);
+                }
+            }
+        });
+        outboundQueue.start();
+    }
+
+    /**
+     * Start receipt tracking when the configuration asks for it. An existing tracker is kept
+     * across reconnects, replaced with its pending receipts when the timeout changes, and released
+     * when receipts are turned off, failing the sends nothing will confirm any more
+     *
+     * @param config
+     */
+    private void startReceiptTracker(StompConfig config) {
+        ReceiptTracker tracker = receiptTracker;
+        if (!config.isReceiptEnabled()) {
+            receiptTracker = null;
+            if (tracker != null) {
+                tracker.failAll();
+                tracker.release();
+            }
+            return;
+        }
+        long timeout = config.getReceiptTimeout() <= 0 ? ReceiptTracker.DEFAULT_TIMEOUT : config.getReceiptTimeout();
+        if (tracker != null && tracker.getTimeout() == timeout) {
+            return;
+        }
+        ReceiptTracker created = new ReceiptTracker(timeout, new ReceiptTracker.OnReceiptListener() {
+            @Override
+            public void onReceipt(int status, StompMessage message, long latency) {
+                Log.d(TAG, "Stomp receipt " + status + " in " + latency + "ms");
+                handleSendResultMessage(status, message, latency);
+            }
+        });
+        if (tracker != null) {
+            tracker.moveTo(created);
+            tracker.release();
+        }
+        receiptTracker = created;
+    }
+
+    /**
+     * Directory of the files of this connection, named connections get their own subdirectory
+     *
+     * @param context
+     * @return
+     */
+    private File dataDir(Context context) {
+        File dir = new File(context.getFilesDir(), "jstomp");
+        return DEFAULT_CONNECTION.equals(name) ? dir : new File(dir, "connection/" + Long.toHexString(DedupeCache.hash(name)));
+    }
+
+    /**
+     * Open the on-disk outbox when the configuration asks for it
+     *
+     * @param context
+     * @param config
+     */
+    private void openOutbox(Context context, StompConfig config) {
+        if (!config.isOutboxEnabled() || outbox != null) {
+            return;
+        }
+        try {
+            outbox = new OutboxJournal(new File(dataDir(context), "outbox.journal"));
+        } catch (IOException e) {
+            Log.e(TAG, "Stomp outbox cannot be opened", e);
+        }
+    }
+
+    /**
+     * Open the local message store, an open store is kept across reconnects
+     *
+     * @param context
+     * @param config
+     */
+    private void openMessageStore(Context context, StompConfig config) {
+        if (!config.isMessageStoreEnabled() || messageStore != null) {
+            return;
+        }
+        try {
+            messageStore = new MessageStore(new File(dataDir(context), "store"), config.getMessageStoreSize());
+        } catch (IOException e) {
+            Log.e(TAG, "Stomp message store cannot be opened", e);
+        }
+    }
+
+    /**
+     * Return the local message store, null when it is off
+     *
+     * @return
+     */
+    public MessageStore getMessageStore() {
+        return messageStore;
+    }
+
+    /**
+     * Return the outbox, null when it is off
+     *
+     * @return
+     */
+    public OutboxJournal getOutbox() {
+        return outbox;
+    }
+
+    /**
+     * Resend everything waiting in the outbox, in order, called when the connection opens
+     */
+    private void replayOutbox() {
+        OutboxJournal journal = outbox;
+        if (journal == null) {
+            return;
+        }
+        List<OutboxJournal.Entry> entries = journal.takeForReplay();
+        if (entries.isEmpty()) {
+            return;
+        }
+        Log.i(TAG, "Stomp outbox replay: " + entries.size());
+        for (OutboxJournal.Entry entry : entries) {
+            StompMessage message = withNewReceipt(entry.message);
+            journal.rebind(entry, message);
+            enqueue(message, laneOf(message.getPayload()));
+        }
+    }
+
+    /**
+     * Copy of a message with a fresh receipt header, receipts of an earlier connection are never answered
+     *
+     * @param message
+     * @return
+     */
+    private StompMessage withNewReceipt(StompMessage message) {
+        ReceiptTracker tracker = receiptTracker;
+        List<StompHeader> headers = new ArrayList<>();
+        for (StompHeader header : message.getStompHeaders()) {
+            if (!ReceiptTracker.HEADER_RECEIPT.equals(header.getKey())) {
+                headers.add(header);
+            }
+        }
+        String receiptId = null;
+        if (tracker != null) {
+            receiptId = tracker.nextReceiptId();
+            headers.add(new StompHeader(ReceiptTracker.HEADER_RECEIPT, receiptId));
+        }
+        StompMessage copy = new StompMessage(StompCommand.SEND, headers, message.getPayload());
+        if (receiptId != null) {
+            tracker.track(receiptId, copy);
+        }
+        return copy;
+    }
+
+    /**
+     * Raw inbound frame, called on the socket thread before the stomp client parses it
+     *
+     * @param frame
+     */
+    private void handleRawFrame(String frame) {
+        heartbeatWatchdog.onFrame();
+        StompConfig config = mConfig;
+        if (config != null && config.getServerHeartbeat() > 0 && RawFrames.isCommand(frame, RawFrames.CONNECTED)) {
+            heartbeatWatchdog.arm(RawFrames.header(frame, HeartbeatWatchdog.HEADER_HEART_BEAT), config.getServerHeartbeat());
+        }
+        ReceiptTracker tracker = receiptTracker;
+        if (tracker != null) {
+            tracker.onRawFrame(frame);
+        }
+    }
+
+    /**
+     * The connection stopped answering, close the socket and reconnect right away instead of
+     * waiting for the system to time the socket out
+     */
+    private void handleDeadConnection() {
+        //The watchdog calls in from its own thread
+        if (Looper.myLooper() != Looper.getMainLooper()) {
+            mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    handleDeadConnection();
+                }
+            });
+            return;
+        }
+        if (connectionDead) {
+            return;
+        }
+        connectionDead = true;
+        heartbeatWatchdog.disarm();
+        ConnectionProvider provider = mConnectionProvider;
+        if (provider != null) {
+            provider.disconnect().subscribe(() -> Log.i(TAG, "Stomp dead connection closed"),
+                    throwable -> Log.e(TAG, "Stomp dead connection close failed", throwable));
+        }
+        if (!stopService) {
+            reconnectScheduler.start();
+        }
+    }
+
+    /**
+     * Return the heart-beat watchdog
+     *
+     * @return
+     */
+    public HeartbeatWatchdog getHeartbeatWatchdog() {
+        return heartbeatWatchdog;
+    }
+
+    /**
+     * Return the outbound send engine, null before init
+     *
+     * @return
+     */
+    public OutboundQueue getOutboundQueue() {
+        return outboundQueue;
+    }
+
+    /**
+     * Hand a received frame to the message listener, runs on the dispatcher thread
+     *
+     * @param frame
+     */
+    private void dispatchFrame(InboundDispatcher.Frame frame) {
+        frame.message = chunkAssembler.add(payloadCodec.decode(frame.message));
+        if (frame.message == null) {
+            //A fragment, the message is dispatched when its last fragment arrives
+            return;
+        }
+        idleMonitor.touch();
+        DedupeCache cache = dedupeCache;
+        if (cache != null && cache.isDuplicate(DedupeCache.messageId(frame.message))) {
+            metrics.duplicatesDropped.incrementAndGet();
+            return;
+        }
+        String payload = frame.message.getPayload();
+        MessageStore store = messageStore;
+        if (store != null) {
+            store.append(MessageStore.DIRECTION_IN, 0, payload);
+        }
+        if (!messageFilters.accept(frame.message)) {
+            return;
+        }
+        OnMessageListener listener = messageListener;
+        if (frame.kind == InboundDispatcher.KIND_BROADCAST) {
+            Log.d(TAG, "broadcastMessage: " + payload);
+            if (listener != null) {
+                listener.onBroadcastMessage(payload, frame.topic);
+            }
+        } else {
+            Log.i(TAG, payload);
+            if (listener != null) {
+                listener.onP2PMessage(payload, frame.topic);
+            }
+        }
+        List<TopicRouter.Route<OnTopicMessageListener>> routes = topicRouter.match(frame.topic);
+        for (int i = 0, n = routes.size(); i < n; i++) {
+            TopicRouter.Route<OnTopicMessageListener> route = routes.get(i);
+            route.listener.onTopicMessage(payload, frame.topic, route.pattern);
+        }
+        metrics.dispatched.incrementAndGet();
+        metrics.dispatchLatency.record((System.nanoTime() - frame.receiveTime) / 1000);
+    }
+
+    /**
+     * Return the fragment assembler, its counters describe the reassembly
+     *
+     * @return
+     */
+    public ChunkAssembler getChunkAssembler() {
+        return chunkAssembler;
+    }
+
+    /**
+     * Return the payload codec, its statistics describe the compression
+     *
+     * @return
+     */
+    public PayloadCodec getPayloadCodec() {
+        return payloadCodec;
+    }
+
+    /**
+     * Return the filters of received messages
+     *
+     * @return
+     */
+    public MessageFilters getMessageFilters() {
+        return messageFilters;
+    }
+
+    /**
+     * Add a filter of received messages, replacing the one with the same id. With filters, a
+     * message reaches the listeners only when one of them matches it
+     *
+     * @param filter
+     */
+    public StompProvider addMessageFilter(MessageFilter filter) {
+        if (filter != null) {
+            messageFilters.add(filter);
+        }
+        return this;
+    }
+
+    /**
+     * Remove a filter of received messages
+     *
+     * @param id
+     */
+    public StompProvider removeMessageFilter(String id) {
+        messageFilters.remove(id);
+        return this;
+    }
+
+    /**
+     * Return the header template cache of outgoing messages
+     *
+     * @return
+     */
+    public SendHeaders getSendHeaders() {
+        return sendHeaders;
+    }
+
+    /**
+     * Return the metrics registry
+     *
+     * @return
+     */
+    public StompMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Return the reconnect scheduler, its counters describe the reconnect history
+     *
+     * @return
+     */
+    public ReconnectScheduler getReconnectScheduler() {
+        return reconnectScheduler;
+    }
+
+    /**
+     * Return the inbound dispatcher, null before init
+     *
+     * @return
+     */
+    public InboundDispatcher getInboundDispatcher() {
+        return inboundDispatcher;
+    }
+
+    /**
+     * Start the stomp message service. In lazy mode the connection waits for the first
+     * subscription or send when there is nothing to do yet
+     */
+    public StompProvider openConnection(OnStompConnectionListener listener) {
+        StompConfig config = mConfig;
+        if (mContext != null && config != null && config.isLazyConnect() && !hasWork()) {
+            connectionListener = listener;
+            parked.set(true);
+            Log.i(TAG, "Stomp lazy connection, waiting for a subscription or message");
+            return this;
+        }
+        return startConnection(listener);
+    }
+
     /**
      * Start the stomp message service
      */
     @TargetApi(Build.VERSION_CODES.O)
-    public StompProvider openConnection(OnStompConnectionListener listener) {
+    private StompProvider startConnection(OnStompConnectionListener listener) {
         if (mContext == null) {
             return this;
         }
         try {
             connectionListener = listener;
             // If the StompService has been started and the service is not destroyed, then do not restart the service.
-            //just need to re-register Stomp listener
+            //just need to re-register Stomp listener
             if (!stopService && StompService.GET() != null) {
-                StompService.GET().registerStompConnectionListener();
+                StompService.GET().registerStompConnectionListener(name);
                 return this;
             }
 
             Intent intent = new Intent(mContext, StompService.class);
+            intent.putExtra(StompService.EXTRA_CONNECTION, name);
             if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
                 // android8.0 or above start service through startForegroundService
                 mContext.startForegroundService(intent);
@@ -179,17 +922,112 @@ public class StompProvider {
      * @return
      */
     public void reConnection() {
+        //Scheduler and wake-ups call in from other threads, attempts run one at a time on the main thread
+        if (Looper.myLooper() != Looper.getMainLooper()) {
+            if (reconnectPosted.compareAndSet(false, true)) {
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        reconnectPosted.set(false);
+                        reConnection();
+                    }
+                });
+            }
+            return;
+        }
         if (mContext == null || mConfig == null) {
             return;
         }
-        //Disconnect first
-        // disconnect();
-        //Reset
+        //Reset, the previous client is closed first
         boolean b = init(mContext, mConfig);
         if (b) {
             Log.i(TAG, "Stomp reconnection is in progress");
-            openConnection(connectionListener);
+            startConnection(connectionListener);
+        }
+    }
+
+    /**
+     * Whether the connection is needed: wanted subscriptions, queued or unconfirmed messages
+     *
+     * @return
+     */
+    private boolean hasWork() {
+        StompConfig config = mConfig;
+        if (config != null && (!config.getTopicUrl().isEmpty() || !config.getTopicBroadcastUrl().isEmpty())) {
+            return true;
+        }
+        OutboundQueue queue = outboundQueue;
+        if (queue != null && (queue.getQueueDepth() > 0 || queue.getInFlight() > 0)) {
+            return true;
+        }
+        ReceiptTracker tracker = receiptTracker;
+        return tracker != null && tracker.getPendingCount() > 0;
+    }
+
+    /**
+     * Open a parked lazy connection on demand, the wanted subscriptions are restored and queued
+     * messages sent once it is open
+     */
+    private void wake() {
+        idleMonitor.touch();
+        if (!parked.compareAndSet(true, false)) {
+            return;
+        }
+        resumeStartTime = SystemClock.elapsedRealtime();
+        metrics.lazyResumes.incrementAndGet();
+        Log.i(TAG, "Stomp lazy connection resuming");
+        reConnection();
+    }
+
+    /**
+     * Close a lazy connection that was idle for the timeout. Wanted subscriptions, queues and
+     * listeners are kept for the resume
+     *
+     * @param idleTime
+     */
+    private void idleDisconnect(final long idleTime) {
+        //The idle monitor calls in from its own thread
+        if (Looper.myLooper() != Looper.getMainLooper()) {
+            mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    idleDisconnect(idleTime);
+                }
+            });
+            return;
         }
+        if (mConfig == null || !parked.compareAndSet(false, true)) {
+            return;
+        }
+        metrics.idleDisconnects.incrementAndGet();
+        Log.i(TAG, "Stomp lazy connection closed after " + idleTime + "ms idle");
+        reconnectScheduler.cancel();
+        heartbeatWatchdog.disarm();
+        clientOpen = false;
+        StompClient client = mStompClient;
+        if (client != null) {
+            client.disconnect();
+        }
+        stopStompService();
+    }
+
+    /**
+     * Whether a lazy connection is closed and waiting for demand
+     *
+     * @return
+     */
+    public boolean isParked() {
+        return parked.get();
+    }
+
+    /**
+     * Time from the demand that woke the lazy connection to the connection open, of the last
+     * resume, -1 if none yet
+     *
+     * @return
+     */
+    public long getLastResumeLatency() {
+        return lastResumeLatency;
     }
 
     /**
@@ -199,14 +1037,16 @@ public class StompProvider {
      */
     public StompProvider subscriber() {
         if (mConfig != null && mConfig.getTopicUrl() != null) {
-            String[] urls = (String[]) mConfig.getTopicUrl().toArray();
-            return subscriber(urls);
+            for (String url : mConfig.getTopicUrl().toArray(new String[0])) {
+                subscribe(InboundDispatcher.KIND_P2P, url);
+            }
         }
         return this;
     }
 
     /**
-     * Subscribe to p2p
+     * Subscribe to p2p, every call adds one consumer of the address; an address already
+     * subscribed on the current client is not subscribed again
      *
      * @param topicUrl
      * @return
@@ -217,32 +1057,26 @@ public class StompProvider {
             return this;
         }
         mConfig.topicUrl(topicUrl);
+        wake();
         for (String url : topicUrl) {
-            Log.i(TAG, "P2P subscription:" + url);
-            Disposable dispCast = mStompClient.topic(url)
-                    .subscribeOn(Schedulers.io())
-                    .observeOn(AndroidSchedulers.mainThread())
-                    .subscribe(topicMessage -> {
-                        Log.i(TAG, topicMessage.getPayload());
-                        if (null != messageListener) {
-                            messageListener.onP2PMessage(topicMessage.getPayload(), url);
-                        }
-                    });
-            compositeDisposable.add(dispCast);
+            retainSubscription(InboundDispatcher.KIND_P2P, url);
+            subscribe(InboundDispatcher.KIND_P2P, url);
         }
         return this;
     }
 
     public StompProvider subscriberBroadcast() {
         if (mConfig != null && mConfig.getTopicBroadcastUrl() != null) {
-            String[] urls = (String[]) mConfig.getTopicBroadcastUrl().toArray();
-            return subscriberBroadcast(urls);
+            for (String url : mConfig.getTopicBroadcastUrl().toArray(new String[0])) {
+                subscribe(InboundDispatcher.KIND_BROADCAST, url);
+            }
         }
         return this;
     }
 
     /**
-     * Subscribe to the broadcast
+     * Subscribe to the broadcast, every call adds one consumer of the address; an address already
+     * subscribed on the current client is not subscribed again
      *
      * @param broadCast
      * @return
@@ -253,32 +1087,209 @@ public class StompProvider {
             return this;
         }
         mConfig.broadcastUrl(broadCast);
+        wake();
+        for (String url : broadCast) {
+            retainSubscription(InboundDispatcher.KIND_BROADCAST, url);
+            subscribe(InboundDispatcher.KIND_BROADCAST, url);
+        }
+        return this;
+    }
+
+    /**
+     * Remove one consumer of p2p addresses, the subscription is closed with UNSUBSCRIBE when its
+     * last consumer leaves and is no longer restored after a reconnect
+     *
+     * @param topicUrl
+     * @return
+     */
+    public StompProvider unsubscribe(String... topicUrl) {
+        if (null == topicUrl) {
+            return this;
+        }
+        for (String url : topicUrl) {
+            if (releaseSubscription(InboundDispatcher.KIND_P2P, url)) {
+                if (mConfig != null) {
+                    mConfig.getTopicUrl().remove(url);
+                }
+                closeSubscription(InboundDispatcher.KIND_P2P, url);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Remove one consumer of broadcast addresses, the subscription is closed with UNSUBSCRIBE when
+     * its last consumer leaves and is no longer restored after a reconnect
+     *
+     * @param broadCast
+     * @return
+     */
+    public StompProvider unsubscribeBroadcast(String... broadCast) {
+        if (null == broadCast) {
+            return this;
+        }
         for (String url : broadCast) {
-            Disposable dispTopic = mStompClient.topic(url)
+            if (releaseSubscription(InboundDispatcher.KIND_BROADCAST, url)) {
+                if (mConfig != null) {
+                    mConfig.getTopicBroadcastUrl().remove(url);
+                }
+                closeSubscription(InboundDispatcher.KIND_BROADCAST, url);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Add a consumer of an address
+     *
+     * @param kind
+     * @param url
+     */
+    private void retainSubscription(int kind, String url) {
+        String key = kind + ":" + url;
+        synchronized (activeSubscriptions) {
+            Integer refs = subscriptionRefs.get(key);
+            subscriptionRefs.put(key, refs == null ? 1 : refs + 1);
+        }
+    }
+
+    /**
+     * Remove a consumer of an address
+     *
+     * @param kind
+     * @param url
+     * @return true when no consumer is left, also for an address subscribed from the configuration only
+     */
+    private boolean releaseSubscription(int kind, String url) {
+        String key = kind + ":" + url;
+        synchronized (activeSubscriptions) {
+            Integer refs = subscriptionRefs.remove(key);
+            if (refs != null && refs > 1) {
+                subscriptionRefs.put(key, refs - 1);
+                return false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Close the subscription of an address on the current client
+     *
+     * @param kind
+     * @param url
+     */
+    private void closeSubscription(int kind, String url) {
+        Disposable disposable;
+        synchronized (activeSubscriptions) {
+            disposable = activeSubscriptions.remove(kind + ":" + url);
+        }
+        if (disposable == null) {
+            return;
+        }
+        Log.i(TAG, (kind == InboundDispatcher.KIND_P2P ? "P2P" : "Broadcast") + " unsubscription:" + url);
+        //The client sends UNSUBSCRIBE once the last observer of the destination is disposed
+        CompositeDisposable composite = compositeDisposable;
+        if (composite == null || !composite.remove(disposable)) {
+            disposable.dispose();
+        }
+    }
+
+    /**
+     * Subscribe an address on the current client unless it is already subscribed
+     *
+     * @param kind {@link InboundDispatcher#KIND_P2P} or {@link InboundDispatcher#KIND_BROADCAST}
+     * @param url
+     * @return true if a new subscription was made
+     */
+    private boolean subscribe(final int kind, final String url) {
+        StompClient client = mStompClient;
+        if (client == null || url == null) {
+            return false;
+        }
+        String key = kind + ":" + url;
+        synchronized (activeSubscriptions) {
+            if (activeSubscriptions.containsKey(key)) {
+                return false;
+            }
+            Log.i(TAG, (kind == InboundDispatcher.KIND_P2P ? "P2P" : "Broadcast") + " subscription:" + url);
+            final AtomicLong received = kind == InboundDispatcher.KIND_P2P ? metrics.receivedP2P : metrics.receivedBroadcast;
+            final AtomicLong topicReceived = metrics.topicCounter(url);
+            Disposable disposable = client.topic(url)
                     .subscribeOn(Schedulers.io())
-                    .observeOn(AndroidSchedulers.mainThread())
-                    .subscribe(broadcastTopicMessage -> {
-                        Log.d(TAG, "broadcastMessage: " + broadcastTopicMessage.getPayload());
-                        if (messageListener != null) {
-                            messageListener.onBroadcastMessage(broadcastTopicMessage.getPayload(), url);
-                        }
+                    .subscribe(topicMessage -> {
+                        received.incrementAndGet();
+                        topicReceived.incrementAndGet();
+                        inboundDispatcher.offer(kind, url, topicMessage);
                     });
-            compositeDisposable.add(dispTopic);
+            activeSubscriptions.put(key, disposable);
+            compositeDisposable.add(disposable);
+            return true;
         }
-        return this;
     }
 
     /**
-     * Stop stomp service
+     * Re-establish every configured subscription missing on the current client, in one pass and
+     * in the order they were first made, p2p first. Called when the connection opens
+     */
+    private void restoreSubscriptions() {
+        StompConfig config = mConfig;
+        if (config == null) {
+            return;
+        }
+        int restored = 0;
+        for (String url : config.getTopicUrl().toArray(new String[0])) {
+            if (subscribe(InboundDispatcher.KIND_P2P, url)) {
+                restored++;
+            }
+        }
+        for (String url : config.getTopicBroadcastUrl().toArray(new String[0])) {
+            if (subscribe(InboundDispatcher.KIND_BROADCAST, url)) {
+                restored++;
+            }
+        }
+        if (restored > 0) {
+            lastTimeToSubscribe = SystemClock.elapsedRealtime() - clientCreateTime;
+            Log.i(TAG, "Stomp restored " + restored + " subscriptions, " + lastTimeToSubscribe + "ms after reconnect");
+        }
+    }
+
+    /**
+     * Number of subscriptions on the current client
+     *
+     * @return
+     */
+    public int getSubscriptionCount() {
+        synchronized (activeSubscriptions) {
+            return activeSubscriptions.size();
+        }
+    }
+
+    /**
+     * Time from creating the client to all subscriptions restored, of the last reconnect that had
+     * to restore any, -1 if none yet
+     *
+     * @return
+     */
+    public long getLastTimeToSubscribe() {
+        return lastTimeToSubscribe;
+    }
+
+    /**
+     * Stop stomp service, it keeps running while another connection still uses it
      */
     private void stopStompService() {
         if (mContext == null) {
             return;
         }
         try {
+            stopService = true;
+            for (StompProvider other : all()) {
+                if (other != this && !other.stopService && other.mStompClient != null) {
+                    return;
+                }
+            }
             Intent intent = new Intent(mContext, StompService.class);
             mContext.stopService(intent);
-            stopService = true;
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -319,6 +1330,10 @@ public class StompProvider {
                         switch (lifecycleEvent.getType()) {
                             case OPENED:
                                 Log.i(TAG, "Stomp link opens");
+                                metrics.connectionsOpened.incrementAndGet();
+                                onLazyOpened();
+                                restoreSubscriptions();
+                                replayOutbox();
                                 callback.onConnectionOpened();
                                 if (connectionListener != null) {
                                     connectionListener.onConnectionOpened();
@@ -326,14 +1341,23 @@ public class StompProvider {
                                 break;
                             case ERROR:
                                 Log.e(TAG, "Stomp connection error" + lifecycleEvent.getException());
+                                clientOpen = false;
+                                metrics.connectionErrors.incrementAndGet();
                                 String error = "Stomp error " + (lifecycleEvent.getException() == null ? "" : lifecycleEvent.getException().toString());
                                 callback.onConnectionError(error);
                                 if (connectionListener != null) {
                                     connectionListener.onConnectionError(error);
                                 }
                                 break;
+                            case FAILED_SERVER_HEARTBEAT:
+                                Log.e(TAG, "Stomp server heart-beat missed");
+                                handleDeadConnection();
+                                break;
                             case CLOSED:
                                 Log.e(TAG, "Stomp connection is closed");
+                                metrics.connectionsClosed.incrementAndGet();
+                                clientOpen = false;
+                                heartbeatWatchdog.disarm();
                                 callback.onConnectionClosed();
                                 if (connectionListener != null) {
                                     connectionListener.onConnectionClosed();
@@ -354,6 +1378,48 @@ public class StompProvider {
     }
 
 
+    /**
+     * Record the resume latency and watch a lazy connection for idleness
+     */
+    private void onLazyOpened() {
+        long start = resumeStartTime;
+        if (start > 0) {
+            resumeStartTime = 0;
+            lastResumeLatency = SystemClock.elapsedRealtime() - start;
+            metrics.resumeLatency.record(lastResumeLatency);
+            Log.i(TAG, "Stomp lazy connection resumed in " + lastResumeLatency + "ms");
+        }
+        StompConfig config = mConfig;
+        if (config != null && config.isLazyConnect()) {
+            idleMonitor.arm(config.getIdleTimeout());
+        } else {
+            idleMonitor.disarm();
+        }
+    }
+
+    /**
+     * Close the client being replaced and its socket, without stopping the service. Frames and
+     * lifecycle events of the old socket are ignored from here on
+     */
+    private void closeClient() {
+        StompClient client = mStompClient;
+        ConnectionProvider provider = mConnectionProvider;
+        clientOpen = false;
+        mStompClient = null;
+        mConnectionProvider = null;
+        heartbeatWatchdog.disarm();
+        try {
+            if (client != null) {
+                client.disconnect();
+            } else if (provider != null) {
+                provider.disconnect().subscribe(() -> Log.i(TAG, "Stomp previous connection closed"),
+                        throwable -> Log.e(TAG, "Stomp previous connection close failed", throwable));
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Stomp previous connection close failed", e);
+        }
+    }
+
     /**
      * Disconnect link
      */
@@ -366,7 +1432,7 @@ public class StompProvider {
     }
 
     public boolean isConnecting() {
-        if (mStompClient == null) {
+        if (mStompClient == null || connectionDead) {
             return false;
         }
         return mStompClient.isConnected();
@@ -376,19 +1442,57 @@ public class StompProvider {
      * Destroy related resources
      */
     public void destroy() {
+        reconnectScheduler.release();
+        heartbeatWatchdog.release();
+        idleMonitor.release();
+        parked.set(false);
         disconnect();
+        synchronized (activeSubscriptions) {
+            activeSubscriptions.clear();
+            subscriptionRefs.clear();
+        }
         if (compositeDisposable != null) {
             compositeDisposable.dispose();
             compositeDisposable = null;
         }
+        if (inboundDispatcher != null) {
+            inboundDispatcher.stop();
+            inboundDispatcher = null;
+        }
+        if (outboundQueue != null) {
+            outboundQueue.stop();
+            outboundQueue = null;
+        }
+        if (receiptTracker != null) {
+            receiptTracker.release();
+            receiptTracker = null;
+        }
+        if (outbox != null) {
+            outbox.close();
+            outbox = null;
+        }
+        if (messageStore != null) {
+            messageStore.close();
+            messageStore = null;
+        }
+        dedupeCache = null;
         messageListener = null;
+        topicRouter.clear();
+        messageFilters.clear();
+        sendHeaders.clear();
         globalSendStatusListener = null;
+        flowControlListener = null;
         connectionListener = null;
         mConfig = null;
+        synchronized (connections) {
+            if (connections.get(name) == this) {
+                connections.remove(name);
+            }
+        }
     }
 
     /**
-     * Unified message listener registration entry
+     * Unified message listener registration entry, the listener is called on the inbound dispatcher thread
      *
      * @param listener
      */
@@ -401,6 +1505,33 @@ public class StompProvider {
         return this;
     }
 
+    /**
+     * Register a listener for one destination or a wildcard pattern,
+     * "*" matches one path segment and a trailing "**" matches the rest of the path.
+     * The listener is called on the inbound dispatcher thread
+     *
+     * @param pattern
+     * @param listener
+     */
+    public StompProvider addTopicListener(String pattern, OnTopicMessageListener listener) {
+        if (TextUtils.isEmpty(pattern) || listener == null) {
+            Log.d(TAG, "addTopicListener: pattern or listener is null");
+            return this;
+        }
+        topicRouter.register(pattern, listener);
+        return this;
+    }
+
+    /**
+     * Remove a destination listener
+     *
+     * @param listener
+     */
+    public StompProvider removeTopicListener(OnTopicMessageListener listener) {
+        topicRouter.unregister(listener);
+        return this;
+    }
+
     /**
      * Register global send listener
      *
@@ -415,6 +1546,16 @@ public class StompProvider {
         return this;
     }
 
+    /**
+     * Register the backpressure listener, called when sending turns paused or writable again
+     *
+     * @param listener null to remove
+     */
+    public StompProvider setOnFlowControlListener(OnFlowControlListener listener) {
+        flowControlListener = listener;
+        return this;
+    }
+
 
     /**
      * Send a message
@@ -432,55 +1573,180 @@ public class StompProvider {
      * @param header
      */
     public void sendMessage(String jsonMsg, Map<String, String> header) {
-        List<StompHeader> stompHeaders = new ArrayList<>();
-        StompHeader defaultHeader = new StompHeader(StompHeader.DESTINATION, mConfig.getSendUrl());
-        stompHeaders.add(defaultHeader);
-
-        //If there are custom headers, add them one by one.
-        if (header != null && header.size() > 0) {
-            for (Map.Entry<String, String> entry : header.entrySet()) {
-                stompHeaders.add(new StompHeader(entry.getKey(), entry.getValue()));
-            }
+        sendMessage(jsonMsg, header, -1);
+    }
+
+    /**
+     * Send a message with a custom header in a given lane
+     *
+     * @param jsonMsg
+     * @param header
+     * @param lane    {@link OutboundQueue#LANE_CONTROL}, {@link OutboundQueue#LANE_INTERACTIVE} or
+     *                {@link OutboundQueue#LANE_BULK}, -1 to pick it from the message type
+     */
+    public void sendMessage(String jsonMsg, Map<String, String> header, int lane) {
+        sendMessageTo(null, jsonMsg, header, lane);
+    }
+
+    /**
+     * Send a message to a given destination
+     *
+     * @param destination Destination of this message, null for the configured send url
+     * @param jsonMsg
+     * @param header
+     * @param lane        {@link OutboundQueue#LANE_CONTROL}, {@link OutboundQueue#LANE_INTERACTIVE} or
+     *                    {@link OutboundQueue#LANE_BULK}, -1 to pick it from the message type
+     */
+    public void sendMessageTo(String destination, String jsonMsg, Map<String, String> header, int lane) {
+        StompConfig config = mConfig;
+        if (config == null) {
+            Log.e(TAG, "Stomp is not initialized, message dropped");
+            return;
+        }
+        if (destination == null || destination.isEmpty()) {
+            destination = config.getSendUrl();
+        }
+        wake();
+        ReceiptTracker tracker = receiptTracker;
+        //Shared read-only headers, the frame only adds what changes per message
+        List<StompHeader> stompHeaders = sendHeaders.get(destination, header);
+        //Ask for a receipt, the send result then waits for the broker
+        String receiptId = null;
+        if (tracker != null) {
+            receiptId = tracker.nextReceiptId();
+            stompHeaders = SendHeaders.with(stompHeaders, new StompHeader(ReceiptTracker.HEADER_RECEIPT, receiptId));
         }
         //Construct a stomp message body
         StompMessage message = new StompMessage(StompCommand.SEND, stompHeaders, jsonMsg);
+        if (receiptId != null) {
+            tracker.track(receiptId, message);
+        }
+
+        sendMessage(message, lane < 0 ? laneOf(jsonMsg) : lane);
+    }
+
+    /**
+     * Send lane of a message by its type: -1 system control messages, 1 to 4 media messages in
+     * the bulk lane, text and everything else interactive
+     *
+     * @param jsonMsg
+     * @return
+     */
+    private static int laneOf(String jsonMsg) {
+        Integer type = UserMessageDecoder.readType(jsonMsg);
+        if (type == null) {
+            return OutboundQueue.LANE_INTERACTIVE;
+        }
+        if (type == -1) {
+            return OutboundQueue.LANE_CONTROL;
+        }
+        if (type >= 1 && type <= 4) {
+            return OutboundQueue.LANE_BULK;
+        }
+        return OutboundQueue.LANE_INTERACTIVE;
+    }
+
+    /**
+     * Send a message and callback listener, the message is queued and written by the outbound engine.
+     * With the outbox on it is journaled first, and kept there while offline
+     *
+     * @param sender
+     * @param lane
+     */
+    private void sendMessage(StompMessage sender, int lane) {
+        boolean reachable = isReachable();
+        OutboxJournal journal = outbox;
+        if (journal != null) {
+            journal.append(sender, reachable);
+        }
+        if (!reachable) {
+            Log.i(TAG, journal != null ? "Stomp is offline, message kept in the outbox" : "Stomp is offline, message failed");
+            failSend(sender);
+            return;
+        }
+        enqueue(sender, lane);
+    }
+
+    /**
+     * Whether a message sent now goes out on this connection: it is open or opening, a lazy
+     * connection is waking up, or reconnect attempts are running. The send queue holds it until
+     * the connection is open
+     *
+     * @return
+     */
+    private boolean isReachable() {
+        return isConnecting() || clientOpen || resumeStartTime > 0 || reconnectScheduler.isReconnecting();
+    }
 
-        sendMessage(message);
+    /**
+     * Put a message into the send queue
+     *
+     * @param sender
+     * @param lane
+     */
+    private void enqueue(StompMessage sender, int lane) {
+        OutboundQueue queue = outboundQueue;
+        if (queue == null || !queue.offer(sender, lane)) {
+            Log.e(TAG, "Stomp message failed to be queued");
+            failSend(sender);
+        }
     }
 
     /**
-     * Send a message and callback listener
+     * Fail a message that never reached the socket, through its receipt when it has one
      *
      * @param sender
      */
-    private void sendMessage(StompMessage sender) {
-        compositeDisposable.add(mStompClient.send(sender)
-                .compose(applySchedulers())
-                .subscribe(() -> {
-                    Log.d(TAG, "Stomp message sent successfully" + sender.getPayload());
-                    handleSendResultMessage(StompConfig.STOMP_SEND_SUCCESS, sender);
-                }, throwable -> {
-                    Log.e(TAG, "Stomp message failed to be sent", throwable);
-                    handleSendResultMessage(StompConfig.STOMP_SEND_FAIL, sender);
-                }));
+    private void failSend(StompMessage sender) {
+        String receiptId = sender.findHeader(ReceiptTracker.HEADER_RECEIPT);
+        ReceiptTracker tracker = receiptTracker;
+        if (receiptId != null && tracker != null) {
+            tracker.fail(receiptId);
+        } else {
+            handleSendResultMessage(StompConfig.STOMP_SEND_FAIL, sender, -1);
+        }
     }
 
 
     /**
      * Handling sent message callback results
      *
-     * @param status Send message status
-     * @param sender Sent message
+     * @param status  Send message status
+     * @param sender  Sent message
+     * @param latency Send latency in milliseconds, -1 when unknown
      */
-    private void handleSendResultMessage(int status, StompMessage sender) {
+    private void handleSendResultMessage(int status, StompMessage sender, long latency) {
+        //The outbox keeps failed messages for the next replay and drops confirmed ones
+        OutboxJournal journal = outbox;
+        if (journal != null) {
+            if (status == StompConfig.STOMP_SEND_SUCCESS) {
+                OutboxJournal.Entry entry = journal.ack(sender);
+                if (entry != null && entry.getStatus() == UserMessageEntry.STATUS_RESENT) {
+                    status = StompConfig.STOMP_SEND_RESENT;
+                }
+            } else {
+                journal.markFailed(sender);
+            }
+        }
+        metrics.recordSend(status, latency);
+        //Failed messages are not stored, with the outbox on they come back as resent
+        MessageStore store = messageStore;
+        if (store != null && status != StompConfig.STOMP_SEND_FAIL) {
+            //Stored as the sendState of the message, which uses the UserMessageEntry codes
+            store.append(MessageStore.DIRECTION_OUT, status == StompConfig.STOMP_SEND_RESENT
+                    ? UserMessageEntry.STATUS_RESENT : UserMessageEntry.STATUS_SENT, sender.getPayload());
+        }
         //Global peer-to-peer send listener
-        if (null != globalSendStatusListener) {
-            globalSendStatusListener.onSendMessage(status, sender.getPayload(), status == StompConfig.STOMP_SEND_SUCCESS ? "发送成功" : "发送失败");
+        OnMessageSendListener listener = globalSendStatusListener;
+        if (null != listener) {
+            String tips = status == StompConfig.STOMP_SEND_SUCCESS ? "发送成功" : status == StompConfig.STOMP_SEND_RESENT ? "重发成功" : "发送失败";
+            listener.onSendMessage(status, sender.getPayload(), tips, latency);
         }
     }
 
     /**
-     * Get the content of the message from stompMessage
+     * Get the content of the message from stompMessage, a numeric createTime is formatted as
+     * {@link UserMessageDecoder#TIME_PATTERN}
      *
      * @param message
      * @return
@@ -494,25 +1760,23 @@ public class StompProvider {
         if (TextUtils.isEmpty(content)) {
             return null;
         }
-        UserMessageEntry msg = new Gson().fromJson(content, UserMessageEntry.class);
-        String createTime = msg.getCreateTime();
-        if (createTime != null) {
-            //Determine if it is a pure number
-            boolean isNumber = createTime.matches("^\\d+$");
-            if (isNumber) {
-                SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-                msg.setCreateTime(sdf.format(new Date(Long.parseLong(createTime))));
-            }
-        }
-
-        return msg;
+        return UserMessageDecoder.decode(content);
     }
 
-    private CompletableTransformer applySchedulers() {
-        return upstream -> upstream
-                .unsubscribeOn(Schedulers.newThread())
-                .subscribeOn(Schedulers.io())
-                .observeOn(AndroidSchedulers.mainThread());
+    /**
+     * Get the contents of several messages, empty bodies come back as null
+     *
+     * @param messages
+     * @return One entry per message, in the same order
+     */
+    public List<UserMessageEntry> parseStompMessages(List<StompMessage> messages) {
+        List<String> contents = new ArrayList<>(messages.size());
+        for (int i = 0, n = messages.size(); i < n; i++) {
+            StompMessage message = messages.get(i);
+            String content = message == null ? null : message.getPayload();
+            contents.add(TextUtils.isEmpty(content) ? "null" : content);
+        }
+        return UserMessageDecoder.decodeAll(contents);
     }
 
 }
@@ -13,12 +13,8 @@ import android.os.Binder;
 import android.os.Build;
 import android.os.Handler;
 import android.os.IBinder;
-import android.os.Message;
 import android.util.Log;
 
-import java.util.Timer;
-import java.util.TimerTask;
-
 import androidx.annotation.Nullable;
 
 
@@ -36,24 +32,11 @@ public class StompService extends Service {
 
     private final IBinder mBinder = new LocalBinder();
 
-    /**
-     * socket 最大重连尝试时间 15分钟
-     */
-    private static final int MAX_RE_CONN_TIME = 1000 * 60 * 15;
-    /**
-     * socket重连执行间隔 单位秒
-     */
-    private static final int CONN_STEP = 1000 * 10;
-    /**
-     * 当前已经重连尝试的时间 单位毫秒
-     */
-    private int mConnTime = 0;
-    /**
-     * 执行socket重连的定时器
-     */
-    private Timer timer;
     private static final String CHANNEL_ID = "command_channel";
 
+    /*Intent extra, name of the connection to watch*/
+    public static final String EXTRA_CONNECTION = "connection";
+
     private static StompService mInstance;
 
     public static StompService GET() {
@@ -95,7 +78,7 @@ public class StompService extends Service {
             //Android7.1 google修复了此漏洞，暂无解决方法（现状：Android7.1以上app启动后通知栏会出现一条"正在运行"的通知消息）
             startForeground(NOTIFICATION_ID, new Notification());
         }
-        registerStompConnectionListener();
+        registerStompConnectionListener(_intent == null ? null : _intent.getStringExtra(EXTRA_CONNECTION));
         return Service.START_STICKY;
     }
 
@@ -104,11 +87,21 @@ public class StompService extends Service {
      * 添加stomp链接监听
      */
     public void registerStompConnectionListener() {
-        StompProvider.get().connect(new StompProvider.OnStompConnectionListener() {
+        registerStompConnectionListener(StompProvider.DEFAULT_CONNECTION);
+    }
+
+    /**
+     * 添加指定连接的stomp链接监听，每个连接各自重连
+     *
+     * @param name 连接名，为空时是默认连接
+     */
+    public void registerStompConnectionListener(String name) {
+        final StompProvider provider = StompProvider.get(name);
+        provider.connect(new StompProvider.OnStompConnectionListener() {
             @Override
             public void onConnectionOpened() {
-                //取消定时器
-                cancelTimer();
+                //停止重连，记录重连耗时
+                provider.getReconnectScheduler().onConnected();
             }
 
             @Override
@@ -118,8 +111,8 @@ public class StompService extends Service {
 
             @Override
             public void onConnectionClosed() {
-                Log.e(TAG, "Stomp 关闭");
-                startConnTimer();
+                Log.e(TAG, "Stomp 关闭 " + provider.getName());
+                startReconnect(provider);
             }
         });
     }
@@ -191,73 +184,40 @@ public class StompService extends Service {
     }
 
     /**
-     * 开启重连定时任务
+     * 开启重连，按退避策略的间隔重试直到连接成功，正在重连时不重复开启
      */
-    public void startConnTimer() {
-        //如果已经达到了重连尝试最大时间或者已经连接上，则取消定时器
-        if (mConnTime >= MAX_RE_CONN_TIME || StompProvider.get().isConnecting()) {
-            cancelTimer();
-            return;
-        }
-        //如果定时器不为null，则证明正在执行定时任务
-        if (timer != null) {
-            return;
-        }
-        //初始化一个定时器
-        timer = new Timer();
-        //开启定时任务，每间隔10s执行一次
-        timer.schedule(new TimerTask() {
-            @Override
-            public void run() {
-                mHandler.sendEmptyMessage(0);
-                //记录已经连接的时间
-                mConnTime += CONN_STEP;
-            }
-        }, 0, CONN_STEP);
+    public void startReconnect() {
+        startReconnect(StompProvider.get());
     }
 
     /**
-     * 取消重连定时任务
+     * 开启指定连接的重连
+     *
+     * @param provider
      */
-    private void cancelTimer() {
-        if (timer != null) {
-            timer.cancel();
-            timer = null;
+    public void startReconnect(StompProvider provider) {
+        ReconnectScheduler scheduler = provider.getReconnectScheduler();
+        //懒连接空闲关闭，等有订阅或发送时再连接
+        if (provider.isParked()) {
+            return;
         }
-        mConnTime = 0;
-    }
-
-    /**
-     * 处理重连的handler
-     */
-    private Handler mHandler = new Handler() {
-        @Override
-        public void handleMessage(Message msg) {
-            super.handleMessage(msg);
-            reConnSocket();
+        //已经连接上，则不需要重连
+        if (provider.isConnecting()) {
+            scheduler.onConnected();
+            return;
         }
-    };
-
-    /**
-     * socket重连
-     */
-    private void reConnSocket() {
-        try {
-            if (StompProvider.get().isConnecting()) {
-                cancelTimer();
-                return;
-            }
-            StompProvider.get().stopService = false;
-            StompProvider.get().reConnection();
-        } catch (Exception e) {
-            e.printStackTrace();
+        if (!scheduler.isReconnecting()) {
+            provider.getMetrics().reconnectsStarted.incrementAndGet();
         }
+        scheduler.start();
     }
 
     @Override
     public void onDestroy() {
         super.onDestroy();
-        StompProvider.get().stopService = true;
+        for (StompProvider provider : StompProvider.all()) {
+            provider.stopService = true;
+        }
         // 停止前台服务--参数：表示是否移除之前的通知
         stopForeground(true);
     }
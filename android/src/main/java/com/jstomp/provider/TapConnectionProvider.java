@@ -0,0 +1,59 @@
+package com.jstomp.provider;
+
+import io.reactivex.Completable;
+import io.reactivex.Observable;
+import io.reactivex.functions.Consumer;
+import ua.naiksoftware.stomp.dto.LifecycleEvent;
+import ua.naiksoftware.stomp.provider.ConnectionProvider;
+
+/**
+ * Connection provider decorator that lets the provider see every raw inbound frame,
+ * including RECEIPT, ERROR and heart-beats, on the same stream the stomp client reads.
+ * Subscribing to the wrapped provider a second time would open a second socket.
+ **/
+class TapConnectionProvider implements ConnectionProvider {
+
+    /**
+     * Raw frame callback, called on the socket thread, must be cheap
+     */
+    interface OnRawFrameListener {
+        /**
+         * @param provider The provider that read the frame, a replaced one may still deliver a few
+         * @param frame
+         */
+        void onRawFrame(TapConnectionProvider provider, String frame);
+    }
+
+    private final ConnectionProvider delegate;
+    private final Consumer<String> tap;
+
+    TapConnectionProvider(ConnectionProvider delegate, final OnRawFrameListener listener) {
+        this.delegate = delegate;
+        this.tap = new Consumer<String>() {
+            @Override
+            public void accept(String frame) {
+                listener.onRawFrame(TapConnectionProvider.this, frame);
+            }
+        };
+    }
+
+    @Override
+    public Observable<String> messages() {
+        return delegate.messages().doOnNext(tap);
+    }
+
+    @Override
+    public Completable send(String stompMessage) {
+        return delegate.send(stompMessage);
+    }
+
+    @Override
+    public Observable<LifecycleEvent> lifecycle() {
+        return delegate.lifecycle();
+    }
+
+    @Override
+    public Completable disconnect() {
+        return delegate.disconnect();
+    }
+}
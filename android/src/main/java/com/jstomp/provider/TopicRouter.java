@@ -0,0 +1,176 @@
+package com.jstomp.provider;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Routing table from destinations to listeners.
+ * <p>
+ * Patterns are split on '/' into a trie. A "*" segment matches exactly one segment and a
+ * trailing "**" matches any number of remaining segments, e.g. "/topic/group/*" or "/user/**".
+ * Resolving a destination walks the trie once, O(path depth), and the result is cached per
+ * destination until the table changes, so steady-state dispatch is a single map lookup.
+ *
+ * @param <T> listener type
+ **/
+public class TopicRouter<T> {
+    private static final String SINGLE = "*";
+    private static final String MULTI = "**";
+
+    private static final class Node<T> {
+        final Map<String, Node<T>> children = new HashMap<>();
+        Node<T> single;
+        final List<T> listeners = new ArrayList<>();
+        /*Listeners registered with a trailing "**" at this node*/
+        final List<T> tailListeners = new ArrayList<>();
+    }
+
+    /**
+     * A matched listener and the pattern it was registered with
+     */
+    public static final class Route<T> {
+        public final String pattern;
+        public final T listener;
+
+        Route(String pattern, T listener) {
+            this.pattern = pattern;
+            this.listener = listener;
+        }
+    }
+
+    private final Node<T> root = new Node<>();
+    /*Registered patterns per listener, needed to report the pattern that matched*/
+    private final Map<T, String> patterns = new HashMap<>();
+    private final Map<String, List<Route<T>>> cache = new HashMap<>();
+
+    /**
+     * Register a listener for a destination or pattern, a listener instance belongs to one pattern
+     *
+     * @param pattern
+     * @param listener
+     */
+    public synchronized void register(String pattern, T listener) {
+        if (pattern == null || listener == null) {
+            return;
+        }
+        String[] segments = split(pattern);
+        Node<T> node = root;
+        for (int i = 0; i < segments.length; i++) {
+            String segment = segments[i];
+            if (MULTI.equals(segment) && i == segments.length - 1) {
+                node.tailListeners.add(listener);
+                patterns.put(listener, pattern);
+                cache.clear();
+                return;
+            }
+            if (SINGLE.equals(segment)) {
+                if (node.single == null) {
+                    node.single = new Node<>();
+                }
+                node = node.single;
+            } else {
+                Node<T> child = node.children.get(segment);
+                if (child == null) {
+                    child = new Node<>();
+                    node.children.put(segment, child);
+                }
+                node = child;
+            }
+        }
+        node.listeners.add(listener);
+        patterns.put(listener, pattern);
+        cache.clear();
+    }
+
+    /**
+     * Remove a listener
+     *
+     * @param listener
+     */
+    public synchronized void unregister(T listener) {
+        String pattern = patterns.remove(listener);
+        if (pattern == null) {
+            return;
+        }
+        String[] segments = split(pattern);
+        Node<T> node = root;
+        for (int i = 0; i < segments.length && node != null; i++) {
+            String segment = segments[i];
+            if (MULTI.equals(segment) && i == segments.length - 1) {
+                node.tailListeners.remove(listener);
+                cache.clear();
+                return;
+            }
+            node = SINGLE.equals(segment) ? node.single : node.children.get(segment);
+        }
+        if (node != null) {
+            node.listeners.remove(listener);
+        }
+        cache.clear();
+    }
+
+    /**
+     * Remove all listeners
+     */
+    public synchronized void clear() {
+        root.children.clear();
+        root.single = null;
+        root.listeners.clear();
+        root.tailListeners.clear();
+        patterns.clear();
+        cache.clear();
+    }
+
+    public synchronized boolean isEmpty() {
+        return patterns.isEmpty();
+    }
+
+    /**
+     * Listeners matching a destination
+     *
+     * @param destination
+     * @return Never null, must not be modified
+     */
+    public synchronized List<Route<T>> match(String destination) {
+        if (destination == null || patterns.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<Route<T>> routes = cache.get(destination);
+        if (routes == null) {
+            List<T> matched = new ArrayList<>();
+            collect(root, split(destination), 0, matched);
+            routes = new ArrayList<>(matched.size());
+            for (T listener : matched) {
+                routes.add(new Route<>(patterns.get(listener), listener));
+            }
+            cache.put(destination, routes);
+        }
+        return routes;
+    }
+
+    private void collect(Node<T> node, String[] segments, int index, List<T> out) {
+        out.addAll(node.tailListeners);
+        if (index == segments.length) {
+            out.addAll(node.listeners);
+            return;
+        }
+        Node<T> child = node.children.get(segments[index]);
+        if (child != null) {
+            collect(child, segments, index + 1, out);
+        }
+        if (node.single != null) {
+            collect(node.single, segments, index + 1, out);
+        }
+    }
+
+    private static String[] split(String path) {
+        int start = path.startsWith("/") ? 1 : 0;
+        if (start >= path.length()) {
+            return new String[0];
+        }
+        return path.substring(start).split("/");
+    }
+}
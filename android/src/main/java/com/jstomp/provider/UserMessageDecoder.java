@@ -0,0 +1,447 @@
+package com.jstomp.provider;
+
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Decoder of {@link UserMessageEntry} message bodies.
+ * <p>
+ * Reads the json with a hand written streaming adapter instead of reflection, shared by every
+ * call. A numeric "createTime" (epoch milliseconds) is formatted as "yyyy-MM-dd HH:mm:ss" with a
+ * per-thread formatter. {@link #decodeAll} reads a whole batch through one reader, so the reader
+ * and its buffer are created once per batch instead of once per message.
+ **/
+public final class UserMessageDecoder {
+    /*Format of a numeric createTime after decoding*/
+    public static final String TIME_PATTERN = "yyyy-MM-dd HH:mm:ss";
+    /*Longest digit run that is surely a valid long*/
+    private static final int MAX_LONG_DIGITS = 18;
+
+    private static final ThreadLocal<SimpleDateFormat> TIME_FORMAT = new ThreadLocal<SimpleDateFormat>() {
+        @Override
+        protected SimpleDateFormat initialValue() {
+            return new SimpleDateFormat(TIME_PATTERN, Locale.getDefault());
+        }
+    };
+
+    private static final UserMessageAdapter ADAPTER = new UserMessageAdapter();
+
+    private UserMessageDecoder() {
+    }
+
+    /**
+     * The shared adapter, e.g. to register with a Gson instance
+     *
+     * @return
+     */
+    public static TypeAdapter<UserMessageEntry> adapter() {
+        return ADAPTER;
+    }
+
+    /**
+     * Decode one message body
+     *
+     * @param json
+     * @return null for an empty body or json null
+     * @throws JsonParseException if the body is not a valid message
+     */
+    public static UserMessageEntry decode(String json) {
+        if (json == null || json.isEmpty()) {
+            return null;
+        }
+        try {
+            JsonReader reader = new JsonReader(new StringReader(json));
+            //As lenient as Gson#fromJson
+            reader.setLenient(true);
+            UserMessageEntry msg = ADAPTER.read(reader);
+            if (reader.peek() != JsonToken.END_DOCUMENT) {
+                throw new JsonSyntaxException("Trailing data in message");
+            }
+            return msg;
+        } catch (IllegalStateException | NumberFormatException e) {
+            throw new JsonSyntaxException(e);
+        } catch (IOException e) {
+            throw new JsonSyntaxException(e);
+        }
+    }
+
+    /**
+     * Decode a batch of message bodies, the result has one entry per body in the same order.
+     * Bodies are read as the elements of one json array through a single reader; when any body
+     * is malformed the batch falls back to decoding one by one and the bad ones come back null
+     *
+     * @param jsons
+     * @return
+     */
+    public static List<UserMessageEntry> decodeAll(List<String> jsons) {
+        List<UserMessageEntry> out = new ArrayList<>(jsons.size());
+        try {
+            JsonReader reader = new JsonReader(new ArrayReader(jsons));
+            reader.setLenient(true);
+            reader.beginArray();
+            for (int i = 0, n = jsons.size(); i < n; i++) {
+                out.add(ADAPTER.read(reader));
+            }
+            reader.endArray();
+            return out;
+        } catch (IOException | RuntimeException e) {
+            out.clear();
+        }
+        for (int i = 0, n = jsons.size(); i < n; i++) {
+            try {
+                out.add(decode(jsons.get(i)));
+            } catch (JsonParseException e) {
+                out.add(null);
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Read only the top level "id" of a message body, reading stops as soon as it is found
+     *
+     * @param json
+     * @return null when the body has no id or is not a json object
+     */
+    public static String readId(String json) {
+        return readField(json, "id");
+    }
+
+    /**
+     * Read only the top level "type" of a message body, reading stops as soon as it is found
+     *
+     * @param json
+     * @return null when the body has no numeric type or is not a json object
+     */
+    public static Integer readType(String json) {
+        String type = readField(json, "type");
+        if (type == null) {
+            return null;
+        }
+        try {
+            return Integer.valueOf(type);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Read several top level string or number fields of a json object in one pass, reading stops
+     * as soon as the last one is found
+     *
+     * @param json
+     * @param fields Field names, null entries are skipped
+     * @param values Receives the value of each field at its index, null when it is missing or has
+     *               another kind of value
+     * @return false when the body is not a json object
+     */
+    public static boolean readFields(String json, String[] fields, String[] values) {
+        int wanted = 0;
+        for (int i = 0; i < fields.length; i++) {
+            values[i] = null;
+            if (fields[i] != null) {
+                wanted++;
+            }
+        }
+        if (json == null || json.isEmpty()) {
+            return false;
+        }
+        try {
+            JsonReader reader = new JsonReader(new StringReader(json));
+            reader.setLenient(true);
+            if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+                return false;
+            }
+            reader.beginObject();
+            while (wanted > 0 && reader.hasNext()) {
+                String name = reader.nextName();
+                int index = -1;
+                for (int i = 0; i < fields.length; i++) {
+                    if (name.equals(fields[i]) && values[i] == null) {
+                        index = i;
+                        break;
+                    }
+                }
+                JsonToken token = reader.peek();
+                if (index >= 0 && (token == JsonToken.STRING || token == JsonToken.NUMBER)) {
+                    values[index] = reader.nextString();
+                    wanted--;
+                } else {
+                    reader.skipValue();
+                }
+            }
+            return true;
+        } catch (IOException | RuntimeException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Read one top level string or number field of a json object
+     *
+     * @param json
+     * @param field
+     * @return null when it is missing or has another kind of value
+     */
+    private static String readField(String json, String field) {
+        if (json == null || json.isEmpty()) {
+            return null;
+        }
+        try {
+            JsonReader reader = new JsonReader(new StringReader(json));
+            reader.setLenient(true);
+            if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+                return null;
+            }
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (field.equals(reader.nextName())) {
+                    JsonToken token = reader.peek();
+                    if (token == JsonToken.STRING || token == JsonToken.NUMBER) {
+                        return reader.nextString();
+                    }
+                    return null;
+                }
+                reader.skipValue();
+            }
+            return null;
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Convert a message to the map delivered to flutter
+     *
+     * @param userMsg
+     * @return
+     */
+    public static Map<String, Object> toMap(UserMessageEntry userMsg) {
+        Map<String, Object> map = new HashMap<>(32);
+        map.put("id", userMsg.getId());
+        map.put("content", userMsg.getContent());
+        map.put("createId", userMsg.getCreateId());
+        map.put("microGroupName", userMsg.getMicroGroupName());
+        map.put("createName", userMsg.getCreateName());
+        map.put("createTime", userMsg.getCreateTime());
+        map.put("headUrl", userMsg.getHeadUrl());
+        map.put("microGroupId", userMsg.getMicroGroupId());
+        map.put("path", userMsg.getPath());
+        map.put("localPath", userMsg.getLocalPath());
+        map.put("obj", userMsg.getObj());
+        map.put("type", userMsg.getType());
+
+        map.put("sendState", userMsg.getStatus());//send status
+        map.put("direct", 1);//accept
+        map.put("status", 1);//State, success
+        map.put("isCrowd", 0);
+        return map;
+    }
+
+    /**
+     * Whether the string is a non-empty run of ascii digits
+     *
+     * @param s
+     * @return
+     */
+    static boolean isDigits(String s) {
+        int n = s.length();
+        if (n == 0) {
+            return false;
+        }
+        for (int i = 0; i < n; i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Format an epoch millisecond createTime, other values are returned unchanged
+     *
+     * @param createTime
+     * @return
+     */
+    static String formatCreateTime(String createTime) {
+        if (createTime == null || createTime.length() > MAX_LONG_DIGITS || !isDigits(createTime)) {
+            return createTime;
+        }
+        return TIME_FORMAT.get().format(new Date(Long.parseLong(createTime)));
+    }
+
+    /**
+     * Streaming adapter, field names match the json written by the server
+     */
+    private static final class UserMessageAdapter extends TypeAdapter<UserMessageEntry> {
+
+        @Override
+        public UserMessageEntry read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            UserMessageEntry msg = new UserMessageEntry();
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                if (in.peek() == JsonToken.NULL) {
+                    in.nextNull();
+                    continue;
+                }
+                switch (name) {
+                    case "id":
+                        msg.setId(readString(in));
+                        break;
+                    case "content":
+                        msg.setContent(readString(in));
+                        break;
+                    case "createId":
+                        msg.setCreateId(readString(in));
+                        break;
+                    case "createName":
+                        msg.setCreateName(readString(in));
+                        break;
+                    case "createTime":
+                        msg.setCreateTime(formatCreateTime(readString(in)));
+                        break;
+                    case "headUrl":
+                        msg.setHeadUrl(readString(in));
+                        break;
+                    case "microGroupId":
+                        msg.setMicroGroupId(readString(in));
+                        break;
+                    case "microGroupName":
+                        msg.setMicroGroupName(readString(in));
+                        break;
+                    case "path":
+                        msg.setPath(readString(in));
+                        break;
+                    case "localPath":
+                        msg.setLocalPath(readString(in));
+                        break;
+                    case "obj":
+                        msg.setObj(readString(in));
+                        break;
+                    case "type":
+                        msg.setType(in.nextInt());
+                        break;
+                    case "status":
+                        msg.setStatus(in.nextInt());
+                        break;
+                    default:
+                        in.skipValue();
+                        break;
+                }
+            }
+            in.endObject();
+            return msg;
+        }
+
+        /**
+         * String value as Gson reads it, numbers and booleans become their text
+         */
+        private static String readString(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.BOOLEAN) {
+                return Boolean.toString(in.nextBoolean());
+            }
+            return in.nextString();
+        }
+
+        @Override
+        public void write(JsonWriter out, UserMessageEntry msg) throws IOException {
+            if (msg == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            out.name("id").value(msg.getId());
+            out.name("content").value(msg.getContent());
+            out.name("createId").value(msg.getCreateId());
+            out.name("createName").value(msg.getCreateName());
+            out.name("createTime").value(msg.getCreateTime());
+            out.name("headUrl").value(msg.getHeadUrl());
+            out.name("microGroupId").value(msg.getMicroGroupId());
+            out.name("microGroupName").value(msg.getMicroGroupName());
+            out.name("path").value(msg.getPath());
+            out.name("localPath").value(msg.getLocalPath());
+            out.name("obj").value(msg.getObj());
+            out.name("type").value(msg.getType());
+            out.name("status").value(msg.getStatus());
+            out.endObject();
+        }
+    }
+
+    /**
+     * Presents a list of json documents as one json array without copying them together
+     */
+    private static final class ArrayReader extends Reader {
+        private final List<String> parts;
+        /*Index of the current part, -1 before the opening bracket*/
+        private int part = -1;
+        private int offset = 0;
+        private boolean separator = false;
+
+        ArrayReader(List<String> parts) {
+            this.parts = parts;
+        }
+
+        @Override
+        public int read(char[] buf, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            int n = 0;
+            while (n < len) {
+                if (part == -1) {
+                    buf[off + n++] = '[';
+                    part = 0;
+                    continue;
+                }
+                if (part >= parts.size()) {
+                    if (part == parts.size()) {
+                        buf[off + n++] = ']';
+                        part++;
+                    }
+                    break;
+                }
+                if (separator) {
+                    buf[off + n++] = ',';
+                    separator = false;
+                    continue;
+                }
+                String s = parts.get(part);
+                int count = Math.min(len - n, s.length() - offset);
+                s.getChars(offset, offset + count, buf, off + n);
+                n += count;
+                offset += count;
+                if (offset == s.length()) {
+                    part++;
+                    offset = 0;
+                    separator = part < parts.size();
+                }
+            }
+            return n == 0 ? -1 : n;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -11,6 +11,13 @@ import java.io.Serializable;
  * @describe 用户消息类
  **/
 public class UserMessageEntry implements Serializable {
+    /*消息状态：发送成功*/
+    public static final int STATUS_SENT = 0;
+    /*消息状态：发送失败*/
+    public static final int STATUS_FAILED = 1;
+    /*消息状态：重发成功*/
+    public static final int STATUS_RESENT = -1;
+
     private String id;
     /*内容*/
     private String content;
@@ -0,0 +1,104 @@
+import 'dart:convert';
+import 'dart:typed_data';
+
+import 'package:flutter/services.dart';
+import 'package:flutter_test/flutter_test.dart';
+
+///
+/// UI isolate time per 1000 received messages, json strings against structured maps.
+///
+/// Native code hands every message to the method channel, which delivers it to the
+/// UI isolate as a standard codec message. In the default mode the isolate decodes a
+/// string and then parses the json; in structured mode the json was parsed natively on
+/// the inbound worker thread and the isolate only decodes the map.
+///
+/// Run: flutter test benchmark/structured_delivery_benchmark.dart
+///
+const int _MESSAGES = 1000;
+const int _WARMUP_ROUNDS = 20;
+const int _ROUNDS = 50;
+
+const MethodCodec _codec = StandardMethodCodec();
+
+void main() {
+  for (int contentSize in [32, 1024]) {
+    test('json vs structured, content $contentSize', () {
+      List<ByteData> json = [];
+      List<ByteData> structured = [];
+      for (int i = 0; i < _MESSAGES; i++) {
+        String body = _message(contentSize, i);
+        json.add(_codec.encodeMethodCall(MethodCall("onMessage", body)));
+        structured.add(
+            _codec.encodeMethodCall(MethodCall("onMessage", _toMap(body))));
+      }
+
+      int jsonMicros = _measure(() {
+        for (ByteData data in json) {
+          jsonDecode(_codec.decodeMethodCall(data).arguments);
+        }
+      });
+      int structuredMicros = _measure(() {
+        for (ByteData data in structured) {
+          _codec.decodeMethodCall(data).arguments;
+        }
+      });
+
+      print("content $contentSize: json $jsonMicros us, "
+          "structured $structuredMicros us per $_MESSAGES messages");
+    });
+  }
+}
+
+///
+/// Median time of one round in microseconds
+///
+int _measure(void Function() round) {
+  for (int i = 0; i < _WARMUP_ROUNDS; i++) {
+    round();
+  }
+  List<int> times = [];
+  Stopwatch stopwatch = Stopwatch();
+  for (int i = 0; i < _ROUNDS; i++) {
+    stopwatch
+      ..reset()
+      ..start();
+    round();
+    stopwatch.stop();
+    times.add(stopwatch.elapsedMicroseconds);
+  }
+  times.sort();
+  return times[times.length ~/ 2];
+}
+
+///
+/// A message body in the shape the server sends
+///
+String _message(int contentSize, int seq) {
+  String content = ("$seq-" * contentSize).substring(0, contentSize);
+  return jsonEncode({
+    "content": content,
+    "createId": "161691756546",
+    "createName": "陈晨",
+    "createTime": "2019-06-24 17:03:51",
+    "headUrl": "https://example.com/head/161691756546.png",
+    "id": "1046324312976343042",
+    "microGroupId": "1143049991384731649",
+    "microGroupName": "Flutter exclusive group",
+    "path": "",
+    "obj": "",
+    "type": 0,
+  });
+}
+
+///
+/// The map the native side delivers in structured mode, see UserMessageDecoder.toMap
+///
+Map<String, dynamic> _toMap(String body) {
+  Map<String, dynamic> map = Map.from(jsonDecode(body));
+  map["localPath"] = null;
+  map["sendState"] = 0;
+  map["direct"] = 1;
+  map["status"] = 1;
+  map["isCrowd"] = 0;
+  return map;
+}
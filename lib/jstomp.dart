@@ -1,28 +1,82 @@
 import 'dart:async';
+import 'dart:convert';
+import 'dart:typed_data';
 import 'package:flutter/material.dart';
 import 'package:flutter/services.dart';
 
 ///Define message callback functions and formulate parameter types
 typedef OnMessageCallback = Function(dynamic jsonMsg);
 
+///Define destination message callback functions, [topic] is the destination the message arrived on
+typedef OnTopicMessageCallback = Function(String topic, dynamic jsonMsg);
+
+///Define batch message callback functions, one list of messages per native flush window
+typedef OnBatchMessageCallback = Function(List<dynamic> jsonMsgs);
+
+///Define binary message callback functions, [payload] is the raw utf-8 message body
+typedef OnBinaryMessageCallback = Function(String topic, Uint8List payload);
+
 ///Define a message dispatch callback function
 typedef OnSendMessageCallback = Function(SendStatus status, dynamic jsonMsg);
 
+///Define a message dispatch callback function with the send latency in milliseconds, -1 when unknown
+typedef OnSendResultCallback = Function(
+    SendStatus status, dynamic jsonMsg, int latency);
+
+///Define a periodic metrics callback function, [stats] has the layout of [JStomp.getStats]
+typedef OnStatsCallback = Function(Map<String, dynamic> stats);
+
+///Define a backpressure callback function, [writable] false asks to pause sending,
+///[queuedChars] is the size of the queued message bodies in characters
+typedef OnFlowControlCallback = Function(bool writable, int queuedChars);
+
 class JStomp {
-  JStomp._();
+  JStomp._() : name = DEFAULT_CONNECTION;
+
+  ///Name of the connection of [JStomp.instance]
+  static const String DEFAULT_CONNECTION = "default";
 
   static JStomp _instance;
 
+  ///Named connections, by name
+  static final Map<String, JStomp> _connections = {};
+
   factory JStomp() => _getInstance();
 
   static JStomp get instance => _getInstance();
 
+  ///
+  /// Return the connection with this [name], created on first use
+  /// Every connection has its own url, config, subscriptions, send queue and
+  /// reconnect policy and runs concurrently with the others; [JStomp.instance]
+  /// is the connection named [DEFAULT_CONNECTION]
+  ///
+  factory JStomp.named(String name) {
+    assert(name != null && name.isNotEmpty);
+    if (name == DEFAULT_CONNECTION) {
+      return _getInstance();
+    }
+    return _connections.putIfAbsent(name, () => JStomp._init(name));
+  }
+
+  ///Name of this connection
+  final String name;
+
   ///Channel instance
   MethodChannel _channel;
 
+  ///Channel native calls of this connection arrive on
+  MethodChannel _callbackChannel;
+
+  ///Binary message channel instance
+  BasicMessageChannel<ByteData> _binaryChannel;
+
   ///Accept message stream
   StreamController<_OnMessageData> _messageController;
 
+  ///Destination message callbacks, by registered pattern
+  Map<String, List<OnTopicMessageCallback>> _topicCallbacks = {};
+
   ///Connect back to stream
   StreamController<_OnConnectionData> _connectionController;
 
@@ -30,9 +84,26 @@ class JStomp {
   // ignore: close_sinks
   StreamController<_OnSendMessageData> _sendController;
 
-  JStomp._init() {
+  ///Periodic metrics callback
+  OnStatsCallback _statsCallback;
+
+  ///Backpressure callback
+  OnFlowControlCallback _flowControlCallback;
+
+  ///Whether sending may go on, see [onFlowControlCallback]
+  bool _writable = true;
+
+  JStomp._init([this.name = DEFAULT_CONNECTION]) {
     ///initialization
     _channel = const MethodChannel('jstomp');
+    if (name == DEFAULT_CONNECTION) {
+      _callbackChannel = _channel;
+      _binaryChannel = const BasicMessageChannel('jstomp/binary', BinaryCodec());
+    } else {
+      _callbackChannel = MethodChannel('jstomp/connection/$name');
+      _binaryChannel =
+          BasicMessageChannel('jstomp/connection/$name/binary', BinaryCodec());
+    }
     _connectionController = new StreamController.broadcast();
     _messageController = new StreamController.broadcast();
     _sendController = new StreamController.broadcast();
@@ -50,16 +121,178 @@ class JStomp {
 
   ///
   /// Stomp initialization
+  /// [inboundCapacity] capacity of the native inbound dispatch queue
+  /// [overflowStrategy] what to do with new messages when that queue is full, DROP_OLDEST
+  /// by default; BLOCK together with [serverHeartbeat] is refused and init returns false
+  /// [structured] deliver received messages as maps decoded natively on the inbound
+  /// worker thread instead of json strings, so the UI isolate does not parse json; a
+  /// body that is not a user message still arrives as its json string
+  /// [outboundCapacity] capacity of the native send queue, sends fail when it is full
+  /// [maxInFlight] maximum number of messages written to the socket but not yet completed
+  /// [coalesceFrames] write consecutive queued messages as one websocket message,
+  /// only enable it when the broker accepts several stomp frames per websocket message
+  /// [receipt] ask the broker for a receipt of every message, the send callback then
+  /// fires when the broker confirms or rejects the message, with the round-trip time
+  /// [receiptTimeout] time in milliseconds to wait for a receipt before the send fails
+  /// [outbox] keep unconfirmed messages in an on-disk outbox; messages sent while
+  /// disconnected or failed are resent in order when the connection opens and are
+  /// then reported as [SendStatus.RESENT]
+  /// [compression] deflate outgoing messages of at least [compressionThreshold] characters
+  /// and mark them with a "content-encoding: deflate" header, the broker side has to
+  /// understand it; incoming compressed messages are always inflated natively
+  /// [compressionThreshold] size in characters from which messages are compressed
+  /// [chunkSize] send messages longer than this many characters as fragments with
+  /// chunk-id, chunk-index and chunk-total headers, interleaved with the other messages so
+  /// small ones do not wait behind a large one; received fragments are always joined natively
+  /// [reassemblyTimeout] time in milliseconds to wait for the missing fragments of a
+  /// received message before it is dropped
+  /// [messageStore] keep received and confirmed sent messages in a native store, read
+  /// back page by page per microGroupId with [getMessages]
+  /// [messageStoreSize] size limit of that store in bytes, the oldest messages are deleted
+  /// [dedupe] drop messages whose id was already delivered, e.g. redeliveries after a
+  /// reconnect; the id is the "id" field of the message or the stomp message-id header
+  /// [dedupeCapacity] message ids remembered per generation, memory stays fixed
+  /// [dedupeWindow] time in milliseconds a message id is remembered
+  /// [lazyConnect] defer opening the connection to the first subscription or send and
+  /// close it after [idleTimeout] milliseconds without subscriptions, unfinished sends or
+  /// traffic; wanted subscriptions and queued messages are kept and the next subscription
+  /// or send reconnects, see lastResumeLatency in [getReconnectStats]
+  /// [sendRate] messages per second sent on the connection, excess messages wait in the
+  /// outbound queue; [sendBurst] messages sent at once after a quiet period
+  /// [destinationSendRate] messages per second sent to one destination, with
+  /// [destinationSendBurst] as its burst
+  /// [flowHighWatermark] queued message body characters at which sending is reported
+  /// paused, [flowLowWatermark] the characters it is reported writable again at, see
+  /// [onFlowControlCallback]
+  /// [clientHeartbeat] interval in milliseconds the client sends heart-beats at
+  /// [serverHeartbeat] interval in milliseconds the server should send heart-beats at;
+  /// when the server agrees, a connection silent for two intervals is treated as dead
+  /// and reconnected at once
+  /// [reconnectFirstDelay] upper bound in milliseconds of the delay before the first
+  /// reconnect attempt after the connection is lost
+  /// [reconnectBaseDelay] delay window in milliseconds of the second attempt, doubled for
+  /// every further attempt; each delay is picked at random inside the window
+  /// [reconnectMaxDelay] cap in milliseconds of the delay window, attempts never stop
   ///
-  Future<bool> init({@required String url, @required String sendUrl}) async {
+  Future<bool> init(
+      {@required String url,
+      @required String sendUrl,
+      int inboundCapacity,
+      OverflowStrategy overflowStrategy,
+      bool structured = false,
+      int outboundCapacity,
+      int maxInFlight,
+      bool coalesceFrames = false,
+      bool receipt = false,
+      int receiptTimeout,
+      bool outbox = false,
+      bool compression = false,
+      int compressionThreshold,
+      int chunkSize,
+      int reassemblyTimeout,
+      bool messageStore = false,
+      int messageStoreSize,
+      bool dedupe = false,
+      int dedupeCapacity,
+      int dedupeWindow,
+      bool lazyConnect = false,
+      int idleTimeout,
+      double sendRate,
+      int sendBurst,
+      double destinationSendRate,
+      int destinationSendBurst,
+      int flowHighWatermark,
+      int flowLowWatermark,
+      int clientHeartbeat,
+      int serverHeartbeat,
+      int reconnectFirstDelay,
+      int reconnectBaseDelay,
+      int reconnectMaxDelay}) async {
     ///Add native method call processing method
-    _channel.setMethodCallHandler(_nativeHandle);
+    _callbackChannel.setMethodCallHandler(_nativeHandle);
 
-    Map<String, String> params = {
+    Map<String, dynamic> params = {
       "url": url,
       "sendUrl": sendUrl,
     };
-    bool result = await _channel.invokeMethod(_NativeMethod.INIT, params);
+    if (inboundCapacity != null) {
+      params["inboundCapacity"] = inboundCapacity;
+    }
+    if (overflowStrategy != null) {
+      params["overflowStrategy"] = overflowStrategy.toString().split(".").last;
+    }
+    params["structured"] = structured;
+    if (outboundCapacity != null) {
+      params["outboundCapacity"] = outboundCapacity;
+    }
+    if (maxInFlight != null) {
+      params["maxInFlight"] = maxInFlight;
+    }
+    params["coalesceFrames"] = coalesceFrames;
+    params["receipt"] = receipt;
+    if (receiptTimeout != null) {
+      params["receiptTimeout"] = receiptTimeout;
+    }
+    params["outbox"] = outbox;
+    params["compression"] = compression;
+    if (compressionThreshold != null) {
+      params["compressionThreshold"] = compressionThreshold;
+    }
+    if (chunkSize != null) {
+      params["chunkSize"] = chunkSize;
+    }
+    if (reassemblyTimeout != null) {
+      params["reassemblyTimeout"] = reassemblyTimeout;
+    }
+    params["messageStore"] = messageStore;
+    if (messageStoreSize != null) {
+      params["messageStoreSize"] = messageStoreSize;
+    }
+    params["dedupe"] = dedupe;
+    if (dedupeCapacity != null) {
+      params["dedupeCapacity"] = dedupeCapacity;
+    }
+    if (dedupeWindow != null) {
+      params["dedupeWindow"] = dedupeWindow;
+    }
+    params["lazyConnect"] = lazyConnect;
+    if (idleTimeout != null) {
+      params["idleTimeout"] = idleTimeout;
+    }
+    if (sendRate != null) {
+      params["sendRate"] = sendRate;
+    }
+    if (sendBurst != null) {
+      params["sendBurst"] = sendBurst;
+    }
+    if (destinationSendRate != null) {
+      params["destinationSendRate"] = destinationSendRate;
+    }
+    if (destinationSendBurst != null) {
+      params["destinationSendBurst"] = destinationSendBurst;
+    }
+    if (flowHighWatermark != null) {
+      params["flowHighWatermark"] = flowHighWatermark;
+    }
+    if (flowLowWatermark != null) {
+      params["flowLowWatermark"] = flowLowWatermark;
+    }
+    if (clientHeartbeat != null) {
+      params["clientHeartbeat"] = clientHeartbeat;
+    }
+    if (serverHeartbeat != null) {
+      params["serverHeartbeat"] = serverHeartbeat;
+    }
+    if (reconnectFirstDelay != null) {
+      params["reconnectFirstDelay"] = reconnectFirstDelay;
+    }
+    if (reconnectBaseDelay != null) {
+      params["reconnectBaseDelay"] = reconnectBaseDelay;
+    }
+    if (reconnectMaxDelay != null) {
+      params["reconnectMaxDelay"] = reconnectMaxDelay;
+    }
+    bool result = await _invoke(_NativeMethod.INIT, params);
     return result;
   }
 
@@ -70,7 +303,7 @@ class JStomp {
       {ValueChanged onError, ValueChanged onClosed}) async {
     ///Register the connection status listener first
     _onConnectionCallback(onOpen, onError, onClosed);
-    return await _channel.invokeMethod(_NativeMethod.CONNECTION);
+    return await _invoke(_NativeMethod.CONNECTION);
   }
 
   ///
@@ -105,7 +338,13 @@ class JStomp {
   /// Stop the service
   ///
   Future<bool> destroy() async {
-    bool b = await _channel.invokeMethod(_NativeMethod.DESTROY);
+    bool b = await _invoke(_NativeMethod.DESTROY);
+    _binaryChannel.setMessageHandler(null);
+    if (name != DEFAULT_CONNECTION) {
+      _callbackChannel.setMethodCallHandler(null);
+      _connections.remove(name);
+    }
+    _topicCallbacks.clear();
     await _closedStreamControllers();
     return b;
   }
@@ -117,7 +356,7 @@ class JStomp {
   Future<bool> subscribP2P(List<String> urls) async {
     assert(urls != null);
     String urlStr = urls.join(",");
-    return _channel.invokeMethod(_NativeMethod.SUBSCRIBER_P2P, urlStr);
+    return _invoke(_NativeMethod.SUBSCRIBER_P2P, urlStr);
   }
 
   ///
@@ -127,8 +366,29 @@ class JStomp {
   Future<bool> subscribBroadcast(List<String> urls) async {
     assert(urls != null);
     String urlStr = urls.join(",");
-    return await _channel.invokeMethod(
-        _NativeMethod.SUBSCRIBER_BROADCAST, urlStr);
+    return await _invoke(_NativeMethod.SUBSCRIBER_BROADCAST, urlStr);
+  }
+
+  ///
+  /// Unsubscribe from p2p channels
+  /// Every [subscribP2P] of an address counts as one subscriber, the native
+  /// subscription is closed with UNSUBSCRIBE when its last subscriber leaves
+  /// [urls] The point-to-point channel addresses to leave
+  ///
+  Future<bool> unsubscribeP2P(List<String> urls) async {
+    assert(urls != null);
+    return _invoke(_NativeMethod.UNSUBSCRIBE_P2P, urls.join(","));
+  }
+
+  ///
+  /// Unsubscribe from broadcast channels
+  /// Every [subscribBroadcast] of an address counts as one subscriber, the native
+  /// subscription is closed with UNSUBSCRIBE when its last subscriber leaves
+  /// [urls] The broadcast channel addresses to leave
+  ///
+  Future<bool> unsubscribeBroadcast(List<String> urls) async {
+    assert(urls != null);
+    return _invoke(_NativeMethod.UNSUBSCRIBE_BROADCAST, urls.join(","));
   }
 
   ///
@@ -156,15 +416,177 @@ class JStomp {
     });
 
     ///Call the native method to register the message callback
-    return _channel.invokeMethod(_NativeMethod.MESSAGE_CALLBACK);
+    return _invoke(_NativeMethod.MESSAGE_CALLBACK);
+  }
+
+  ///
+  /// Batch accept message listener
+  /// Messages are collected natively and delivered as one list per flush window,
+  /// which avoids one platform channel call per message when a topic bursts.
+  /// [onMessage] Point-to-point batch callback function
+  /// [onBroadCast] broadcast batch callback function
+  /// [flushInterval] maximum time in milliseconds a message waits before delivery
+  /// [maxBatchSize] maximum number of messages per batch, reaching it flushes immediately
+  ///
+  Future<bool> onBatchMessageCallback(OnBatchMessageCallback onMessage,
+      {OnBatchMessageCallback onBroadCast,
+      int flushInterval = 16,
+      int maxBatchSize = 100}) async {
+    ///Listening for message flow
+    _messageController.stream.listen((message) {
+      switch (message.type) {
+        case _MessageType.P2P_BATCH: //Peer-to-peer messages
+          onMessage(message.message);
+          break;
+        case _MessageType.BROADCAST_BATCH: //Broadcast messages
+          if (onBroadCast != null) {
+            onBroadCast(message.message);
+          }
+          break;
+        default:
+          break;
+      }
+    });
+
+    Map<String, int> params = {
+      "flushInterval": flushInterval,
+      "maxBatchSize": maxBatchSize,
+    };
+
+    ///Call the native method to register the batch message callback
+    return _invoke(_NativeMethod.BATCH_MESSAGE_CALLBACK, params);
+  }
+
+  ///
+  /// Binary accept message listener
+  /// Message bodies arrive as utf-8 bytes over a binary channel, skipping the
+  /// string copies of the standard codec. Decode them with utf8.decode or hand
+  /// them straight to a json decoder.
+  /// [onMessage] Point-to-point message callback function
+  /// [onBroadCast] broadcast message callback function
+  ///
+  Future<bool> onBinaryMessageCallback(OnBinaryMessageCallback onMessage,
+      {OnBinaryMessageCallback onBroadCast}) async {
+    _binaryChannel.setMessageHandler((ByteData data) async {
+      ///Header: kind (1 byte), topic length (2 bytes), topic
+      int kind = data.getUint8(0);
+      int topicLength = data.getUint16(1);
+      String topic = utf8.decode(
+          data.buffer.asUint8List(data.offsetInBytes + 3, topicLength));
+      Uint8List payload = data.buffer.asUint8List(
+          data.offsetInBytes + 3 + topicLength,
+          data.lengthInBytes - 3 - topicLength);
+      if (kind == _BinaryKind.P2P) {
+        onMessage(topic, payload);
+      } else if (onBroadCast != null) {
+        onBroadCast(topic, payload);
+      }
+      return null;
+    });
+
+    ///Call the native method to register the binary message callback
+    return _invoke(_NativeMethod.BINARY_MESSAGE_CALLBACK);
+  }
+
+  ///
+  /// Destination message listener
+  /// Messages are routed natively, only messages whose destination matches
+  /// [pattern] reach [callback], together with the destination itself.
+  /// [pattern] a destination, "*" matches one path segment and a trailing "**"
+  /// matches the rest of the path, e.g. "/topic/group/*" or "/user/**"
+  ///
+  Future<bool> addTopicListener(
+      String pattern, OnTopicMessageCallback callback) async {
+    assert(pattern != null && callback != null);
+    List<OnTopicMessageCallback> callbacks = _topicCallbacks[pattern];
+    if (callbacks != null) {
+      callbacks.add(callback);
+      return true;
+    }
+    _topicCallbacks[pattern] = [callback];
+    return _invoke(_NativeMethod.ADD_TOPIC_LISTENER, pattern);
+  }
+
+  ///
+  /// Remove a destination listener
+  /// [callback] the callback to remove, all callbacks of [pattern] when null
+  ///
+  Future<bool> removeTopicListener(String pattern,
+      {OnTopicMessageCallback callback}) async {
+    List<OnTopicMessageCallback> callbacks = _topicCallbacks[pattern];
+    if (callbacks == null) {
+      return false;
+    }
+    if (callback != null) {
+      callbacks.remove(callback);
+      if (callbacks.isNotEmpty) {
+        return true;
+      }
+    }
+    _topicCallbacks.remove(pattern);
+    return _invoke(_NativeMethod.REMOVE_TOPIC_LISTENER, pattern);
+  }
+
+  ///
+  /// Add a native filter of received messages, replacing the filter with the same [id]
+  /// Filters are tested on the native inbound worker, a message reaches the message,
+  /// batch, binary and destination listeners only when at least one filter matches it,
+  /// so filtered messages never cross the platform channel. Every given condition of a
+  /// filter must hold:
+  /// [microGroupIds] the message "microGroupId" is one of these
+  /// [types] the message "type" is one of these
+  /// [excludeTypes] the message "type" is none of these, e.g. [-1] for system messages
+  /// [createIds] the message "createId" is one of these
+  /// [headers] each stomp header has one of the listed values
+  /// Hits and misses per filter are in [getStats] under "filters"
+  ///
+  Future<bool> addMessageFilter(String id,
+      {List<String> microGroupIds,
+      List<int> types,
+      List<int> excludeTypes,
+      List<String> createIds,
+      Map<String, List<String>> headers}) async {
+    assert(id != null);
+    Map<String, dynamic> params = {"id": id};
+    if (microGroupIds != null) {
+      params["microGroupIds"] = microGroupIds;
+    }
+    if (types != null) {
+      params["types"] = types;
+    }
+    if (excludeTypes != null) {
+      params["excludeTypes"] = excludeTypes;
+    }
+    if (createIds != null) {
+      params["createIds"] = createIds;
+    }
+    if (headers != null) {
+      params["headers"] = headers;
+    }
+    return _invoke(_NativeMethod.ADD_MESSAGE_FILTER, params);
+  }
+
+  ///
+  /// Remove a native message filter, with no filter left every message is delivered
+  ///
+  Future<bool> removeMessageFilter(String id) async {
+    assert(id != null);
+    return _invoke(_NativeMethod.REMOVE_MESSAGE_FILTER, id);
   }
 
   ///
   /// Send a message
   /// [message] message body, usually json
   /// [header] stomp message header, the default can not pass
+  /// [priority] native send lane, picked from the message "type" when null
+  /// [destination] destination of this message, the sendUrl of [init] when null; the
+  /// headers are cached natively per destination and header set, so sending to many
+  /// destinations does not need another [init]
   ///
-  Future<String> sendMessage(String message, {Map<String, dynamic> header}) {
+  Future<String> sendMessage(String message,
+      {Map<String, dynamic> header,
+      SendPriority priority,
+      String destination}) {
     ///Convert the value of the stomp header to a String type.
     Map<String, String> headMap = new Map();
     if (header != null) {
@@ -173,7 +595,13 @@ class JStomp {
       });
     }
     Map<String, dynamic> params = {"msg": message, "header": headMap};
-    return _channel.invokeMethod(_NativeMethod.SEND_MESSAGE, params);
+    if (priority != null) {
+      params["priority"] = priority.toString().split(".").last.toLowerCase();
+    }
+    if (destination != null) {
+      params["destination"] = destination;
+    }
+    return _invoke(_NativeMethod.SEND_MESSAGE, params);
   }
 
   ///
@@ -182,13 +610,169 @@ class JStomp {
   ///
   Future<bool> onSendCallback(OnSendMessageCallback callback) async {
     _sendController.stream.listen((message) {
-      if (message.status == 1) {
-        callback(SendStatus.SUCCESS, message.message);
+      callback(_sendStatus(message.status), message.message);
+    });
+    return _invoke(_NativeMethod.SEND_CALLBACK);
+  }
+
+  ///
+  /// Send a message listener with latency
+  /// [callback] called with the send status, the message body and the latency in
+  /// milliseconds; with receipts enabled it is the broker round-trip time, counted from
+  /// the moment the frame is written, time in the send queue is not included
+  ///
+  Future<bool> onSendResultCallback(OnSendResultCallback callback) async {
+    _sendController.stream.listen((message) {
+      callback(_sendStatus(message.status), message.message, message.latency);
+    });
+    return _invoke(_NativeMethod.SEND_CALLBACK);
+  }
+
+  ///
+  /// Backpressure listener
+  /// [callback] called with writable false once the queued messages reach the high
+  /// watermark or the outbound queue is full, and with true once they are drained to the
+  /// low watermark; messages sent while paused are still queued until the queue is full
+  ///
+  Future<bool> onFlowControlCallback(OnFlowControlCallback callback) async {
+    _flowControlCallback = callback;
+    return _invoke(_NativeMethod.FLOW_CONTROL_CALLBACK);
+  }
+
+  ///
+  /// Whether sending may go on, the last state reported by the backpressure listener
+  ///
+  bool get writable => _writable;
+
+  ///
+  /// Messages waiting in the native outbox, in send order
+  /// Each item has "msg", the message body, and "status", a UserMessageEntry status,
+  /// not a [SendStatus]: 0 sent and waiting for confirmation, 1 failed and waiting to
+  /// be resent, -1 resent and waiting for confirmation
+  /// A native failure is thrown as a [PlatformException]
+  ///
+  Future<List<Map<String, dynamic>>> getOutbox() async {
+    List<dynamic> list = await _invoke(_NativeMethod.GET_OUTBOX);
+    return list.map((item) => Map<String, dynamic>.from(item)).toList();
+  }
+
+  ///
+  /// Native send status to [SendStatus], success 1, failed 0, resent -1
+  ///
+  SendStatus _sendStatus(int status) {
+    switch (status) {
+      case 1:
+        return SendStatus.SUCCESS;
+      case -1:
+        return SendStatus.RESENT;
+      default:
+        return SendStatus.FAIL;
+    }
+  }
+
+  ///
+  /// Page of stored messages of a group, oldest first, needs messageStore: true in [init]
+  /// Without [beforeId] and [afterId] the newest [limit] messages are returned, otherwise
+  /// the [limit] messages before or after the given message id
+  /// Each message has the fields of the message map plus "direct", 1 received and 0 sent;
+  /// sent messages carry "sendState", 0 sent and -1 resent
+  /// A native failure is thrown as a [PlatformException]
+  ///
+  Future<List<Map<String, dynamic>>> getMessages(String microGroupId,
+      {int limit = 20, String beforeId, String afterId}) async {
+    Map<String, dynamic> params = {
+      "microGroupId": microGroupId,
+      "limit": limit,
+    };
+    if (beforeId != null) {
+      params["beforeId"] = beforeId;
+    }
+    if (afterId != null) {
+      params["afterId"] = afterId;
+    }
+    List<dynamic> list = await _invoke(_NativeMethod.GET_MESSAGES, params);
+    return list.map((item) => Map<String, dynamic>.from(item)).toList();
+  }
+
+  ///
+  /// Reconnect statistics
+  /// Returns reconnecting, attempt (attempts of the current outage), totalAttempts,
+  /// reconnects, lastTimeToReconnect and maxTimeToReconnect (milliseconds, -1 if none
+  /// yet), outageDuration and nextAttemptDelay (milliseconds, -1 when none is scheduled),
+  /// subscriptions (active on the current connection) and lastTimeToSubscribe
+  /// (milliseconds from reconnecting to all subscriptions restored, -1 if none yet),
+  /// heartbeatInterval (negotiated server heart-beat, 0 when not watched),
+  /// deadConnections (connections closed because heart-beats stopped), parked (a lazy
+  /// connection closed and waiting for demand) and lastResumeLatency (milliseconds from
+  /// the demand to the lazy connection open, -1 if none yet)
+  /// A native failure is thrown as a [PlatformException]
+  ///
+  Future<Map<String, dynamic>> getReconnectStats() async {
+    Map<dynamic, dynamic> stats = await _invoke(_NativeMethod.RECONNECT_STATS);
+    return Map<String, dynamic>.from(stats);
+  }
+
+  ///
+  /// Inbound dispatch queue statistics
+  /// Returns queueDepth, maxQueueDepth, capacity, strategy, dropped, dispatched,
+  /// duplicates (messages dropped as already delivered), assembled (messages joined from
+  /// fragments), chunksExpired and chunksDropped (incomplete messages given up)
+  /// A native failure is thrown as a [PlatformException]
+  ///
+  Future<Map<String, dynamic>> getInboundStats() async {
+    Map<dynamic, dynamic> stats = await _invoke(_NativeMethod.INBOUND_STATS);
+    return Map<String, dynamic>.from(stats);
+  }
+
+  ///
+  /// Metrics snapshot
+  /// Returns counters (receivedP2P, receivedBroadcast, dispatched, duplicatesDropped,
+  /// sendSuccess, sendFailed, sendResent, connectionsOpened, connectionsClosed,
+  /// connectionErrors, reconnectsStarted, idleDisconnects, lazyResumes,
+  /// structuredDecoded, structuredFallbacks),
+  /// topics (received messages per subscription address), dispatchLatencyMicros and
+  /// sendLatencyMillis and resumeLatencyMillis (count, sum, max, mean, p50, p90, p99,
+  /// bucket bounds and counts),
+  /// inbound (see [getInboundStats]), outbound (queueDepth, inFlight, maxInFlight, sent,
+  /// failed, rejected, writes, chunked, fragments, lanes: queueDepth, taken and
+  /// queueDelayMillis per send lane, headerTemplates: destinations, hits, misses,
+  /// queuedChars, writable, rateLimit: rate, burst, destinationRate, destinationBurst,
+  /// throttled, waitMillis), reconnect (see [getReconnectStats]), compression
+  /// (deflated, inflated, bytes in and out, deflateRatio, inflateRatio, cpu micros) and
+  /// filters (accepted, rejected, filters: hits and misses per filter id)
+  /// A native failure is thrown as a [PlatformException]
+  ///
+  Future<Map<String, dynamic>> getStats() async {
+    Map<dynamic, dynamic> stats = await _invoke(_NativeMethod.GET_STATS);
+    return Map<String, dynamic>.from(stats);
+  }
+
+  ///
+  /// Receive the metrics snapshot every [interval] milliseconds, null [callback] stops it
+  ///
+  Future<bool> onStatsCallback(OnStatsCallback callback,
+      {int interval = 5000}) async {
+    _statsCallback = callback;
+    Map<String, dynamic> params = {
+      "interval": callback == null ? 0 : interval,
+    };
+    return _invoke(_NativeMethod.STATS_CALLBACK, params);
+  }
+
+  ///
+  /// Call a native method on this connection, named connections add their name
+  /// as "connection" to map arguments and wrap other arguments as "value"
+  ///
+  Future<T> _invoke<T>(String method, [dynamic arguments]) {
+    if (name != DEFAULT_CONNECTION) {
+      if (arguments is Map) {
+        arguments = Map<String, dynamic>.from(arguments);
+        arguments["connection"] = name;
       } else {
-        callback(SendStatus.FAIL, message.message);
+        arguments = <String, dynamic>{"connection": name, "value": arguments};
       }
-    });
-    return _channel.invokeMethod(_NativeMethod.SEND_CALLBACK);
+    }
+    return _channel.invokeMethod<T>(method, arguments);
   }
 
   ///
@@ -202,8 +786,8 @@ class JStomp {
 
         ///Send message callback
         Map<String, dynamic> params = Map.from(call.arguments);
-        _sendController
-            .add(_OnSendMessageData(params["status"], params["msg"]));
+        _sendController.add(_OnSendMessageData(
+            params["status"], params["msg"], params["latency"] ?? -1));
         break;
       case _NativeMethod.ON_MESSAGE:
 
@@ -217,6 +801,46 @@ class JStomp {
         _messageController
             .add(new _OnMessageData(_MessageType.BROADCAST, call.arguments));
         break;
+      case _NativeMethod.ON_TOPIC_MESSAGE:
+
+        ///Receive a message for a destination listener
+        Map<String, dynamic> topicMsg = Map.from(call.arguments);
+        List<OnTopicMessageCallback> callbacks =
+            _topicCallbacks[topicMsg["pattern"]];
+        if (callbacks != null) {
+          for (OnTopicMessageCallback callback in List.from(callbacks)) {
+            callback(topicMsg["topic"], topicMsg["msg"]);
+          }
+        }
+        break;
+      case _NativeMethod.ON_BATCH_MESSAGE:
+
+        ///Receive a batch of new news
+        _messageController.add(new _OnMessageData(
+            _MessageType.P2P_BATCH, List<dynamic>.from(call.arguments)));
+        break;
+      case _NativeMethod.ON_BATCH_BROAD_CAST:
+
+        ///Received a batch of broadcast messages
+        _messageController.add(new _OnMessageData(
+            _MessageType.BROADCAST_BATCH, List<dynamic>.from(call.arguments)));
+        break;
+      case _NativeMethod.ON_STATS:
+
+        ///Periodic metrics snapshot
+        if (_statsCallback != null) {
+          _statsCallback(Map<String, dynamic>.from(call.arguments));
+        }
+        break;
+      case _NativeMethod.ON_FLOW_CONTROL:
+
+        ///Sending paused or writable again
+        Map<String, dynamic> flow = Map.from(call.arguments);
+        _writable = flow["writable"];
+        if (_flowControlCallback != null) {
+          _flowControlCallback(_writable, flow["queuedChars"]);
+        }
+        break;
       case _NativeMethod.ON_CONNECTION_OPENED:
 
         ///Connection open callback
@@ -263,6 +887,25 @@ class JStomp {
 ///
 enum Schema { WS, HTTP }
 
+///
+/// Native inbound queue overflow strategy
+/// [BLOCK] block the socket reader until there is room, nothing is lost; heart-beats are
+/// not read meanwhile, so it cannot be used with a server heart-beat
+/// [DROP_OLDEST] drop the oldest queued message, the default
+/// [DROP_NEWEST] drop the new message
+/// [LATEST_PER_TOPIC] replace the queued message of the same topic, otherwise drop the oldest
+///
+enum OverflowStrategy { BLOCK, DROP_OLDEST, DROP_NEWEST, LATEST_PER_TOPIC }
+
+///
+/// Native send lane, lanes are drained by weight 8 : 4 : 1 so bulk messages
+/// cannot hold back the others; by default the lane follows the message "type"
+/// [CONTROL] system control messages, type -1
+/// [INTERACTIVE] text and other messages users wait on, type 0
+/// [BULK] media messages, type 1 to 4
+///
+enum SendPriority { CONTROL, INTERACTIVE, BULK }
+
 ///
 /// Connection callback method
 ///
@@ -271,12 +914,20 @@ enum _Connection { OPEN, ERROR, CLOSED }
 ///
 /// Accepted message type
 ///
-enum _MessageType { P2P, BROADCAST }
+enum _MessageType { P2P, BROADCAST, P2P_BATCH, BROADCAST_BATCH }
+
+///
+/// Message kind in the binary channel header
+///
+class _BinaryKind {
+  static const int P2P = 0;
+  static const int BROADCAST = 1;
+}
 
 ///
-/// Message sent to status, success 1 failed 0
+/// Message sent to status, success 1 failed 0, resent from the outbox -1
 ///
-enum SendStatus { FAIL, SUCCESS }
+enum SendStatus { FAIL, SUCCESS, RESENT }
 
 ///
 /// Connection callback data
@@ -304,8 +955,9 @@ class _OnMessageData {
 class _OnSendMessageData {
   int status;
   dynamic message;
+  int latency;
 
-  _OnSendMessageData(this.status, this.message);
+  _OnSendMessageData(this.status, this.message, this.latency);
 }
 
 ///
@@ -317,8 +969,23 @@ class _NativeMethod {
   static const String CONNECTION = "connection";
   static const String SUBSCRIBER_P2P = "subscriberP2P";
   static const String SUBSCRIBER_BROADCAST = "subscriberBroadcast";
+  static const String UNSUBSCRIBE_P2P = "unsubscribeP2P";
+  static const String UNSUBSCRIBE_BROADCAST = "unsubscribeBroadcast";
   static const String MESSAGE_CALLBACK = "setMessageCallback";
+  static const String BATCH_MESSAGE_CALLBACK = "setBatchMessageCallback";
+  static const String BINARY_MESSAGE_CALLBACK = "setBinaryMessageCallback";
   static const String SEND_CALLBACK = "setSendCallback";
+  static const String FLOW_CONTROL_CALLBACK = "setFlowControlCallback";
+  static const String INBOUND_STATS = "getInboundStats";
+  static const String GET_OUTBOX = "getOutbox";
+  static const String GET_MESSAGES = "getMessages";
+  static const String RECONNECT_STATS = "getReconnectStats";
+  static const String GET_STATS = "getStats";
+  static const String STATS_CALLBACK = "setStatsCallback";
+  static const String ADD_TOPIC_LISTENER = "addTopicListener";
+  static const String REMOVE_TOPIC_LISTENER = "removeTopicListener";
+  static const String ADD_MESSAGE_FILTER = "addMessageFilter";
+  static const String REMOVE_MESSAGE_FILTER = "removeMessageFilter";
   static const String DESTROY = "destroy";
   static const String SEND_MESSAGE = "sendMessage";
 
@@ -329,5 +996,10 @@ class _NativeMethod {
 
   static const String ON_MESSAGE = "onMessage";
   static const String ON_BROAD_CAST = "onBroadcastMessage";
+  static const String ON_TOPIC_MESSAGE = "onTopicMessage";
+  static const String ON_BATCH_MESSAGE = "onBatchMessage";
+  static const String ON_BATCH_BROAD_CAST = "onBatchBroadcastMessage";
   static const String ON_SEND = "onSend";
+  static const String ON_FLOW_CONTROL = "onFlowControl";
+  static const String ON_STATS = "onStats";
 }